@@ -0,0 +1,131 @@
+package com.itella.app.wbarchive.model;
+
+import java.util.Random;
+
+import com.workbrain.util.LongList;
+
+/**
+ * Compares footprint and iteration time of <code>CompressedLongSet</code> and
+ * <code>LongList</code> for key sets shaped like the ones archive policies resolve.
+ * <p>
+ * Usage: <code>CompressedLongSetBenchmark [keys] [rounds]</code>, 3M keys and 5 rounds
+ * by default. Each shape is built once per structure, heap use is measured around the
+ * build and iteration is timed as the chunked pass <code>WBPurge</code> makes over the keys.
+ * <p>
+ * Not part of the deployed sources, compile it against <code>src</code> to run it.
+ */
+public class CompressedLongSetBenchmark {
+
+    private static final int CHUNK_KEYS = 50000;
+
+    private static final String[] SHAPES = {"dense", "gaps", "sparse", "random"};
+
+    private CompressedLongSetBenchmark() {
+    }
+
+    public static void main(String[] args) {
+        int keys = args.length > 0 ? Integer.parseInt(args[0]) : 3000000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        System.out.println("keys=" + keys + " rounds=" + rounds);
+        for (int i = 0; i < SHAPES.length; i++) {
+            run(SHAPES[i], createKeys(SHAPES[i], keys), rounds);
+        }
+    }
+
+    /**
+     * Returns ascending keys of given shape: consecutive ids, consecutive ids with a gap
+     * every few hundred ids, every tenth id or random ids over a wide range.
+     */
+    static long[] createKeys(String shape, int n) {
+        long[] ret = new long[n];
+        Random random = new Random(n);
+        long key = 1000000;
+        for (int i = 0; i < n; i++) {
+            if ("dense".equals(shape)) {
+                key++;
+            }
+            else if ("gaps".equals(shape)) {
+                key += random.nextInt(300) == 0 ? 2 + random.nextInt(1000) : 1;
+            }
+            else if ("sparse".equals(shape)) {
+                key += 10;
+            }
+            else {
+                key += 1 + random.nextInt(100000);
+            }
+            ret[i] = key;
+        }
+        return ret;
+    }
+
+    private static void run(String shape, long[] keys, int rounds) {
+        long before = usedMemory();
+        LongList list = new LongList();
+        for (int i = 0; i < keys.length; i++) {
+            list.add(keys[i]);
+        }
+        long listBytes = usedMemory() - before;
+
+        before = usedMemory();
+        CompressedLongSet set = CompressedLongSet.fromSorted(keys, keys.length);
+        long setBytes = usedMemory() - before;
+
+        long listNanos = Long.MAX_VALUE;
+        long setNanos = Long.MAX_VALUE;
+        long check = 0;
+        for (int r = 0; r < rounds; r++) {
+            long s = System.nanoTime();
+            check += iterate(list);
+            listNanos = Math.min(listNanos, System.nanoTime() - s);
+            s = System.nanoTime();
+            check -= iterate(set);
+            setNanos = Math.min(setNanos, System.nanoTime() - s);
+        }
+        // *** also keeps the keys reachable until here, a compiled run could free them
+        // *** while the set is measured otherwise
+        if (check != 0 || set.size() != keys.length || list.size() != keys.length) {
+            throw new IllegalStateException("Keys differ for " + shape);
+        }
+        System.out.println(shape + ": LongList " + listBytes + " bytes " + listNanos / 1000000 + " ms"
+                + ", CompressedLongSet " + setBytes + " bytes (" + set.getMemoryBytes() + " encoded) "
+                + setNanos / 1000000 + " ms, " + (listBytes / Math.max(1, setBytes)) + "x smaller");
+    }
+
+    /**
+     * Passes over the keys the way the purge did before, copying to an array and chunking it.
+     */
+    private static long iterate(LongList list) {
+        long[] ids = list.toLongArray();
+        long sum = 0;
+        for (int from = 0; from < ids.length; from += CHUNK_KEYS) {
+            int n = Math.min(CHUNK_KEYS, ids.length - from);
+            long[] chunk = new long[n];
+            System.arraycopy(ids, from, chunk, 0, n);
+            for (int i = 0; i < n; i++) {
+                sum += chunk[i];
+            }
+        }
+        return sum;
+    }
+
+    private static long iterate(CompressedLongSet set) {
+        CompressedLongSet.Cursor cursor = set.cursor();
+        long[] chunk = new long[CHUNK_KEYS];
+        long sum = 0;
+        int n;
+        while ((n = cursor.next(chunk, 0, chunk.length)) > 0) {
+            for (int i = 0; i < n; i++) {
+                sum += chunk[i];
+            }
+        }
+        return sum;
+    }
+
+    private static long usedMemory() {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+}
@@ -0,0 +1,48 @@
+-- WBARCH_CHECKPOINT
+-- Tokenizer positions of EVERY_X_DAYS, EVERY_X_EMPLOYEE and EVERY_X_RECORDS
+-- policies, written by WBPurge with every committed batch. Runs started with the
+-- RESUME task param continue after the latest unfinished checkpoint of their
+-- policy. Create the table in the core schema.
+-- Run the block for your database.
+
+-- Oracle
+CREATE TABLE WBARCH_CHECKPOINT (
+    WBAT_ID          NUMBER(10)     NOT NULL,
+    WBAP_ID          NUMBER(10)     NOT NULL,
+    WBCP_PHASE       VARCHAR2(20)   NOT NULL,
+    WBCP_DETAIL_IND  NUMBER(10)     DEFAULT 0 NOT NULL,
+    WBCP_POSITION    VARCHAR2(100),
+    WBCP_STATUS      CHAR(1)        NOT NULL,
+    WBCP_UPDATED     DATE           NOT NULL,
+    CONSTRAINT PK_WBARCH_CHECKPOINT PRIMARY KEY (WBAT_ID, WBCP_PHASE)
+);
+
+CREATE INDEX IDX_WBARCH_CHECKPOINT_POL ON WBARCH_CHECKPOINT (WBAP_ID, WBCP_PHASE, WBCP_STATUS);
+
+-- DB2
+-- CREATE TABLE WBARCH_CHECKPOINT (
+--     WBAT_ID          INTEGER       NOT NULL,
+--     WBAP_ID          INTEGER       NOT NULL,
+--     WBCP_PHASE       VARCHAR(20)   NOT NULL,
+--     WBCP_DETAIL_IND  INTEGER       NOT NULL DEFAULT 0,
+--     WBCP_POSITION    VARCHAR(100),
+--     WBCP_STATUS      CHAR(1)       NOT NULL,
+--     WBCP_UPDATED     TIMESTAMP     NOT NULL,
+--     CONSTRAINT PK_WBARCH_CHECKPOINT PRIMARY KEY (WBAT_ID, WBCP_PHASE)
+-- );
+--
+-- CREATE INDEX IDX_WBARCH_CHECKPOINT_POL ON WBARCH_CHECKPOINT (WBAP_ID, WBCP_PHASE, WBCP_STATUS);
+
+-- SQL Server
+-- CREATE TABLE WBARCH_CHECKPOINT (
+--     WBAT_ID          INT           NOT NULL,
+--     WBAP_ID          INT           NOT NULL,
+--     WBCP_PHASE       VARCHAR(20)   NOT NULL,
+--     WBCP_DETAIL_IND  INT           NOT NULL DEFAULT 0,
+--     WBCP_POSITION    VARCHAR(100),
+--     WBCP_STATUS      CHAR(1)       NOT NULL,
+--     WBCP_UPDATED     DATETIME      NOT NULL,
+--     CONSTRAINT PK_WBARCH_CHECKPOINT PRIMARY KEY (WBAT_ID, WBCP_PHASE)
+-- );
+--
+-- CREATE INDEX IDX_WBARCH_CHECKPOINT_POL ON WBARCH_CHECKPOINT (WBAP_ID, WBCP_PHASE, WBCP_STATUS);
@@ -0,0 +1,37 @@
+-- WBARCH_KEY_STAGE
+-- Primary keys of large policy details are staged here by WBPurge so that they
+-- are archived and purged with one statement instead of one per IN list chunk.
+-- Rows are staged under an id unique to the item and removed by WBPurge once the
+-- item is done. They are kept over commits, since bounded deletes committing every
+-- statement (DELETE_BATCH_COMMIT) still read the stage after their first commit.
+-- Rows left by a failed run are never read again; on Oracle and DB2 they go with
+-- the session, on SQL Server they can be deleted while no archive runs.
+-- The table must be created in BOTH the core schema and the archive schema/database:
+-- the core copy stages archive and purge of the core tables, the archive copy stages
+-- the archive purge, which runs on the archive connection.
+-- Without the table WBPurge falls back to IN lists.
+-- Run the block for your database.
+
+-- Oracle
+CREATE GLOBAL TEMPORARY TABLE WBARCH_KEY_STAGE (
+    WBKS_STAGE_ID   NUMBER(18)  NOT NULL,
+    WBKS_KEY_ID     NUMBER(18)  NOT NULL
+) ON COMMIT PRESERVE ROWS;
+
+CREATE INDEX IDX_WBARCH_KEY_STAGE ON WBARCH_KEY_STAGE (WBKS_STAGE_ID, WBKS_KEY_ID);
+
+-- DB2
+-- CREATE GLOBAL TEMPORARY TABLE WBARCH_KEY_STAGE (
+--     WBKS_STAGE_ID   BIGINT  NOT NULL,
+--     WBKS_KEY_ID     BIGINT  NOT NULL
+-- ) ON COMMIT PRESERVE ROWS NOT LOGGED;
+--
+-- CREATE INDEX IDX_WBARCH_KEY_STAGE ON WBARCH_KEY_STAGE (WBKS_STAGE_ID, WBKS_KEY_ID);
+
+-- SQL Server
+-- CREATE TABLE WBARCH_KEY_STAGE (
+--     WBKS_STAGE_ID   BIGINT  NOT NULL,
+--     WBKS_KEY_ID     BIGINT  NOT NULL
+-- );
+--
+-- CREATE CLUSTERED INDEX IDX_WBARCH_KEY_STAGE ON WBARCH_KEY_STAGE (WBKS_STAGE_ID, WBKS_KEY_ID);
@@ -0,0 +1,16 @@
+-- WBARCH_OVERLAP_STAGE
+-- Keys of archive rows that overlap the live tables are staged here by the Itella
+-- archive extensions, so that one join of the live and archive tables drives all
+-- pre-purge deletes depending on it. Rows are kept per session over the commits of
+-- the pre-purge and removed when it is done. Create the table in the core schema.
+-- Without the table the pre-purge deletes join the live tables per statement.
+
+-- Oracle
+CREATE GLOBAL TEMPORARY TABLE WBARCH_OVERLAP_STAGE (
+    WBOS_STAGE      VARCHAR2(30)    NOT NULL,
+    WBOS_EMP_ID     NUMBER(18),
+    WBOS_WORK_DATE  DATE,
+    WBOS_KEY_ID     NUMBER(18)
+) ON COMMIT PRESERVE ROWS;
+
+CREATE INDEX IDX_WBARCH_OVERLAP_STAGE ON WBARCH_OVERLAP_STAGE (WBOS_STAGE, WBOS_KEY_ID);
@@ -2,16 +2,59 @@ package com.itella.app.wbarchive;
 
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Date;
 
+import javax.naming.NamingException;
+
+import com.workbrain.app.wbarchive.WBArchive;
 import com.workbrain.app.wbarchive.WBArchiveDefault;
+import com.workbrain.app.wbarchive.model.WBArchPolParamData;
+import com.workbrain.server.registry.Registry;
 import com.workbrain.sql.DBConnection;
 import com.workbrain.sql.SQLUtil;
+import com.workbrain.util.DateHelper;
+import com.workbrain.util.RegistryHelper;
+import com.workbrain.util.StringUtil;
 /**
  * Extension class for itella archiving data.
- * 
+ * <p>
+ * Archive keys overlapping a live table can be staged once to WBARCH_OVERLAP_STAGE under
+ * a stage name and drive several pre-purge deletes, instead of each delete joining the
+ * live table again. The stage is a temporary table keeping its rows over the commits
+ * of the pre-purge; without it components fall back to their plain deletes.
+ * <p>
+ * The aging date of each run is kept per table in the registry next to
+ * ARCHIVE_BOUNDARY_DATE, e.g. /system/archiving/ARCHIVE_BOUNDARY_DATE_WORK_SUMMARY.
+ * With the PREPURGE_LOOKBACK_DAYS policy param the next run only pre-purges the dates
+ * from that watermark, less the lookback, up to its own aging date. Without the param,
+ * without a watermark or with the PREPURGE_FULL policy param, the whole overlap is
+ * pre-purged as before.
+ * <p>
+ * The watermark entries are not created by the archive, they have to be added to the
+ * registry like ARCHIVE_BOUNDARY_DATE, empty, for each pre-purged table. A missing
+ * entry is logged as a warning on every run.
  */
 public class AbtractItellaArchiveData extends WBArchiveDefault {
 
+    private static org.apache.log4j.Logger logger = org.apache.log4j.Logger.getLogger(AbtractItellaArchiveData.class);
+
+    protected static final String OVERLAP_STAGE_TABLE = "WBARCH_OVERLAP_STAGE";
+
+    /** policy param, Y to pre-purge the whole overlap of the live and archive tables */
+    public static final String PARAM_PREPURGE_FULL = "PREPURGE_FULL";
+
+    /**
+     * policy param, days before the watermark the pre-purge window starts. Rows are assumed
+     * to overlap the archive only if their date is at most this many days before the aging
+     * date of the previous run, older restored or corrected live rows are left in the archive.
+     * The whole overlap is pre-purged if not set
+     */
+    public static final String PARAM_PREPURGE_LOOKBACK_DAYS = "PREPURGE_LOOKBACK_DAYS";
+
+    private static final String WBREG_BOUNDARY_DATE_PREFIX = "/system/archiving/ARCHIVE_BOUNDARY_DATE_";
+    private static final String WBREG_DATE_FORMAT = "MM/dd/yyyy";
+
 
 	/**
 	 * Executes SQL with no params and no clientIds
@@ -33,4 +76,221 @@ public class AbtractItellaArchiveData extends WBArchiveDefault {
 		return cnt;
     }
 
+	/**
+	 * Deletes the archive rows whose keys are in the live table, within the dates of given window
+	 * @param conn
+	 * @param window
+	 * @param archiveTable
+	 * @param liveTable
+	 * @param keyColumns key columns of both tables, comma separated
+	 * @param dateColumn date column of both tables
+	 * @return
+	 * @throws SQLException
+	 */
+    protected int deleteOverlap(DBConnection conn, PrePurgeWindow window, String archiveTable, String liveTable,
+    		String keyColumns, String dateColumn) throws SQLException {
+    	String sql = "delete from " + archiveTable + " where (" + keyColumns + ") in (select " + keyColumns
+    			+ " from " + liveTable + window.getSql(" where ", dateColumn) + ")" + window.getSql(" and ", dateColumn);
+    	return executeSQL(conn, sql, concat(window.getParams(), window.getParams()));
+    }
+
+	/**
+	 * Returns the pre-purge window of given table for this run
+	 * @param wbarchive
+	 * @param tableName
+	 * @return
+	 */
+    protected PrePurgeWindow getPrePurgeWindow(WBArchive wbarchive, String tableName) {
+    	Date to = wbarchive.getArchiveAgingDate();
+    	String days = getPolicyParam(wbarchive, PARAM_PREPURGE_LOOKBACK_DAYS);
+    	// *** without a configured lookback nothing bounds how old an overlapping row can be
+    	if (StringUtil.isEmpty(days) || "Y".equalsIgnoreCase(getPolicyParam(wbarchive, PARAM_PREPURGE_FULL))) {
+    		return new PrePurgeWindow(tableName, null, to);
+    	}
+    	String name = WBREG_BOUNDARY_DATE_PREFIX + tableName.toUpperCase();
+    	Date from = null;
+    	try {
+    		String value = Registry.getVarString(name, "");
+    		if (StringUtil.isEmpty(value)) {
+    			logger.warn("No watermark in " + name + " yet, pre-purging the whole overlap of " + tableName);
+    		}
+    		else {
+    			int lookback = Integer.parseInt(days.trim());
+    			from = DateHelper.addDays(DateHelper.convertStringToDate(value, WBREG_DATE_FORMAT), -lookback);
+    		}
+    	}
+    	catch (Exception e) {
+    		// *** the whole overlap is always safe
+    		logger.error("Could not read " + name + ", pre-purging the whole overlap of " + tableName, e);
+    		from = null;
+    	}
+    	return new PrePurgeWindow(tableName, from, to);
+    }
+
+	/**
+	 * Keeps the aging date of this run as watermark of the tables of given windows. Called once
+	 * the archive succeeded; if the registry cannot be updated the next run starts from the older watermark.
+	 * @param wbarchive
+	 * @param windows
+	 */
+    protected void saveWatermarks(WBArchive wbarchive, PrePurgeWindow[] windows) {
+    	String date = DateHelper.convertDateString(wbarchive.getArchiveAgingDate(), WBREG_DATE_FORMAT);
+    	RegistryHelper rh = new RegistryHelper();
+    	for (int i = 0; i < windows.length; i++) {
+    		String name = WBREG_BOUNDARY_DATE_PREFIX + windows[i].getTableName().toUpperCase();
+    		try {
+    			rh.setVar(name, date);
+    		}
+    		catch (NamingException ne) {
+    			logger.warn("Could not update registry parameter: " + name + " with value: " + date
+    					+ ", the next run pre-purges " + windows[i].getTableName() + " from the previous watermark"
+    					+ " or the whole overlap if there is none. Check that the registry parameter exists", ne);
+    		}
+    	}
+    }
+
+	/**
+	 * Returns the value of given param of the policy being run, null if it is not set.
+	 * Params are read from the policy wbarchive already loaded.
+	 * @param wbarchive
+	 * @param paramName
+	 * @return
+	 */
+    protected String getPolicyParam(WBArchive wbarchive, String paramName) {
+    	WBArchPolParamData param = wbarchive.getArchiveData().getArchivePolicyParam(paramName);
+    	return param == null ? null : param.getWbappValue();
+    }
+
+	/**
+	 * Stages the rows of given select under given stage name, replacing rows staged
+	 * under it before. The select returns the emp id, work date and key id of the
+	 * overlapping archive rows, unused columns may be null.
+	 * @param conn
+	 * @param stage
+	 * @param selectSql
+	 * @param params params of the select
+	 * @return number of staged rows, -1 if the stage table cannot be used
+	 */
+    protected int stageOverlap(DBConnection conn, String stage, String selectSql, Object[] params) {
+    	try {
+    		unstageOverlap(conn, stage);
+    		int cnt = executeSQL(conn, "insert into " + OVERLAP_STAGE_TABLE
+    				+ " (wbos_stage, wbos_emp_id, wbos_work_date, wbos_key_id) select ?, x.* from (" + selectSql + ") x",
+    				concat(new Object[] {stage}, params));
+    		conn.commit();
+    		if (logger.isEnabledFor(org.apache.log4j.Level.DEBUG)) logger.debug("Staged " + cnt + " " + stage + " keys");
+    		return cnt;
+    	}
+    	catch (SQLException e) {
+    		logger.error("Could not stage " + stage + " keys to " + OVERLAP_STAGE_TABLE + ", deleting without stage", e);
+    		try {
+    			conn.rollback();
+    		}
+    		catch (SQLException e2) {
+    			// *** already failing
+    		}
+    		return -1;
+    	}
+    }
+
+	/**
+	 * Deletes the rows of given archive table whose key columns are staged under given stage name
+	 * @param conn
+	 * @param archiveTable
+	 * @param keyColumns columns of the archive table, comma separated
+	 * @param stage
+	 * @param stageColumns matching columns of the stage table, comma separated
+	 * @return
+	 * @throws SQLException
+	 */
+    protected int deleteStaged(DBConnection conn, String archiveTable, String keyColumns, String stage,
+    		String stageColumns) throws SQLException {
+    	return executeSQL(conn, "delete from " + archiveTable + " where (" + keyColumns + ") in (select "
+    			+ stageColumns + " from " + OVERLAP_STAGE_TABLE + " where wbos_stage = ?)", new Object[] {stage});
+    }
+
+	/**
+	 * Removes the rows staged under given stage name
+	 * @param conn
+	 * @param stage
+	 * @throws SQLException
+	 */
+    protected void unstageOverlap(DBConnection conn, String stage) throws SQLException {
+    	executeSQL(conn, "delete from " + OVERLAP_STAGE_TABLE + " where wbos_stage = ?", new Object[] {stage});
+    	conn.commit();
+    }
+
+	/**
+	 * Executes SQL with given params and no clientIds
+	 * @param conn
+	 * @param sql
+	 * @param params
+	 * @return
+	 * @throws SQLException
+	 */
+    protected int executeSQL(DBConnection conn, String sql, Object[] params) throws SQLException {
+    	PreparedStatement ps = null;
+    	int cnt = 0;
+		try {
+			ps = conn.prepareStatement(sql,true, true);
+			for (int i = 0; i < params.length; i++) {
+				ps.setObject(i + 1, params[i]);
+			}
+			cnt = ps.executeUpdate();
+		} 
+		finally {
+			SQLUtil.cleanUp(ps);
+		}
+		return cnt;
+    }
+
+    protected static Object[] concat(Object[] a, Object[] b) {
+    	Object[] ret = new Object[a.length + b.length];
+    	System.arraycopy(a, 0, ret, 0, a.length);
+    	System.arraycopy(b, 0, ret, a.length, b.length);
+    	return ret;
+    }
+
+    /**
+     * Dates of the live and archive rows one table pre-purges, all dates if there is no lower bound.
+     */
+    protected static class PrePurgeWindow {
+    	private final String tableName;
+    	private final Date from;
+    	private final Date to;
+
+    	PrePurgeWindow(String tableName, Date from, Date to) {
+    		this.tableName = tableName;
+    		this.from = from;
+    		this.to = to;
+    	}
+
+    	public String getTableName() {
+    		return tableName;
+    	}
+
+    	public boolean isFull() {
+    		return from == null;
+    	}
+
+    	/**
+    	 * Returns the predicate of the window on given date column after given prefix, empty for the full overlap
+    	 * @param prefix
+    	 * @param dateColumn
+    	 * @return
+    	 */
+    	public String getSql(String prefix, String dateColumn) {
+    		return isFull() ? "" : prefix + dateColumn + " >= ? and " + dateColumn + " < ?";
+    	}
+
+    	public Object[] getParams() {
+    		return isFull() ? new Object[0] : new Object[] {new Timestamp(from.getTime()), new Timestamp(to.getTime())};
+    	}
+
+    	public String toString() {
+    		return isFull() ? "whole overlap" : "from " + DateHelper.convertDateString(from, WBREG_DATE_FORMAT)
+    				+ " to " + DateHelper.convertDateString(to, WBREG_DATE_FORMAT);
+    	}
+    }
+
 }
@@ -0,0 +1,71 @@
+package com.itella.app.wbarchive;
+
+import com.workbrain.app.wbarchive.WBArchiveContext;
+import com.workbrain.app.wbarchive.WBArchiveException;
+import com.workbrain.sql.DBConnection;
+
+/**
+ * Creates and releases WBArchiveContext instances for archive worker threads.
+ * Each worker context holds its own core/archive connection pair so that
+ * workers can commit and rollback independently of each other.
+ */
+public class ArchiveContextFactory {
+
+    private static org.apache.log4j.Logger logger = org.apache.log4j.Logger.getLogger(ArchiveContextFactory.class);
+
+    private ArchiveContextFactory() {
+    }
+
+    /**
+     * Returns a new context with default values and its own connections.
+     *
+     * @return
+     * @throws WBArchiveException
+     */
+    public static WBArchiveContext createWorkerContext() throws WBArchiveException {
+        WBArchiveContext context = new WBArchiveContext();
+        try {
+            context.assignDefaultContextValues();
+        } catch (Exception e) {
+            releaseWorkerContext(context);
+            throw new WBArchiveException("Could not create archive worker context", e);
+        }
+        return context;
+    }
+
+    /**
+     * Commits and closes connections of a context created by <code>createWorkerContext</code>.
+     * Work that should not be kept must be rolled back before releasing.
+     *
+     * @param context
+     */
+    public static void releaseWorkerContext(WBArchiveContext context) {
+        if (context == null) {
+            return;
+        }
+        release(context.getConnectionArchive());
+        release(context.getConnectionCore());
+    }
+
+    private static void release(DBConnection conn) {
+        if (conn == null) {
+            return;
+        }
+        try {
+            conn.commit();
+        }
+        catch (Exception ex) {
+            if (logger.isEnabledFor(org.apache.log4j.Level.DEBUG))
+                logger.debug("Error when commit the transaction", ex);
+        }
+        finally {
+            try {
+                conn.close();
+            }
+            catch (Exception ex) {
+                if (logger.isEnabledFor(org.apache.log4j.Level.DEBUG))
+                    logger.debug("Error when closing the connection", ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,468 @@
+package com.itella.app.wbarchive;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.itella.app.wbarchive.model.BoundWhereClause;
+import com.workbrain.sql.DBConnection;
+import com.workbrain.sql.SQLUtil;
+
+/**
+ * Binary spool file for staging archived rows of DB archive mode, a compact
+ * alternative to DataLoader XML files.
+ * <p>
+ * The file starts with a header holding the table name and the column schema,
+ * followed by blocks of rows. Each block is prefixed with its row count, stored
+ * length and raw length, and is deflated if the header says so. Values are written
+ * by the column kinds of <code>StreamingTableCopier</code> with a null flag each.
+ * Blocks are written through a <code>FileChannel</code> and read back with positional
+ * reads into a reused heap buffer. The file is not memory mapped, a mapping stays open
+ * until garbage collected and keeps Windows from truncating or deleting the file.
+ * <pre>
+ * header : int magic, short version, byte flags, utf table, int columns,
+ *          columns x (utf name, int sql type, byte kind)
+ * block  : int rows, int stored length, int raw length, stored bytes
+ * </pre>
+ */
+public class BinarySpool {
+
+    private static org.apache.log4j.Logger logger = org.apache.log4j.Logger.getLogger(BinarySpool.class);
+
+    public static final String FILE_EXT = ".spool";
+    public static final int DEFAULT_BLOCK_ROWS = 1000;
+
+    private static final int MAGIC = 0x57425350; // WBSP
+    private static final short VERSION = 1;
+    private static final byte FLAG_DEFLATED = 1;
+    private static final int BLOCK_HEADER_LENGTH = 12;
+    /** bytes read for the header, which holds the column schema */
+    private static final int HEADER_READ = 1024 * 1024;
+
+    private final File file;
+    private boolean compress;
+    private int blockRows = DEFAULT_BLOCK_ROWS;
+
+    public BinarySpool(File file) {
+        this.file = file;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public void setCompress(boolean v) {
+        compress = v;
+    }
+
+    public void setBlockRows(int v) {
+        blockRows = v > 0 ? v : DEFAULT_BLOCK_ROWS;
+    }
+
+    /**
+     * Writes the rows of given table selected by given where clause to the spool
+     * file, replacing its content.
+     *
+     * @param source
+     * @param tableName
+     * @param where
+     * @param fetchSize
+     * @return number of written rows
+     * @throws SQLException
+     * @throws IOException
+     */
+    public int write(DBConnection source, String tableName, BoundWhereClause where, int fetchSize)
+            throws SQLException, IOException {
+        PreparedStatement select = null;
+        ResultSet rs = null;
+        RandomAccessFile raf = null;
+        int cnt = 0;
+        try {
+            long s = System.currentTimeMillis();
+            select = source.prepareStatement("SELECT * FROM " + tableName + " WHERE " + where.getSql(),
+                ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            select.setFetchSize(fetchSize);
+            where.bind(select, 1);
+            rs = select.executeQuery();
+
+            ResultSetMetaData md = rs.getMetaData();
+            int[] sourceIndexes = StreamingTableCopier.getCopiedColumns(source, md);
+            int[] kinds = new int[sourceIndexes.length];
+
+            File dir = file.getParentFile();
+            if (dir != null && !dir.exists()) {
+                dir.mkdirs();
+            }
+            raf = new RandomAccessFile(file, "rw");
+            raf.setLength(0);
+            FileChannel channel = raf.getChannel();
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * 1024);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeByte(compress ? FLAG_DEFLATED : 0);
+            out.writeUTF(tableName);
+            out.writeInt(sourceIndexes.length);
+            for (int i = 0; i < sourceIndexes.length; i++) {
+                int type = md.getColumnType(sourceIndexes[i]);
+                kinds[i] = StreamingTableCopier.getKind(type);
+                out.writeUTF(md.getColumnName(sourceIndexes[i]));
+                out.writeInt(type);
+                out.writeByte(kinds[i]);
+            }
+            out.flush();
+            writeFully(channel, ByteBuffer.wrap(bytes.toByteArray()));
+            bytes.reset();
+
+            Deflater deflater = compress ? new Deflater(Deflater.BEST_SPEED) : null;
+            try {
+                int rows = 0;
+                while (rs.next()) {
+                    for (int i = 0; i < sourceIndexes.length; i++) {
+                        writeValue(out, kinds[i],
+                            StreamingTableCopier.readValue(rs, sourceIndexes[i], kinds[i]));
+                    }
+                    cnt++;
+                    if (++rows == blockRows) {
+                        out.flush();
+                        writeBlock(channel, rows, bytes, deflater);
+                        rows = 0;
+                    }
+                }
+                if (rows > 0) {
+                    out.flush();
+                    writeBlock(channel, rows, bytes, deflater);
+                }
+            } finally {
+                if (deflater != null) {
+                    deflater.end();
+                }
+            }
+            channel.force(false);
+            if (logger.isEnabledFor(org.apache.log4j.Level.DEBUG)) {
+                logger.debug("Spooled " + cnt + " rows of " + tableName + " to " + file.length()
+                    + " bytes in " + (System.currentTimeMillis() - s) + " millis");
+            }
+        } finally {
+            SQLUtil.cleanUp(select, rs);
+            if (raf != null) {
+                raf.close();
+            }
+        }
+        return cnt;
+    }
+
+    /**
+     * Inserts the rows of the spool file to the table named in its header.
+     *
+     * @param target
+     * @param batchSize
+     * @return number of inserted rows
+     * @throws SQLException
+     * @throws IOException if the file is not a spool file or is truncated
+     */
+    public int load(DBConnection target, int batchSize) throws SQLException, IOException {
+        PreparedStatement insert = null;
+        RandomAccessFile raf = null;
+        int cnt = 0;
+        try {
+            long s = System.currentTimeMillis();
+            raf = new RandomAccessFile(file, "r");
+            BlockReader reader = new BlockReader(raf.getChannel());
+
+            ByteBuffer header = reader.read(0, (int) Math.min(reader.size, HEADER_READ));
+            if (header.remaining() < 7 || header.getInt() != MAGIC) {
+                throw new IOException(file + " is not a spool file");
+            }
+            short version = header.getShort();
+            if (version != VERSION) {
+                throw new IOException("Unsupported spool version : " + version + " in " + file);
+            }
+            boolean deflated = (header.get() & FLAG_DEFLATED) != 0;
+            String tableName;
+            String[] names;
+            int[] types;
+            int[] kinds;
+            try {
+                tableName = readUTF(header);
+                int columnCount = header.getInt();
+                names = new String[columnCount];
+                types = new int[columnCount];
+                kinds = new int[columnCount];
+                for (int i = 0; i < columnCount; i++) {
+                    names[i] = readUTF(header);
+                    types[i] = header.getInt();
+                    kinds[i] = header.get();
+                }
+            } catch (BufferUnderflowException e) {
+                throw (IOException) new IOException("Spool header of " + file + " is truncated").initCause(e);
+            }
+            int columnCount = names.length;
+            long position = header.position();
+
+            insert = target.prepareStatement(StreamingTableCopier.getInsertSql(tableName, names));
+            Inflater inflater = deflated ? new Inflater() : null;
+            try {
+                int pending = 0;
+                while (position < reader.size) {
+                    ByteBuffer blockHeader = reader.read(position, BLOCK_HEADER_LENGTH);
+                    int rows = blockHeader.getInt();
+                    int storedLength = blockHeader.getInt();
+                    int rawLength = blockHeader.getInt();
+                    position += BLOCK_HEADER_LENGTH;
+                    // *** the buffer is reused by the next read, the block is done with before that
+                    ByteBuffer block = reader.read(position, storedLength);
+                    position += storedLength;
+                    if (inflater != null) {
+                        block = inflate(inflater, block, storedLength, rawLength);
+                    }
+                    for (int r = 0; r < rows; r++) {
+                        for (int i = 0; i < columnCount; i++) {
+                            StreamingTableCopier.writeValue(insert, i + 1, kinds[i], types[i],
+                                readValue(block, kinds[i]));
+                        }
+                        insert.addBatch();
+                        cnt++;
+                        if (++pending == batchSize) {
+                            insert.executeBatch();
+                            pending = 0;
+                        }
+                    }
+                }
+                if (pending > 0) {
+                    insert.executeBatch();
+                }
+            } finally {
+                if (inflater != null) {
+                    inflater.end();
+                }
+            }
+            if (logger.isEnabledFor(org.apache.log4j.Level.DEBUG)) {
+                logger.debug("Loaded " + cnt + " rows of " + tableName + " from " + file
+                    + " in " + (System.currentTimeMillis() - s) + " millis");
+            }
+        } finally {
+            SQLUtil.cleanUp(insert);
+            if (raf != null) {
+                raf.close();
+            }
+        }
+        return cnt;
+    }
+
+    private static void writeBlock(FileChannel channel, int rows, ByteArrayOutputStream bytes,
+                                   Deflater deflater) throws IOException {
+        byte[] raw = bytes.toByteArray();
+        bytes.reset();
+        byte[] stored = raw;
+        int storedLength = raw.length;
+        if (deflater != null) {
+            deflater.reset();
+            deflater.setInput(raw);
+            deflater.finish();
+            stored = new byte[Math.max(64, raw.length + raw.length / 100 + 64)];
+            storedLength = 0;
+            while (!deflater.finished()) {
+                if (storedLength == stored.length) {
+                    byte[] grown = new byte[stored.length * 2];
+                    System.arraycopy(stored, 0, grown, 0, storedLength);
+                    stored = grown;
+                }
+                storedLength += deflater.deflate(stored, storedLength, stored.length - storedLength);
+            }
+        }
+        ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_LENGTH);
+        header.putInt(rows).putInt(storedLength).putInt(raw.length);
+        header.flip();
+        writeFully(channel, header);
+        writeFully(channel, ByteBuffer.wrap(stored, 0, storedLength));
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+    }
+
+    private static ByteBuffer inflate(Inflater inflater, ByteBuffer block, int storedLength, int rawLength)
+            throws IOException {
+        byte[] raw = new byte[rawLength];
+        inflater.reset();
+        inflater.setInput(block.array(), block.arrayOffset() + block.position(), storedLength);
+        try {
+            int n = 0;
+            while (n < rawLength && !inflater.finished()) {
+                int k = inflater.inflate(raw, n, rawLength - n);
+                if (k == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                n += k;
+            }
+            if (n != rawLength) {
+                throw new IOException("Spool block is truncated, expected " + rawLength + " bytes, got " + n);
+            }
+        } catch (DataFormatException e) {
+            throw (IOException) new IOException("Spool block is corrupt : " + e.getMessage()).initCause(e);
+        }
+        return ByteBuffer.wrap(raw);
+    }
+
+    private static void writeValue(DataOutputStream out, int kind, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(0);
+            return;
+        }
+        out.writeByte(1);
+        switch (kind) {
+        case StreamingTableCopier.KIND_LONG:
+            out.writeLong(((Long) value).longValue());
+            break;
+        case StreamingTableCopier.KIND_DECIMAL:
+            BigDecimal d = (BigDecimal) value;
+            out.writeInt(d.scale());
+            writeBytes(out, d.unscaledValue().toByteArray());
+            break;
+        case StreamingTableCopier.KIND_DOUBLE:
+            out.writeDouble(((Double) value).doubleValue());
+            break;
+        case StreamingTableCopier.KIND_STRING:
+            // *** not writeUTF, clobs can be longer than 64K
+            writeBytes(out, ((String) value).getBytes("UTF-8"));
+            break;
+        case StreamingTableCopier.KIND_TIMESTAMP:
+            Timestamp ts = (Timestamp) value;
+            out.writeLong(ts.getTime());
+            out.writeInt(ts.getNanos());
+            break;
+        case StreamingTableCopier.KIND_TIME:
+            out.writeLong(((Time) value).getTime());
+            break;
+        case StreamingTableCopier.KIND_BYTES:
+        case StreamingTableCopier.KIND_BLOB:
+            writeBytes(out, (byte[]) value);
+            break;
+        default:
+            if (!(value instanceof Serializable)) {
+                throw new IOException("Value of type " + value.getClass().getName() + " cannot be spooled");
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            ObjectOutputStream oos = new ObjectOutputStream(bytes);
+            oos.writeObject(value);
+            oos.close();
+            writeBytes(out, bytes.toByteArray());
+            break;
+        }
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] b) throws IOException {
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    private static Object readValue(ByteBuffer in, int kind) throws IOException {
+        if (in.get() == 0) {
+            return null;
+        }
+        switch (kind) {
+        case StreamingTableCopier.KIND_LONG:
+            return Long.valueOf(in.getLong());
+        case StreamingTableCopier.KIND_DECIMAL:
+            int scale = in.getInt();
+            return new BigDecimal(new BigInteger(readBytes(in)), scale);
+        case StreamingTableCopier.KIND_DOUBLE:
+            return Double.valueOf(in.getDouble());
+        case StreamingTableCopier.KIND_STRING:
+            return new String(readBytes(in), "UTF-8");
+        case StreamingTableCopier.KIND_TIMESTAMP:
+            Timestamp ts = new Timestamp(in.getLong());
+            ts.setNanos(in.getInt());
+            return ts;
+        case StreamingTableCopier.KIND_TIME:
+            return new Time(in.getLong());
+        case StreamingTableCopier.KIND_BYTES:
+        case StreamingTableCopier.KIND_BLOB:
+            return readBytes(in);
+        default:
+            ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(readBytes(in)));
+            try {
+                return ois.readObject();
+            } catch (ClassNotFoundException e) {
+                throw (IOException) new IOException("Spooled value cannot be read : " + e.getMessage()).initCause(e);
+            } finally {
+                ois.close();
+            }
+        }
+    }
+
+    private static byte[] readBytes(ByteBuffer in) {
+        byte[] b = new byte[in.getInt()];
+        in.get(b);
+        return b;
+    }
+
+    /**
+     * Reads a string written by <code>DataOutputStream.writeUTF</code>, names are ascii
+     * in practice but modified UTF-8 is decoded as UTF-8 which is the same for them.
+     */
+    private static String readUTF(ByteBuffer in) throws IOException {
+        byte[] b = new byte[in.getShort() & 0xFFFF];
+        in.get(b);
+        return new String(b, "UTF-8");
+    }
+
+    /**
+     * Reads ranges of a file into a heap buffer that is reused by the next read.
+     */
+    private static class BlockReader {
+        private final FileChannel channel;
+        private final long size;
+        private ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+
+        BlockReader(FileChannel channel) throws IOException {
+            this.channel = channel;
+            this.size = channel.size();
+        }
+
+        /**
+         * Returns a buffer holding the given range of the file, valid until the next read.
+         */
+        ByteBuffer read(long position, int length) throws IOException {
+            if (length < 0 || position + length > size) {
+                throw new IOException("Spool file is truncated at " + position);
+            }
+            if (buffer.capacity() < length) {
+                buffer = ByteBuffer.allocate(Math.max(length, buffer.capacity() * 2));
+            }
+            buffer.clear();
+            buffer.limit(length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    throw new IOException("Spool file is truncated at " + (position + buffer.position()));
+                }
+            }
+            buffer.flip();
+            return buffer;
+        }
+    }
+}
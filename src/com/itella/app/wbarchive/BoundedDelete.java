@@ -0,0 +1,234 @@
+package com.itella.app.wbarchive;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import com.itella.app.wbarchive.model.BoundWhereClause;
+import com.workbrain.sql.DBConnection;
+import com.workbrain.sql.DBServer;
+import com.workbrain.sql.SQLUtil;
+
+/**
+ * Deletes the rows of a where clause in statements of at most <code>batchRows</code>
+ * rows, repeated until a statement deletes fewer rows.
+ * <p>
+ * SQL Server uses <code>DELETE TOP (n)</code>, DB2 deletes from a fullselect with
+ * <code>FETCH FIRST n ROWS ONLY</code> and Oracle limits by <code>ROWNUM</code>. Kept
+ * below the 5000 locks at which SQL Server escalates a statement to a table lock, each
+ * statement holds row locks only. With <code>commitBatches</code> every statement is
+ * committed, which lets the transaction log truncate between statements, but the
+ * delete is no longer atomic; callers allow it only where no other work shares the
+ * transaction.
+ */
+public class BoundedDelete {
+
+    private static org.apache.log4j.Logger logger = org.apache.log4j.Logger.getLogger(BoundedDelete.class);
+
+    public static final int DEFAULT_BATCH_ROWS = 4000;
+
+    private static final String SQL_MSSQL_ESCALATIONS = "SELECT COALESCE(SUM(index_lock_promotion_count), 0)"
+        + " FROM sys.dm_db_index_operational_stats(DB_ID(), OBJECT_ID(?), NULL, NULL)";
+    private static final String SQL_DB2_ESCALATIONS = "SELECT LOCK_ESCALS"
+        + " FROM TABLE(MON_GET_CONNECTION(MON_GET_APPLICATION_HANDLE(), -1)) AS t";
+
+    private final DBConnection conn;
+    private final int batchRows;
+    private final boolean commitBatches;
+    private boolean escalationsVisible = true;
+    private DeleteStatistics lastStatistics;
+
+    public BoundedDelete(DBConnection conn, int batchRows, boolean commitBatches) {
+        this.conn = conn;
+        this.batchRows = batchRows > 0 ? batchRows : DEFAULT_BATCH_ROWS;
+        this.commitBatches = commitBatches;
+    }
+
+    /**
+     * Deletes the rows of given table matching given where clause.
+     *
+     * @param tableName
+     * @param whereClause
+     * @return number of deleted rows
+     * @throws SQLException
+     */
+    public int delete(String tableName, BoundWhereClause whereClause) throws SQLException {
+        DeleteStatistics stats = new DeleteStatistics(tableName, batchRows);
+        lastStatistics = stats;
+        long start = System.currentTimeMillis();
+        String sql = getSql(tableName, whereClause);
+        PreparedStatement ps = null;
+        try {
+            ps = conn.prepareStatement(sql);
+            long escalations = getLockEscalations(tableName);
+            int rows;
+            do {
+                long s = System.currentTimeMillis();
+                whereClause.bind(ps, 1);
+                rows = ps.executeUpdate();
+                if (commitBatches) {
+                    conn.commit();
+                }
+                long escalationsAfter = getLockEscalations(tableName);
+                stats.addIteration(rows, System.currentTimeMillis() - s,
+                    escalations < 0 || escalationsAfter < 0 ? -1 : escalationsAfter - escalations);
+                escalations = escalationsAfter;
+                if (logger.isEnabledFor(org.apache.log4j.Level.DEBUG)) {
+                    logger.debug("Deleted " + rows + " rows of " + tableName + " in "
+                        + stats.getIterationMillis(stats.getIterations() - 1) + " millis");
+                }
+            } while (rows >= batchRows);
+        } finally {
+            SQLUtil.cleanUp(ps);
+            stats.elapsedMillis = System.currentTimeMillis() - start;
+        }
+        return stats.getRows();
+    }
+
+    /**
+     * Returns the statistics of the last delete.
+     *
+     * @return
+     */
+    public DeleteStatistics getLastStatistics() {
+        return lastStatistics;
+    }
+
+    String getSql(String tableName, BoundWhereClause whereClause) {
+        int id = conn.getDBServer().getId();
+        if (id == DBServer.MSSQL_ID) {
+            return "DELETE TOP (" + batchRows + ") FROM " + tableName + " WHERE " + whereClause.getSql();
+        }
+        else if (id == DBServer.DB2_ID) {
+            if (conn.getDBServer().isDB2_OS390()) {
+                return "DELETE FROM " + tableName + " WHERE " + whereClause.getSql()
+                    + " FETCH FIRST " + batchRows + " ROWS ONLY";
+            }
+            return "DELETE FROM (SELECT 1 FROM " + tableName + " WHERE " + whereClause.getSql()
+                + " FETCH FIRST " + batchRows + " ROWS ONLY)";
+        }
+        return "DELETE FROM " + tableName + " WHERE (" + whereClause.getSql() + ") AND ROWNUM <= " + batchRows;
+    }
+
+    /**
+     * Returns the lock escalations counted so far for given table on SQL Server or for
+     * the connection on DB2 LUW, -1 if they cannot be read. Oracle does not escalate.
+     */
+    private long getLockEscalations(String tableName) {
+        int id = conn.getDBServer().getId();
+        boolean mssql = id == DBServer.MSSQL_ID;
+        if (!escalationsVisible || !(mssql || (id == DBServer.DB2_ID && !conn.getDBServer().isDB2_OS390()))) {
+            return -1;
+        }
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try {
+            ps = conn.prepareStatement(mssql ? SQL_MSSQL_ESCALATIONS : SQL_DB2_ESCALATIONS);
+            if (mssql) {
+                ps.setString(1, tableName);
+            }
+            rs = ps.executeQuery();
+            return rs.next() ? rs.getLong(1) : -1;
+        } catch (SQLException e) {
+            // *** needs VIEW SERVER STATE or monitor privileges, not asked again
+            escalationsVisible = false;
+            if (logger.isEnabledFor(org.apache.log4j.Level.DEBUG)) {
+                logger.debug("Lock escalations not readable : " + e.getMessage());
+            }
+            return -1;
+        } finally {
+            SQLUtil.cleanUp(ps, rs);
+        }
+    }
+
+    /**
+     * Rows, latency and lock escalations of the statements of one delete.
+     */
+    public static class DeleteStatistics {
+        private final String tableName;
+        private final int batchRows;
+        private int rows;
+        private int iterations;
+        private long[] iterationMillis = new long[16];
+        private long maxMillis;
+        private long totalMillis;
+        private long lockEscalations;
+        private boolean escalationsKnown = true;
+        private long elapsedMillis;
+
+        DeleteStatistics(String tableName, int batchRows) {
+            this.tableName = tableName;
+            this.batchRows = batchRows;
+        }
+
+        void addIteration(int rowCount, long millis, long escalations) {
+            if (iterations == iterationMillis.length) {
+                long[] grown = new long[iterations * 2];
+                System.arraycopy(iterationMillis, 0, grown, 0, iterations);
+                iterationMillis = grown;
+            }
+            iterationMillis[iterations++] = millis;
+            rows += rowCount;
+            totalMillis += millis;
+            maxMillis = Math.max(maxMillis, millis);
+            if (escalations < 0) {
+                escalationsKnown = false;
+            }
+            else {
+                lockEscalations += escalations;
+            }
+        }
+
+        public int getRows() {
+            return rows;
+        }
+
+        public int getIterations() {
+            return iterations;
+        }
+
+        /**
+         * Returns the millis of given statement, including its commit.
+         *
+         * @param iteration
+         * @return
+         */
+        public long getIterationMillis(int iteration) {
+            return iterationMillis[iteration];
+        }
+
+        public long getMaxIterationMillis() {
+            return maxMillis;
+        }
+
+        public long getAverageIterationMillis() {
+            return iterations == 0 ? 0 : totalMillis / iterations;
+        }
+
+        /**
+         * Returns the lock escalations during the delete, -1 if they could not be read.
+         *
+         * @return
+         */
+        public long getLockEscalations() {
+            return escalationsKnown ? lockEscalations : -1;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+
+        public String toString() {
+            StringBuilder sb = new StringBuilder(200);
+            sb.append("Deleted ").append(rows).append(" rows of ").append(tableName)
+                .append(" in ").append(iterations).append(" statements of ").append(batchRows)
+                .append(" rows, ").append(elapsedMillis).append(" millis")
+                .append(", statement avg ").append(getAverageIterationMillis())
+                .append(" max ").append(maxMillis).append(" millis");
+            if (escalationsKnown) {
+                sb.append(", lock escalations ").append(lockEscalations);
+            }
+            return sb.toString();
+        }
+    }
+}
@@ -4,6 +4,7 @@ package com.itella.app.wbarchive;
 import java.sql.SQLException;
 import com.workbrain.app.wbarchive.WBArchive;
 import com.workbrain.app.wbarchive.WBArchiveException;
+import com.workbrain.sql.DBConnection;
 
 /**
  * Extension class for archiving employee schedule data.
@@ -15,28 +16,34 @@ public class ItellaArchiveEmployeeScheduleData extends AbtractItellaArchiveData
 
     private static org.apache.log4j.Logger logger = org.apache.log4j.Logger.getLogger(ItellaArchiveEmployeeScheduleData.class);
 
-    private static final String SQL_DELETE_EMP_SCHD_DTL_LAYER = "delete from  ARCHIVE.EMP_SCHD_DTL_LAYER WHERE (emp_id, eschdl_work_date) IN (SELECT emp_id, eschdl_work_date FROM workbrain.EMP_SCHD_DTL_LAYER)";
-    private static final String SQL_DELETE_EMPLOYEE_SCHED_DTL = "delete from  ARCHIVE.EMPLOYEE_SCHED_DTL WHERE (emp_id, eschd_work_date) IN (SELECT emp_id, eschd_work_date FROM workbrain.EMPLOYEE_SCHED_DTL)";
-    private static final String SQL_DELETE_EMPLOYEE_SCHEDULE = "delete from  ARCHIVE.EMPLOYEE_SCHEDULE WHERE (emp_id, work_date) IN (SELECT emp_id, work_date FROM workbrain.EMPLOYEE_SCHEDULE )";
-    
     @Override
     public void processArchive(WBArchive wbarchive) throws WBArchiveException , SQLException{
+    	DBConnection conn = wbarchive.getDBConnectionCore();
+    	PrePurgeWindow[] windows = {
+    			getPrePurgeWindow(wbarchive, "EMP_SCHD_DTL_LAYER"),
+    			getPrePurgeWindow(wbarchive, "EMPLOYEE_SCHED_DTL"),
+    			getPrePurgeWindow(wbarchive, "EMPLOYEE_SCHEDULE")};
     	int cnt;
-    	cnt = executeSQL(wbarchive.getDBConnectionCore(), SQL_DELETE_EMP_SCHD_DTL_LAYER);
-    	if (logger.isEnabledFor(org.apache.log4j.Level.DEBUG)) logger.debug("Purged " + cnt + " EMP_SCHD_DTL_LAYER records");
-    	wbarchive.getDBConnectionCore().commit();
+    	cnt = deleteOverlap(conn, windows[0], "ARCHIVE.EMP_SCHD_DTL_LAYER", "workbrain.EMP_SCHD_DTL_LAYER",
+    			"emp_id, eschdl_work_date", "eschdl_work_date");
+    	if (logger.isEnabledFor(org.apache.log4j.Level.DEBUG)) logger.debug("Purged " + cnt + " EMP_SCHD_DTL_LAYER records, " + windows[0]);
+    	conn.commit();
     	
-    	cnt = executeSQL(wbarchive.getDBConnectionCore(), SQL_DELETE_EMPLOYEE_SCHED_DTL);
-    	if (logger.isEnabledFor(org.apache.log4j.Level.DEBUG)) logger.debug("Purged " + cnt + " EMPLOYEE_SCHED_DTL records");
-    	wbarchive.getDBConnectionCore().commit();
+    	cnt = deleteOverlap(conn, windows[1], "ARCHIVE.EMPLOYEE_SCHED_DTL", "workbrain.EMPLOYEE_SCHED_DTL",
+    			"emp_id, eschd_work_date", "eschd_work_date");
+    	if (logger.isEnabledFor(org.apache.log4j.Level.DEBUG)) logger.debug("Purged " + cnt + " EMPLOYEE_SCHED_DTL records, " + windows[1]);
+    	conn.commit();
     	
-    	cnt = executeSQL(wbarchive.getDBConnectionCore(), SQL_DELETE_EMPLOYEE_SCHEDULE);
-    	if (logger.isEnabledFor(org.apache.log4j.Level.DEBUG)) logger.debug("Purged " + cnt + " EMPLOYEE_SCHEDULE records");
-    	wbarchive.getDBConnectionCore().commit();
+    	cnt = deleteOverlap(conn, windows[2], "ARCHIVE.EMPLOYEE_SCHEDULE", "workbrain.EMPLOYEE_SCHEDULE",
+    			"emp_id, work_date", "work_date");
+    	if (logger.isEnabledFor(org.apache.log4j.Level.DEBUG)) logger.debug("Purged " + cnt + " EMPLOYEE_SCHEDULE records, " + windows[2]);
+    	conn.commit();
     	
-    	wbarchive.appendTransactionMessage(". Purged " + cnt + " EMPLOYEE_SCHEDULE records from archive instance prior to run.");
+    	wbarchive.appendTransactionMessage(". Purged " + cnt + " EMPLOYEE_SCHEDULE records from archive instance prior to run ("
+    			+ windows[2] + ").");
     	
     	super.processArchive(wbarchive);
+    	saveWatermarks(wbarchive, windows);
     }
 
 
@@ -4,59 +4,81 @@ import java.sql.SQLException;
 
 import com.workbrain.app.wbarchive.WBArchive;
 import com.workbrain.app.wbarchive.WBArchiveException;
+import com.workbrain.sql.DBConnection;
 /**
  * Extension class for archiving employee schedule data.
  * The duplicate records in archive instance needs to be purged before running policy.
  * The duplicate records in core instance are formed due to Itella importing records prior to Hands Off Date
- * 
+ *
  */
 public class ItellaArchivePayrollData extends AbtractItellaArchiveData {
 
     private static org.apache.log4j.Logger logger = org.apache.log4j.Logger.getLogger(ItellaArchivePayrollData.class);
 
-    private static final String SQL_DELETE_work_detail_adjust = "delete from archive.work_detail_adjust  where (emp_id, wrkda_work_date) in    ( " +
-                                                        " select emp_id, wrkda_work_date " +
-                                                        " from workbrain.work_detail_adjust )";
-    
-    private static final String SQL_DELETE_employee_balance_log = "delete from archive.employee_balance_log where (emp_id, wrks_work_date) in (SELECT emp_id, wrks_work_date FROM workbrain.employee_balance_log) ";
-    private static final String SQL_DELETE_clock_tran_processed = "delete from archive.clock_tran_processed where archive.clock_tran_processed.wrks_id in " +
-        "(       select ar.wrks_id "  + 
-        "        from workbrain.work_summary wb, archive.work_summary ar "  + 
-        "        where wb.emp_id = ar.emp_id and wb.wrks_work_date = ar.wrks_work_date)";
-    
-    
-    private static final String SQL_DELETE_work_detail = "      delete from  ARCHIVE.work_detail WHERE (wrks_id) IN ( "+
-                                                " select ar.wrks_id "+
-                                                " from workbrain.work_summary wb, archive.work_summary ar "+ 
-                                                " where wb.emp_id = ar.emp_id "+
-                                                " and wb.wrks_work_date = ar.wrks_work_date)";
-    private static final String SQL_DELETE_work_summary = "delete from  ARCHIVE.work_summary WHERE (emp_id, wrks_work_date) IN (SELECT emp_id, wrks_work_date FROM workbrain.work_summary)";    
-    
+    private static final String SQL_SELECT_work_summary_overlap = "select ar.emp_id, ar.wrks_work_date, ar.wrks_id " +
+        " from workbrain.work_summary wb, archive.work_summary ar " +
+        " where wb.emp_id = ar.emp_id and wb.wrks_work_date = ar.wrks_work_date";
+    private static final String SQL_DELETE_clock_tran_processed = "delete from archive.clock_tran_processed where archive.clock_tran_processed.wrks_id in ";
+    private static final String SQL_DELETE_work_detail = "      delete from  ARCHIVE.work_detail WHERE (wrks_id) IN ";
+
+    private static final String STAGE_work_summary = "WORK_SUMMARY";
+
     public void processArchive(WBArchive wbarchive) throws WBArchiveException , SQLException{
+    	DBConnection conn = wbarchive.getDBConnectionCore();
+    	PrePurgeWindow[] windows = {
+    			getPrePurgeWindow(wbarchive, "work_detail_adjust"),
+    			getPrePurgeWindow(wbarchive, "employee_balance_log"),
+    			getPrePurgeWindow(wbarchive, "work_summary")};
     	int cnt;
-    	cnt = executeSQL(wbarchive.getDBConnectionCore(), SQL_DELETE_work_detail_adjust);
-    	if (logger.isEnabledFor(org.apache.log4j.Level.DEBUG)) logger.debug("Purged " + cnt + " EMP_SCHD_DTL_LAYER records");
-    	wbarchive.getDBConnectionCore().commit();
-    	
-    	cnt = executeSQL(wbarchive.getDBConnectionCore(), SQL_DELETE_employee_balance_log);
-    	if (logger.isEnabledFor(org.apache.log4j.Level.DEBUG)) logger.debug("Purged " + cnt + " employee_balance_log records");
-    	wbarchive.getDBConnectionCore().commit();
-    	
-    	cnt = executeSQL(wbarchive.getDBConnectionCore(), SQL_DELETE_clock_tran_processed);
-    	if (logger.isEnabledFor(org.apache.log4j.Level.DEBUG)) logger.debug("Purged " + cnt + " clock_tran_processed records");
-    	wbarchive.getDBConnectionCore().commit();
-    	
-    	cnt = executeSQL(wbarchive.getDBConnectionCore(), SQL_DELETE_work_detail);
-    	if (logger.isEnabledFor(org.apache.log4j.Level.DEBUG)) logger.debug("Purged " + cnt + " work_detail records");
-    	wbarchive.getDBConnectionCore().commit();
-    	
-    	cnt = executeSQL(wbarchive.getDBConnectionCore(), SQL_DELETE_work_summary);
-    	if (logger.isEnabledFor(org.apache.log4j.Level.DEBUG)) logger.debug("Purged " + cnt + " work_summary records");
-    	wbarchive.getDBConnectionCore().commit();
-    	
-    	wbarchive.appendTransactionMessage(". Purged " + cnt + " WORK_SUMMARY records from archive instance prior to run.");
+    	cnt = deleteOverlap(conn, windows[0], "archive.work_detail_adjust", "workbrain.work_detail_adjust",
+    			"emp_id, wrkda_work_date", "wrkda_work_date");
+    	if (logger.isEnabledFor(org.apache.log4j.Level.DEBUG)) logger.debug("Purged " + cnt + " work_detail_adjust records, " + windows[0]);
+    	conn.commit();
+
+    	cnt = deleteOverlap(conn, windows[1], "archive.employee_balance_log", "workbrain.employee_balance_log",
+    			"emp_id, wrks_work_date", "wrks_work_date");
+    	if (logger.isEnabledFor(org.apache.log4j.Level.DEBUG)) logger.debug("Purged " + cnt + " employee_balance_log records, " + windows[1]);
+    	conn.commit();
+
+    	// *** the work_summary overlap drives three deletes, it is joined once into the stage
+    	String overlap = SQL_SELECT_work_summary_overlap + windows[2].getSql(" and ", "wb.wrks_work_date");
+    	Object[] params = windows[2].getParams();
+    	if (stageOverlap(conn, STAGE_work_summary, overlap, params) >= 0) {
+    		cnt = deleteStaged(conn, "archive.clock_tran_processed", "wrks_id", STAGE_work_summary, "wbos_key_id");
+    		if (logger.isEnabledFor(org.apache.log4j.Level.DEBUG)) logger.debug("Purged " + cnt + " clock_tran_processed records");
+    		conn.commit();
+
+    		cnt = deleteStaged(conn, "archive.work_detail", "wrks_id", STAGE_work_summary, "wbos_key_id");
+    		if (logger.isEnabledFor(org.apache.log4j.Level.DEBUG)) logger.debug("Purged " + cnt + " work_detail records");
+    		conn.commit();
+
+    		cnt = deleteStaged(conn, "archive.work_summary", "wrks_id", STAGE_work_summary, "wbos_key_id");
+    		if (logger.isEnabledFor(org.apache.log4j.Level.DEBUG)) logger.debug("Purged " + cnt + " work_summary records, " + windows[2]);
+    		conn.commit();
+
+    		unstageOverlap(conn, STAGE_work_summary);
+    	}
+    	else {
+    		String ids = "(select ar.wrks_id from (" + overlap + ") ar)";
+    		cnt = executeSQL(conn, SQL_DELETE_clock_tran_processed + ids, params);
+    		if (logger.isEnabledFor(org.apache.log4j.Level.DEBUG)) logger.debug("Purged " + cnt + " clock_tran_processed records");
+    		conn.commit();
+
+    		cnt = executeSQL(conn, SQL_DELETE_work_detail + ids, params);
+    		if (logger.isEnabledFor(org.apache.log4j.Level.DEBUG)) logger.debug("Purged " + cnt + " work_detail records");
+    		conn.commit();
+
+    		cnt = deleteOverlap(conn, windows[2], "ARCHIVE.work_summary", "workbrain.work_summary",
+    				"emp_id, wrks_work_date", "wrks_work_date");
+    		if (logger.isEnabledFor(org.apache.log4j.Level.DEBUG)) logger.debug("Purged " + cnt + " work_summary records, " + windows[2]);
+    		conn.commit();
+    	}
+
+    	wbarchive.appendTransactionMessage(". Purged " + cnt + " WORK_SUMMARY records from archive instance prior to run ("
+    			+ windows[2] + ").");
     	super.processArchive(wbarchive);
-    	
+    	saveWatermarks(wbarchive, windows);
+
     }
 
 }
@@ -4,6 +4,7 @@ package com.itella.app.wbarchive;
 import java.sql.SQLException;
 import com.workbrain.app.wbarchive.WBArchive;
 import com.workbrain.app.wbarchive.WBArchiveException;
+import com.workbrain.sql.DBConnection;
 
 /**
  * Extension class for archiving prod comp data.
@@ -14,18 +15,20 @@ public class ItellaArchiveProdCompData extends AbtractItellaArchiveData {
 
     private static org.apache.log4j.Logger logger = org.apache.log4j.Logger.getLogger(ItellaArchiveProdCompData.class);
 
-    private static final String SQL_DELETE_PROD_COMP = "delete from archive.itel_prodcomp WHERE (ipg_id, ipc_date)  IN (SELECT ipg_id, ipc_date FROM itel_prodcomp)";
-    
     @Override
     public void processArchive(WBArchive wbarchive) throws WBArchiveException , SQLException{
+    	DBConnection conn = wbarchive.getDBConnectionCore();
+    	PrePurgeWindow[] windows = {getPrePurgeWindow(wbarchive, "itel_prodcomp")};
     	int cnt;
-    	cnt = executeSQL(wbarchive.getDBConnectionCore(), SQL_DELETE_PROD_COMP);
-    	if (logger.isEnabledFor(org.apache.log4j.Level.DEBUG)) logger.debug("Purged " + cnt + " ITEL_PRODCOMP records");
-    	wbarchive.getDBConnectionCore().commit();
+    	cnt = deleteOverlap(conn, windows[0], "archive.itel_prodcomp", "itel_prodcomp", "ipg_id, ipc_date", "ipc_date");
+    	if (logger.isEnabledFor(org.apache.log4j.Level.DEBUG)) logger.debug("Purged " + cnt + " ITEL_PRODCOMP records, " + windows[0]);
+    	conn.commit();
     	   	
-    	wbarchive.appendTransactionMessage(". Purged " + cnt + " ITEL_PRODCOMP records from archive instance prior to run.");
+    	wbarchive.appendTransactionMessage(". Purged " + cnt + " ITEL_PRODCOMP records from archive instance prior to run ("
+    			+ windows[0] + ").");
     	
     	super.processArchive(wbarchive);
+    	saveWatermarks(wbarchive, windows);
     }
 
 
@@ -0,0 +1,235 @@
+package com.itella.app.wbarchive;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import com.workbrain.sql.DBConnection;
+import com.workbrain.sql.DBServer;
+import com.workbrain.sql.SQLUtil;
+
+/**
+ * Parallel execution of the archive and purge statements of one connection.
+ * <p>
+ * Oracle enables parallel DML for the session and hints statements with
+ * <code>PARALLEL(n)</code>, SQL Server appends <code>OPTION (MAXDOP n)</code> and DB2
+ * sets <code>CURRENT DEGREE</code>, which parallelizes the query part of a statement.
+ * DB2/zOS only knows serial or <code>ANY</code>. The degree used by the last statement
+ * can be read on Oracle when <code>v$pq_sesstat</code> is visible to the user, other
+ * databases report the degree requested.
+ */
+public class ParallelDml {
+
+    private static org.apache.log4j.Logger logger = org.apache.log4j.Logger.getLogger(ParallelDml.class);
+
+    private static final String SQL_ORACLE_SERVERS = "SELECT last_query FROM v$pq_sesstat"
+        + " WHERE statistic = 'Server Threads'";
+
+    private final DBConnection conn;
+    private final int dbId;
+    private boolean sessionEnabled;
+    private boolean sessionTried;
+    private String currentDegree;
+    private String originalDegree;
+    private boolean statisticsVisible = true;
+
+    public ParallelDml(DBConnection conn) {
+        this.conn = conn;
+        this.dbId = conn.getDBServer().getId();
+    }
+
+    /**
+     * Returns the degree configured by a PARALLEL_DML policy param value for given
+     * table, 1 if the value does not ask for parallel execution.
+     * <p>
+     * The value is a degree for all tables optionally followed by degrees for single
+     * tables, e.g. <code>8,WORK_DETAIL=16,WORK_SUMMARY=1</code>.
+     *
+     * @param paramValue
+     * @param tableName
+     * @return
+     */
+    public static int getDegree(String paramValue, String tableName) {
+        if (paramValue == null) {
+            return 1;
+        }
+        int ret = 1;
+        String[] parts = paramValue.split(",");
+        for (int i = 0; i < parts.length; i++) {
+            String part = parts[i].trim();
+            int eq = part.indexOf('=');
+            try {
+                if (eq < 0) {
+                    if (part.length() > 0) {
+                        ret = Integer.parseInt(part);
+                    }
+                }
+                else if (part.substring(0, eq).trim().equalsIgnoreCase(tableName)) {
+                    return Math.max(1, Integer.parseInt(part.substring(eq + 1).trim()));
+                }
+            } catch (NumberFormatException e) {
+                logger.error("Ignoring invalid parallel degree " + part);
+            }
+        }
+        return Math.max(1, ret);
+    }
+
+    /**
+     * Enables parallel DML for the session on Oracle. Oracle only allows this at the
+     * start of a transaction, so it is tried once on a connection without pending work;
+     * if it fails statements run with parallel queries only.
+     */
+    public void enableSession() {
+        if (dbId != DBServer.ORACLE_ID || sessionTried) {
+            return;
+        }
+        sessionTried = true;
+        try {
+            execute("ALTER SESSION ENABLE PARALLEL DML");
+            sessionEnabled = true;
+        } catch (SQLException e) {
+            logger.error("Could not enable parallel DML, only queries run in parallel", e);
+        }
+    }
+
+    public boolean isSessionEnabled() {
+        return sessionEnabled;
+    }
+
+    /**
+     * Prepares the session for a statement of given degree. DB2 takes the degree from
+     * a special register, the other databases from the statement.
+     *
+     * @param degree
+     * @throws SQLException
+     */
+    public void prepare(int degree) throws SQLException {
+        if (dbId != DBServer.DB2_ID || (currentDegree == null && degree <= 1)) {
+            return;
+        }
+        String value = degree <= 1 ? "1" : conn.getDBServer().isDB2_OS390() ? "ANY" : String.valueOf(degree);
+        if (!value.equals(currentDegree)) {
+            if (currentDegree == null) {
+                originalDegree = queryCurrentDegree();
+            }
+            execute("SET CURRENT DEGREE = '" + value + "'");
+            currentDegree = value;
+        }
+    }
+
+    /**
+     * Returns the session to what it was before this instance changed it: parallel DML
+     * is disabled on Oracle and DB2 gets its previous <code>CURRENT DEGREE</code> back.
+     * Oracle does not allow this while a transaction is pending, failures are logged.
+     */
+    public void restoreSession() {
+        try {
+            if (sessionEnabled) {
+                execute("ALTER SESSION DISABLE PARALLEL DML");
+                sessionEnabled = false;
+            }
+            if (currentDegree != null && !currentDegree.equals(originalDegree)) {
+                execute("SET CURRENT DEGREE = '" + originalDegree + "'");
+            }
+            currentDegree = null;
+        } catch (SQLException e) {
+            logger.error("Could not return the session to serial execution", e);
+        }
+        sessionTried = false;
+    }
+
+    /**
+     * Returns the optimizer hint for given degree without comment delimiters, empty if
+     * the database takes no hint or the degree is serial.
+     *
+     * @param degree
+     * @return
+     */
+    public String getHint(int degree) {
+        return degree > 1 && dbId == DBServer.ORACLE_ID ? "PARALLEL(" + degree + ")" : "";
+    }
+
+    /**
+     * Returns the clause to append to a statement of given degree, empty if the
+     * database takes no clause or the degree is serial.
+     *
+     * @param degree
+     * @return
+     */
+    public String getOption(int degree) {
+        return degree > 1 && dbId == DBServer.MSSQL_ID ? " OPTION (MAXDOP " + degree + ")" : "";
+    }
+
+    /**
+     * Describes the degree used by the last statement on given table, for the
+     * transaction details.
+     *
+     * @param tableName
+     * @param degree  degree requested
+     * @return
+     */
+    public String describe(String tableName, int degree) {
+        String ret = "Parallel DML for " + tableName + " : degree " + degree + " requested";
+        if (dbId == DBServer.ORACLE_ID) {
+            if (!sessionEnabled) {
+                ret += ", parallel DML not enabled";
+            }
+            int servers = getOracleServers();
+            if (servers >= 0) {
+                ret += ", " + (servers == 0 ? "ran serially" : servers + " parallel servers used");
+            }
+        }
+        else if (dbId == DBServer.DB2_ID) {
+            ret += ", CURRENT DEGREE " + currentDegree;
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the parallel servers used by the last statement of the session, -1 if the
+     * statistics cannot be read.
+     */
+    private int getOracleServers() {
+        if (!statisticsVisible) {
+            return -1;
+        }
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try {
+            ps = conn.prepareStatement(SQL_ORACLE_SERVERS);
+            rs = ps.executeQuery();
+            return rs.next() ? rs.getInt(1) : -1;
+        } catch (SQLException e) {
+            // *** needs SELECT on v$pq_sesstat, not asked again
+            statisticsVisible = false;
+            if (logger.isEnabledFor(org.apache.log4j.Level.DEBUG)) {
+                logger.debug("Parallel statistics not readable : " + e.getMessage());
+            }
+            return -1;
+        } finally {
+            SQLUtil.cleanUp(ps, rs);
+        }
+    }
+
+    private String queryCurrentDegree() throws SQLException {
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try {
+            ps = conn.prepareStatement("SELECT CURRENT DEGREE FROM SYSIBM.SYSDUMMY1");
+            rs = ps.executeQuery();
+            return rs.next() ? rs.getString(1).trim() : "1";
+        } finally {
+            SQLUtil.cleanUp(ps, rs);
+        }
+    }
+
+    private void execute(String sql) throws SQLException {
+        PreparedStatement ps = null;
+        try {
+            ps = conn.prepareStatement(sql);
+            ps.executeUpdate();
+        } finally {
+            SQLUtil.cleanUp(ps);
+        }
+    }
+}
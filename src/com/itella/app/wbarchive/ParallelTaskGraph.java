@@ -0,0 +1,287 @@
+package com.itella.app.wbarchive;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.workbrain.app.wbarchive.WBArchiveException;
+
+/**
+ * Executes keyed tasks on a bounded worker pool while honouring the ordering
+ * declared between them. A task is started once every task it depends on has
+ * finished successfully. Tasks depending on a failed or skipped task are skipped.
+ * Tasks become ready in the order they were added.
+ */
+public class ParallelTaskGraph {
+
+    private static org.apache.log4j.Logger logger = org.apache.log4j.Logger.getLogger(ParallelTaskGraph.class);
+
+    private static final long STOP_POLL_MILLIS = 1000;
+
+    /**
+     * Unit of work run by the graph.
+     */
+    public interface Task {
+        void run() throws Exception;
+    }
+
+    /**
+     * Polled while tasks are running, returning true stops starting new tasks.
+     */
+    public interface StopCondition {
+        boolean shouldStop();
+    }
+
+    private final String name;
+    private final Map<String, Task> tasks = new LinkedHashMap<String, Task>();
+    private final Map<String, Set<String>> dependencies = new HashMap<String, Set<String>>();
+    private final Set<String> completed = new LinkedHashSet<String>();
+    private final Map<String, Throwable> failed = new LinkedHashMap<String, Throwable>();
+    private final Set<String> skipped = new LinkedHashSet<String>();
+
+    public ParallelTaskGraph(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Adds a task with given unique key.
+     *
+     * @param key
+     * @param task
+     */
+    public void addTask(String key, Task task) {
+        if (tasks.containsKey(key)) {
+            throw new IllegalArgumentException("Task : " + key + " is already defined in " + name);
+        }
+        tasks.put(key, task);
+    }
+
+    /**
+     * Declares that <code>before</code> must finish before <code>after</code> starts.
+     *
+     * @param before
+     * @param after
+     */
+    public void addDependency(String before, String after) {
+        if (!tasks.containsKey(before) || !tasks.containsKey(after)) {
+            throw new IllegalArgumentException("Dependency " + before + " -> " + after
+                + " refers to a task not defined in " + name);
+        }
+        if (before.equals(after)) {
+            return;
+        }
+        getDependencies(after, true).add(before);
+    }
+
+    /**
+     * Returns the keys of the tasks given task depends on.
+     *
+     * @param key
+     * @return
+     */
+    public Set<String> getDependencies(String key) {
+        Set<String> deps = dependencies.get(key);
+        return deps == null ? Collections.<String>emptySet() : Collections.unmodifiableSet(deps);
+    }
+
+    public int size() {
+        return tasks.size();
+    }
+
+    public Set<String> getCompleted() {
+        return completed;
+    }
+
+    public Map<String, Throwable> getFailed() {
+        return failed;
+    }
+
+    public Set<String> getSkipped() {
+        return skipped;
+    }
+
+    /**
+     * Returns the first task failure, or null if none of the tasks failed.
+     *
+     * @return
+     */
+    public Throwable getFirstFailure() {
+        Iterator<Throwable> iter = failed.values().iterator();
+        return iter.hasNext() ? iter.next() : null;
+    }
+
+    /**
+     * Runs all tasks with at most <code>threads</code> tasks at a time. Returns when
+     * every task has completed, failed or was skipped.
+     *
+     * @param threads
+     * @param stop     if not null, polled while waiting for running tasks
+     * @throws WBArchiveException if the declared ordering has a cycle or the
+     *                            calling thread is interrupted
+     */
+    public void execute(int threads, StopCondition stop) throws WBArchiveException {
+        assertAcyclic();
+        if (tasks.size() == 0) {
+            return;
+        }
+        int poolSize = Math.max(1, Math.min(threads, tasks.size()));
+        ExecutorService pool = Executors.newFixedThreadPool(poolSize, new WorkerThreadFactory(name));
+        CompletionService<Outcome> cs = new ExecutorCompletionService<Outcome>(pool);
+        Set<String> pending = new LinkedHashSet<String>(tasks.keySet());
+        int running = 0;
+        boolean stopped = false;
+        try {
+            while (true) {
+                if (!stopped && stop != null && stop.shouldStop()) {
+                    stopped = true;
+                    log("Stop requested for " + name + ", no new tasks will be started");
+                }
+                running += submitReady(cs, pending, stopped);
+                if (running == 0) {
+                    break;
+                }
+                Future<Outcome> f = cs.poll(STOP_POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (f == null) {
+                    continue;
+                }
+                running--;
+                Outcome outcome = f.get();
+                if (outcome.error == null) {
+                    completed.add(outcome.key);
+                }
+                else {
+                    failed.put(outcome.key, outcome.error);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new WBArchiveException("Interrupted while running " + name, e);
+        } catch (ExecutionException e) {
+            // *** Outcome wraps every task error, this can only be a framework error
+            throw new WBArchiveException("Error while running " + name, e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private int submitReady(CompletionService<Outcome> cs, Set<String> pending, boolean stopped) {
+        int submitted = 0;
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            Iterator<String> iter = pending.iterator();
+            while (iter.hasNext()) {
+                final String key = iter.next();
+                String blocker = findUnsuccessfulDependency(key);
+                if (stopped || blocker != null) {
+                    log("Skipping " + key + (stopped ? " since stop was requested" : " since " + blocker + " did not complete"));
+                    skipped.add(key);
+                    iter.remove();
+                    changed = true;
+                }
+                else if (completed.containsAll(getDependencies(key))) {
+                    final Task task = tasks.get(key);
+                    cs.submit(new Callable<Outcome>() {
+                        public Outcome call() {
+                            try {
+                                task.run();
+                                return new Outcome(key, null);
+                            } catch (Throwable t) {
+                                logger.error("Error in " + key, t);
+                                return new Outcome(key, t);
+                            }
+                        }
+                    });
+                    iter.remove();
+                    submitted++;
+                }
+            }
+        }
+        return submitted;
+    }
+
+    private String findUnsuccessfulDependency(String key) {
+        Iterator<String> iter = getDependencies(key).iterator();
+        while (iter.hasNext()) {
+            String dep = iter.next();
+            if (failed.containsKey(dep) || skipped.contains(dep)) {
+                return dep;
+            }
+        }
+        return null;
+    }
+
+    private void assertAcyclic() throws WBArchiveException {
+        Set<String> done = new HashSet<String>();
+        boolean progress = true;
+        while (progress && done.size() < tasks.size()) {
+            progress = false;
+            Iterator<String> iter = tasks.keySet().iterator();
+            while (iter.hasNext()) {
+                String key = iter.next();
+                if (!done.contains(key) && done.containsAll(getDependencies(key))) {
+                    done.add(key);
+                    progress = true;
+                }
+            }
+        }
+        if (done.size() < tasks.size()) {
+            Set<String> cyclic = new LinkedHashSet<String>(tasks.keySet());
+            cyclic.removeAll(done);
+            throw new WBArchiveException("Ordering declared in " + name + " has a cycle between : " + cyclic);
+        }
+    }
+
+    private Set<String> getDependencies(String key, boolean create) {
+        Set<String> deps = dependencies.get(key);
+        if (deps == null && create) {
+            deps = new LinkedHashSet<String>();
+            dependencies.put(key, deps);
+        }
+        return deps;
+    }
+
+    protected void log( String message ) {
+        if (logger.isEnabledFor(org.apache.log4j.Level.DEBUG)) { logger.debug( message );}
+    }
+
+    private static class Outcome {
+        private final String key;
+        private final Throwable error;
+
+        Outcome(String key, Throwable error) {
+            this.key = key;
+            this.error = error;
+        }
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger();
+
+        WorkerThreadFactory(String name) {
+            this.prefix = "wbarchive-" + name + "-";
+        }
+
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, prefix + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -0,0 +1,472 @@
+package com.itella.app.wbarchive;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.workbrain.sql.DBConnection;
+import com.workbrain.sql.DBServer;
+import com.workbrain.sql.SQLUtil;
+
+/**
+ * Moves whole range partitions of a date partitioned table to the table of the same
+ * name in the archive schema, which must be partitioned the same way.
+ * <p>
+ * A partition is moved if all of its rows are dated before a boundary. Oracle exchanges
+ * the partition with an empty staging table in the archive schema and then exchanges
+ * the staging table into the empty archive partition. SQL Server switches the partition
+ * to the archive partition of the same number. DB2 detaches the partition into a table
+ * in the archive schema and attaches that table to the archive table. A partition that
+ * cannot be moved, for example because a foreign key references the table, stays in
+ * place and is archived row by row like the boundary partition.
+ * <p>
+ * Oracle and DB2 commit the moves as they go, DDL cannot be part of the archive transaction.
+ */
+public class PartitionExchanger {
+
+    private static org.apache.log4j.Logger logger = org.apache.log4j.Logger.getLogger(PartitionExchanger.class);
+
+    private static final String SQL_ORACLE_PARTITIONS = "SELECT partition_name, high_value, partition_position"
+        + " FROM user_tab_partitions WHERE table_name = ? ORDER BY partition_position";
+    private static final String SQL_MSSQL_PARTITIONS = "SELECT p.partition_number, CONVERT(datetime, rv.value),"
+        + " pf.boundary_value_on_right, p.rows FROM sys.partitions p"
+        + " JOIN sys.indexes i ON i.object_id = p.object_id AND i.index_id = p.index_id"
+        + " JOIN sys.partition_schemes ps ON ps.data_space_id = i.data_space_id"
+        + " JOIN sys.partition_functions pf ON pf.function_id = ps.function_id"
+        + " LEFT OUTER JOIN sys.partition_range_values rv ON rv.function_id = pf.function_id"
+        + " AND rv.boundary_id = p.partition_number"
+        + " WHERE p.object_id = OBJECT_ID(?) AND i.index_id IN (0, 1) ORDER BY p.partition_number";
+    private static final String SQL_DB2_PARTITIONS = "SELECT DATAPARTITIONNAME, LOWVALUE, LOWINCLUSIVE,"
+        + " HIGHVALUE, HIGHINCLUSIVE, SEQNO FROM SYSCAT.DATAPARTITIONS"
+        + " WHERE TABSCHEMA = CURRENT SCHEMA AND TABNAME = ? ORDER BY SEQNO";
+
+    private static final String SQL_ORACLE_PARTITION_KEY = "SELECT column_name FROM user_part_key_columns"
+        + " WHERE name = ? AND object_type = 'TABLE' ORDER BY column_position";
+    private static final String SQL_MSSQL_PARTITION_KEY = "SELECT c.name FROM sys.index_columns ic"
+        + " JOIN sys.columns c ON c.object_id = ic.object_id AND c.column_id = ic.column_id"
+        + " WHERE ic.object_id = OBJECT_ID(?) AND ic.index_id IN (0, 1) AND ic.partition_ordinal > 0"
+        + " ORDER BY ic.partition_ordinal";
+    private static final String SQL_DB2_PARTITION_KEY = "SELECT DATAPARTITIONEXPRESSION"
+        + " FROM SYSCAT.DATAPARTITIONEXPRESSION WHERE TABSCHEMA = CURRENT SCHEMA AND TABNAME = ?"
+        + " ORDER BY DATAPARTITIONKEYSEQ";
+
+    private static final Pattern DATE_LITERAL = Pattern.compile(
+        "(\\d{4})-(\\d{2})-(\\d{2})(?:[ T-](\\d{2})[:.](\\d{2})[:.](\\d{2}))?");
+
+    private static final String STAGING_SUFFIX = "_XCHG";
+    private static final int ORACLE_MAX_NAME_LENGTH = 30;
+
+    private final DBConnection conn;
+    private final String archiveSchema;
+
+    public PartitionExchanger(DBConnection conn, String archiveSchema) {
+        this.conn = conn;
+        this.archiveSchema = archiveSchema;
+    }
+
+    /**
+     * Returns the partition key column of given table, null if the table is not
+     * partitioned by exactly one column or the database is not supported.
+     *
+     * @param tableName
+     * @return
+     * @throws SQLException
+     */
+    public String getPartitionKeyColumn(String tableName) throws SQLException {
+        int id = conn.getDBServer().getId();
+        String sql;
+        if (id == DBServer.ORACLE_ID) {
+            sql = SQL_ORACLE_PARTITION_KEY;
+        }
+        else if (id == DBServer.MSSQL_ID) {
+            sql = SQL_MSSQL_PARTITION_KEY;
+        }
+        else if (id == DBServer.DB2_ID && !conn.getDBServer().isDB2_OS390()) {
+            sql = SQL_DB2_PARTITION_KEY;
+        }
+        else {
+            return null;
+        }
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try {
+            ps = conn.prepareStatement(sql);
+            ps.setString(1, tableName.toUpperCase());
+            rs = ps.executeQuery();
+            if (!rs.next()) {
+                return null;
+            }
+            String ret = rs.getString(1);
+            if (rs.next() || ret == null) {
+                return null;
+            }
+            // *** DB2 keeps the key as an expression, a plain column is a quoted name
+            ret = ret.trim();
+            if (ret.length() > 1 && ret.startsWith("\"") && ret.endsWith("\"")) {
+                ret = ret.substring(1, ret.length() - 1);
+            }
+            return ret;
+        } finally {
+            SQLUtil.cleanUp(ps, rs);
+        }
+    }
+
+    /**
+     * Moves the partitions of given table whose rows are all dated before given boundary,
+     * or at it if <code>inclusive</code>. The caller makes sure the boundary applies to
+     * the partition key, see <code>getPartitionKeyColumn</code>.
+     *
+     * @param tableName
+     * @param boundary
+     * @param inclusive  true if rows dated at the boundary are archived too
+     * @return one entry per partition tried, in partition order
+     * @throws SQLException if moved rows could not be put back after a failure,
+     *                      the message names the table holding them
+     */
+    public List<Exchange> exchangeBefore(String tableName, Date boundary, boolean inclusive) throws SQLException {
+        List<Exchange> ret = new ArrayList<Exchange>();
+        String table = tableName.toUpperCase();
+        List<Partition> partitions = getPartitions(table);
+        for (int i = 0; i < partitions.size(); i++) {
+            Partition p = partitions.get(i);
+            if (!p.isBefore(boundary, inclusive)) {
+                break;
+            }
+            if (p.empty) {
+                continue;
+            }
+            Exchange ex = new Exchange(table, p.name);
+            try {
+                int id = conn.getDBServer().getId();
+                if (id == DBServer.ORACLE_ID) {
+                    exchangeOracle(table, p, ex);
+                }
+                else if (id == DBServer.MSSQL_ID) {
+                    switchMssql(table, p, ex);
+                }
+                else {
+                    detachDb2(table, p, ex);
+                }
+            } catch (SQLException e) {
+                if (ex.unrecoverable) {
+                    throw e;
+                }
+                ex.error = e.getMessage();
+                logger.error("Could not move partition " + p.name + " of " + table
+                    + ", its rows are archived row by row", e);
+            }
+            ret.add(ex);
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the range partitions of given table in ascending order, empty if it is
+     * not partitioned or the database is not supported.
+     */
+    List<Partition> getPartitions(String table) throws SQLException {
+        List<Partition> ret = new ArrayList<Partition>();
+        int id = conn.getDBServer().getId();
+        String sql;
+        if (id == DBServer.ORACLE_ID) {
+            sql = SQL_ORACLE_PARTITIONS;
+        }
+        else if (id == DBServer.MSSQL_ID) {
+            sql = SQL_MSSQL_PARTITIONS;
+        }
+        else if (id == DBServer.DB2_ID && !conn.getDBServer().isDB2_OS390()) {
+            sql = SQL_DB2_PARTITIONS;
+        }
+        else {
+            return ret;
+        }
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try {
+            ps = conn.prepareStatement(sql);
+            ps.setString(1, table);
+            rs = ps.executeQuery();
+            while (rs.next()) {
+                Partition p = new Partition();
+                if (id == DBServer.ORACLE_ID) {
+                    p.name = rs.getString(1);
+                    // *** ranges are VALUES LESS THAN, the high value itself is not in the partition
+                    p.high = parseDate(rs.getString(2));
+                    p.number = rs.getInt(3);
+                }
+                else if (id == DBServer.MSSQL_ID) {
+                    p.number = rs.getInt(1);
+                    p.name = String.valueOf(p.number);
+                    Timestamp high = rs.getTimestamp(2);
+                    p.high = high == null ? null : new Date(high.getTime());
+                    // *** RANGE LEFT partitions include their boundary
+                    p.highInclusive = !rs.getBoolean(3);
+                    p.rows = rs.getLong(4);
+                    p.empty = p.rows == 0;
+                }
+                else {
+                    p.name = rs.getString(1).trim();
+                    p.low = rs.getString(2);
+                    p.lowInclusive = "Y".equals(rs.getString(3));
+                    p.highValue = rs.getString(4);
+                    p.high = parseDate(p.highValue);
+                    p.highInclusive = "Y".equals(rs.getString(5));
+                    p.number = rs.getInt(6);
+                }
+                ret.add(p);
+            }
+        } finally {
+            SQLUtil.cleanUp(ps, rs);
+        }
+        if (id == DBServer.ORACLE_ID) {
+            for (int i = 0; i < ret.size(); i++) {
+                Partition p = ret.get(i);
+                p.empty = !hasRows(table + " PARTITION (" + p.name + ")");
+            }
+        }
+        return ret;
+    }
+
+    private void exchangeOracle(String table, Partition p, Exchange ex) throws SQLException {
+        String archiveTable = archiveSchema + "." + table;
+        if (hasRows(archiveTable + " PARTITION (" + p.name + ")")) {
+            throw new SQLException("Archive partition " + p.name + " of " + archiveTable + " is not empty");
+        }
+        String staging = archiveSchema + "." + getStagingName(table);
+        if (!exists(staging)) {
+            execute("CREATE TABLE " + staging + " AS SELECT * FROM " + archiveTable + " WHERE 1 = 2");
+        }
+        else if (hasRows(staging)) {
+            throw new SQLException("Staging table " + staging + " is not empty");
+        }
+        execute("ALTER TABLE " + table + " EXCHANGE PARTITION " + p.name + " WITH TABLE " + staging
+            + " WITHOUT VALIDATION UPDATE GLOBAL INDEXES");
+        try {
+            ex.rows = count(staging);
+            execute("ALTER TABLE " + archiveTable + " EXCHANGE PARTITION " + p.name + " WITH TABLE " + staging
+                + " WITHOUT VALIDATION UPDATE GLOBAL INDEXES");
+        } catch (SQLException e) {
+            // *** put the rows back where they came from
+            try {
+                execute("ALTER TABLE " + table + " EXCHANGE PARTITION " + p.name + " WITH TABLE " + staging
+                    + " WITHOUT VALIDATION UPDATE GLOBAL INDEXES");
+            } catch (SQLException e2) {
+                ex.unrecoverable = true;
+                throw (SQLException) new SQLException("Rows of partition " + p.name + " of " + table
+                    + " are left in " + staging + " : " + e2.getMessage()).initCause(e);
+            }
+            ex.rows = 0;
+            throw e;
+        }
+        execute("ALTER TABLE " + archiveTable + " MODIFY PARTITION " + p.name + " REBUILD UNUSABLE LOCAL INDEXES");
+        execute("ALTER TABLE " + table + " MODIFY PARTITION " + p.name + " REBUILD UNUSABLE LOCAL INDEXES");
+        execute("DROP TABLE " + staging + " PURGE");
+        ex.moved = true;
+    }
+
+    private void switchMssql(String table, Partition p, Exchange ex) throws SQLException {
+        // *** the switch fails unless the archive partition is empty and aligned
+        execute("ALTER TABLE " + table + " SWITCH PARTITION " + p.number + " TO "
+            + archiveSchema + "." + table + " PARTITION " + p.number);
+        ex.rows = p.rows;
+        ex.moved = true;
+    }
+
+    private void detachDb2(String table, Partition p, Exchange ex) throws SQLException {
+        String archiveTable = archiveSchema + "." + table;
+        String detached = archiveSchema + "." + getStagingName(table + "_" + p.number);
+        execute("ALTER TABLE " + table + " DETACH PARTITION " + p.name + " INTO " + detached);
+        // *** the detached table can only be used once the detach is committed
+        conn.commit();
+        try {
+            ex.rows = count(detached);
+            execute("ALTER TABLE " + archiveTable + " ATTACH PARTITION " + p.name + getDb2Range(p)
+                + " FROM " + detached);
+            execute("SET INTEGRITY FOR " + archiveTable + " ALLOW WRITE ACCESS IMMEDIATE CHECKED");
+            conn.commit();
+        } catch (SQLException e) {
+            conn.rollback();
+            try {
+                execute("ALTER TABLE " + table + " ATTACH PARTITION " + p.name + getDb2Range(p)
+                    + " FROM " + detached);
+                execute("SET INTEGRITY FOR " + table + " ALLOW WRITE ACCESS IMMEDIATE CHECKED");
+                conn.commit();
+            } catch (SQLException e2) {
+                conn.rollback();
+                ex.unrecoverable = true;
+                throw (SQLException) new SQLException("Rows of partition " + p.name + " of " + table
+                    + " are left in " + detached + " : " + e2.getMessage()).initCause(e);
+            }
+            ex.rows = 0;
+            throw e;
+        }
+        ex.moved = true;
+    }
+
+    private static String getDb2Range(Partition p) {
+        return " STARTING (" + p.low + ")" + (p.lowInclusive ? " INCLUSIVE" : " EXCLUSIVE")
+            + " ENDING (" + p.highValue + ")" + (p.highInclusive ? " INCLUSIVE" : " EXCLUSIVE");
+    }
+
+    private static String getStagingName(String table) {
+        String ret = table + STAGING_SUFFIX;
+        if (ret.length() > ORACLE_MAX_NAME_LENGTH) {
+            ret = table.substring(0, ORACLE_MAX_NAME_LENGTH - STAGING_SUFFIX.length()) + STAGING_SUFFIX;
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the date of the first date literal in given partition bound, null for
+     * MAXVALUE or bounds that are not dates.
+     */
+    static Date parseDate(String bound) {
+        if (bound == null) {
+            return null;
+        }
+        Matcher m = DATE_LITERAL.matcher(bound);
+        if (!m.find()) {
+            return null;
+        }
+        Calendar c = Calendar.getInstance();
+        c.clear();
+        c.set(Integer.parseInt(m.group(1)), Integer.parseInt(m.group(2)) - 1, Integer.parseInt(m.group(3)));
+        if (m.group(4) != null) {
+            c.set(Calendar.HOUR_OF_DAY, Integer.parseInt(m.group(4)));
+            c.set(Calendar.MINUTE, Integer.parseInt(m.group(5)));
+            c.set(Calendar.SECOND, Integer.parseInt(m.group(6)));
+        }
+        return c.getTime();
+    }
+
+    /**
+     * Returns true if given Oracle table or partition has rows.
+     */
+    private boolean hasRows(String from) throws SQLException {
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try {
+            ps = conn.prepareStatement("SELECT 1 FROM " + from + " WHERE ROWNUM = 1");
+            rs = ps.executeQuery();
+            return rs.next();
+        } finally {
+            SQLUtil.cleanUp(ps, rs);
+        }
+    }
+
+    private boolean exists(String table) {
+        try {
+            hasRows(table);
+            return true;
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private long count(String table) throws SQLException {
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try {
+            ps = conn.prepareStatement("SELECT COUNT(*) FROM " + table);
+            rs = ps.executeQuery();
+            return rs.next() ? rs.getLong(1) : 0;
+        } finally {
+            SQLUtil.cleanUp(ps, rs);
+        }
+    }
+
+    private void execute(String sql) throws SQLException {
+        PreparedStatement ps = null;
+        try {
+            if (logger.isEnabledFor(org.apache.log4j.Level.DEBUG)) {
+                logger.debug(sql);
+            }
+            ps = conn.prepareStatement(sql);
+            ps.executeUpdate();
+        } finally {
+            SQLUtil.cleanUp(ps);
+        }
+    }
+
+    static class Partition {
+        String name;
+        int number;
+        String low;
+        boolean lowInclusive;
+        String highValue;
+        Date high;
+        boolean highInclusive;
+        long rows;
+        boolean empty;
+
+        /**
+         * Returns true if all rows of the partition are dated before given boundary,
+         * or at it if <code>inclusive</code>.
+         */
+        boolean isBefore(Date boundary, boolean inclusive) {
+            if (high == null) {
+                return false;
+            }
+            return highInclusive && !inclusive ? high.before(boundary) : !high.after(boundary);
+        }
+    }
+
+    /**
+     * Outcome of moving one partition.
+     */
+    public static class Exchange {
+        private final String tableName;
+        private final String partitionName;
+        private boolean moved;
+        private long rows;
+        private String error;
+        private boolean unrecoverable;
+
+        Exchange(String tableName, String partitionName) {
+            this.tableName = tableName;
+            this.partitionName = partitionName;
+        }
+
+        public String getTableName() {
+            return tableName;
+        }
+
+        public String getPartitionName() {
+            return partitionName;
+        }
+
+        public boolean isMoved() {
+            return moved;
+        }
+
+        /**
+         * Returns the number of rows moved.
+         *
+         * @return
+         */
+        public long getRows() {
+            return rows;
+        }
+
+        /**
+         * Returns why the partition was not moved, null if it was.
+         *
+         * @return
+         */
+        public String getError() {
+            return error;
+        }
+
+        public String toString() {
+            return moved ? "Moved partition " + partitionName + " of " + tableName + " with " + rows + " records"
+                : "Partition " + partitionName + " of " + tableName + " not moved : " + error;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.itella.app.wbarchive;
+
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+import com.workbrain.app.wbarchive.model.WBArchPolDetData;
+import com.workbrain.sql.DBConnection;
+
+/**
+ * Builds the dependency graph between the details of one archive policy so that
+ * details can be processed concurrently wherever the policy allows it.
+ * <p>
+ * Two details depend on each other when they work on the same table, when
+ * the where clause of one refers to the table of the other (including
+ * <code>#WHERE.table#</code> references and subqueries), or when there is a
+ * foreign key between their tables. Each dependency is directed by priority:
+ * the detail with the lower priority number, or the earlier one of equal
+ * priority, has to finish before the other starts. Details feeding the same
+ * detail therefore run concurrently and only the detail they feed waits.
+ */
+public class PolicyDetailDependencies {
+
+    private static org.apache.log4j.Logger logger = org.apache.log4j.Logger.getLogger(PolicyDetailDependencies.class);
+
+    private static final String IDENTIFIER_CHARS = "A-Za-z0-9_$";
+
+    private PolicyDetailDependencies() {
+    }
+
+    /**
+     * Returns the predecessors of every given detail: element <code>i</code> holds the
+     * indexes of the details that have to finish before detail <code>i</code> starts.
+     * Without foreign key information every detail waits for the one before it.
+     *
+     * @param conn     used to look up foreign keys between detail tables
+     * @param details  policy details in priority order
+     * @return
+     */
+    public static List<Set<Integer>> findPredecessors(DBConnection conn,
+                                                      List<WBArchPolDetData> details) {
+        int size = details.size();
+        List<Set<Integer>> ret = new ArrayList<Set<Integer>>(size);
+        for (int i = 0; i < size; i++) {
+            ret.add(new TreeSet<Integer>());
+        }
+
+        Map<String, Set<String>> foreignKeys = null;
+        try {
+            foreignKeys = loadForeignKeys(conn, details);
+        } catch (SQLException e) {
+            // *** without foreign key information details cannot be proven independent
+            logger.error("Could not load foreign keys for policy detail tables, details will be processed serially", e);
+            for (int i = 1; i < size; i++) {
+                ret.get(i).add(Integer.valueOf(i - 1));
+            }
+            return ret;
+        }
+
+        for (int i = 0; i < size; i++) {
+            for (int j = i + 1; j < size; j++) {
+                if (isDependent(details.get(i), details.get(j), foreignKeys)) {
+                    if (runsBefore(details, j, i)) {
+                        ret.get(i).add(Integer.valueOf(j));
+                    }
+                    else {
+                        ret.get(j).add(Integer.valueOf(i));
+                    }
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Returns true if detail <code>a</code> has to run before detail <code>b</code>,
+     * by priority and then by position.
+     */
+    private static boolean runsBefore(List<WBArchPolDetData> details, int a, int b) {
+        int pa = details.get(a).getWbapdPriority();
+        int pb = details.get(b).getWbapdPriority();
+        return pa != pb ? pa < pb : a < b;
+    }
+
+    /**
+     * Returns true if given details cannot be processed independently.
+     *
+     * @param a
+     * @param b
+     * @param foreignKeys  referenced table names keyed by referencing table name, upper case
+     * @return
+     */
+    static boolean isDependent(WBArchPolDetData a, WBArchPolDetData b,
+                               Map<String, Set<String>> foreignKeys) {
+        String tableA = a.getWbapdTableName().toUpperCase();
+        String tableB = b.getWbapdTableName().toUpperCase();
+        if (tableA.equals(tableB)) {
+            return true;
+        }
+        if (refersTo(a, tableB) || refersTo(b, tableA)) {
+            return true;
+        }
+        Set<String> refA = foreignKeys.get(tableA);
+        Set<String> refB = foreignKeys.get(tableB);
+        return (refA != null && refA.contains(tableB))
+            || (refB != null && refB.contains(tableA));
+    }
+
+    private static boolean refersTo(WBArchPolDetData det, String tableName) {
+        return refersTo(det.getWbapdWhereClause(), tableName)
+            || refersTo(det.retrieveWbapdWhereClauseResolved(), tableName);
+    }
+
+    /**
+     * Returns true if given where clause names given table, e.g. in a subquery.
+     *
+     * @param where      may be null
+     * @param tableName
+     * @return
+     */
+    static boolean refersTo(String where, String tableName) {
+        if (where == null) {
+            return false;
+        }
+        Pattern p = Pattern.compile("(^|[^" + IDENTIFIER_CHARS + "])" + Pattern.quote(tableName)
+            + "([^" + IDENTIFIER_CHARS + "]|$)", Pattern.CASE_INSENSITIVE);
+        return p.matcher(where).find();
+    }
+
+    private static Map<String, Set<String>> loadForeignKeys(DBConnection conn,
+                                                            List<WBArchPolDetData> details) throws SQLException {
+        Map<String, Set<String>> ret = new HashMap<String, Set<String>>();
+        DatabaseMetaData md = conn.getMetaData();
+        for (int i = 0; i < details.size(); i++) {
+            String table = details.get(i).getWbapdTableName().toUpperCase();
+            if (ret.containsKey(table)) {
+                continue;
+            }
+            Set<String> referenced = new HashSet<String>();
+            ResultSet rs = null;
+            try {
+                rs = md.getImportedKeys(null, null, table);
+                while (rs.next()) {
+                    referenced.add(rs.getString("PKTABLE_NAME").toUpperCase());
+                }
+            } finally {
+                if (rs != null) rs.close();
+            }
+            ret.put(table, referenced);
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,521 @@
+package com.itella.app.wbarchive;
+
+import java.math.BigDecimal;
+import java.sql.Blob;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.itella.app.wbarchive.model.BoundWhereClause;
+import com.workbrain.sql.DBConnection;
+import com.workbrain.sql.SQLUtil;
+
+/**
+ * Copies rows of a table from one database to another without temp files.
+ * <p>
+ * Rows are read from a forward only result set on the source connection and
+ * written with batched inserts on the target connection. Column values are
+ * transferred by their type from <code>ResultSetMetaData</code>. The target table
+ * must have the columns of the source table. Nothing is committed.
+ * <p>
+ * With a pipeline queue the inserts run on a writer thread, so reading from the
+ * source and writing to the target overlap. The calling thread reads row batches
+ * into a bounded queue and waits when the writer falls behind. An error on either
+ * side stops both and is thrown from <code>copy</code>, the caller rolls back.
+ */
+public class StreamingTableCopier {
+
+    private static org.apache.log4j.Logger logger = org.apache.log4j.Logger.getLogger(StreamingTableCopier.class);
+
+    public static final int DEFAULT_FETCH_SIZE = 1000;
+    public static final int DEFAULT_BATCH_SIZE = 500;
+    public static final int DEFAULT_QUEUE_BATCHES = 4;
+
+    /** how often blocked reader and writer check whether the other side failed */
+    private static final long POLL_MILLIS = 200;
+    private static final List<Object[]> END_OF_ROWS = new ArrayList<Object[]>(0);
+
+    static final int KIND_OBJECT = 0;
+    static final int KIND_LONG = 1;
+    static final int KIND_DECIMAL = 2;
+    static final int KIND_DOUBLE = 3;
+    static final int KIND_STRING = 4;
+    static final int KIND_TIMESTAMP = 5;
+    static final int KIND_TIME = 6;
+    static final int KIND_BYTES = 7;
+    static final int KIND_BLOB = 8;
+
+    private final DBConnection source;
+    private final DBConnection target;
+    private int fetchSize = DEFAULT_FETCH_SIZE;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private int queueBatches = DEFAULT_QUEUE_BATCHES;
+    private CopyStatistics lastStatistics;
+
+    public StreamingTableCopier(DBConnection source, DBConnection target) {
+        this.source = source;
+        this.target = target;
+    }
+
+    public void setFetchSize(int v) {
+        fetchSize = v > 0 ? v : DEFAULT_FETCH_SIZE;
+    }
+
+    public void setBatchSize(int v) {
+        batchSize = v > 0 ? v : DEFAULT_BATCH_SIZE;
+    }
+
+    /**
+     * Sets the number of insert batches the pipeline queue holds, 0 copies on the
+     * calling thread only.
+     *
+     * @param v
+     */
+    public void setQueueBatches(int v) {
+        queueBatches = v >= 0 ? v : DEFAULT_QUEUE_BATCHES;
+    }
+
+    /**
+     * Returns the statistics of the last <code>copy</code>, null before the first one.
+     *
+     * @return
+     */
+    public CopyStatistics getLastStatistics() {
+        return lastStatistics;
+    }
+
+    /**
+     * Copies the rows of given table selected by given where clause.
+     *
+     * @param tableName
+     * @param where
+     * @return number of copied rows
+     * @throws SQLException
+     */
+    public int copy(String tableName, BoundWhereClause where) throws SQLException {
+        PreparedStatement select = null;
+        PreparedStatement insert = null;
+        ResultSet rs = null;
+        int cnt = 0;
+        try {
+            long s = System.currentTimeMillis();
+            select = source.prepareStatement("SELECT * FROM " + tableName + " WHERE " + where.getSql(),
+                ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            select.setFetchSize(fetchSize);
+            where.bind(select, 1);
+            rs = select.executeQuery();
+
+            ResultSetMetaData md = rs.getMetaData();
+            int[] sourceIndexes = getCopiedColumns(source, md);
+            int[] types = new int[sourceIndexes.length];
+            int[] kinds = new int[sourceIndexes.length];
+            String[] names = new String[sourceIndexes.length];
+            for (int i = 0; i < sourceIndexes.length; i++) {
+                names[i] = md.getColumnName(sourceIndexes[i]);
+                types[i] = md.getColumnType(sourceIndexes[i]);
+                kinds[i] = getKind(types[i]);
+            }
+
+            insert = target.prepareStatement(getInsertSql(tableName, names));
+            CopyStatistics stats = new CopyStatistics(tableName);
+            lastStatistics = stats;
+            if (queueBatches > 0) {
+                copyPipelined(rs, insert, sourceIndexes, kinds, types, stats);
+            }
+            else {
+                copySerial(rs, insert, sourceIndexes, kinds, types, stats);
+            }
+            cnt = stats.rows;
+            stats.elapsedMillis = System.currentTimeMillis() - s;
+            if (logger.isEnabledFor(org.apache.log4j.Level.DEBUG)) {
+                logger.debug(stats.toString());
+            }
+        } finally {
+            SQLUtil.cleanUp(select, rs);
+            SQLUtil.cleanUp(insert);
+        }
+        return cnt;
+    }
+
+    /**
+     * Returns the indexes of the result set columns that are copied.
+     */
+    static int[] getCopiedColumns(DBConnection source, ResultSetMetaData md) throws SQLException {
+        List<Integer> columns = new ArrayList<Integer>();
+        for (int i = 1; i <= md.getColumnCount(); i++) {
+            // *** DB2/zOS adds a GENERATED ALWAYS _ROWID column to tables with CLOBs
+            if (source.getDBServer().isDB2_OS390() && md.getColumnName(i).endsWith("_ROWID")) {
+                continue;
+            }
+            columns.add(Integer.valueOf(i));
+        }
+        int[] ret = new int[columns.size()];
+        for (int i = 0; i < ret.length; i++) {
+            ret[i] = columns.get(i).intValue();
+        }
+        return ret;
+    }
+
+    static String getInsertSql(String tableName, String[] columnNames) {
+        StringBuilder sql = new StringBuilder(400);
+        StringBuilder values = new StringBuilder(200);
+        sql.append("INSERT INTO ").append(tableName).append(" (");
+        for (int i = 0; i < columnNames.length; i++) {
+            if (i > 0) {
+                sql.append(",");
+                values.append(",");
+            }
+            sql.append(columnNames[i]);
+            values.append("?");
+        }
+        sql.append(") VALUES (").append(values).append(")");
+        return sql.toString();
+    }
+
+    private void copySerial(ResultSet rs, PreparedStatement insert, int[] sourceIndexes,
+                            int[] kinds, int[] types, CopyStatistics stats) throws SQLException {
+        int pending = 0;
+        while (rs.next()) {
+            for (int i = 0; i < sourceIndexes.length; i++) {
+                writeValue(insert, i + 1, kinds[i], types[i], readValue(rs, sourceIndexes[i], kinds[i]));
+            }
+            insert.addBatch();
+            stats.rows++;
+            if (++pending == batchSize) {
+                insert.executeBatch();
+                stats.batches++;
+                pending = 0;
+            }
+        }
+        if (pending > 0) {
+            insert.executeBatch();
+            stats.batches++;
+        }
+    }
+
+    private void copyPipelined(ResultSet rs, PreparedStatement insert, int[] sourceIndexes,
+                               int[] kinds, int[] types, CopyStatistics stats) throws SQLException {
+        BlockingQueue<List<Object[]>> queue = new ArrayBlockingQueue<List<Object[]>>(queueBatches);
+        BatchWriter writer = new BatchWriter(queue, insert, kinds, types, stats);
+        Thread writerThread = new Thread(writer, "wbarchive-copy-" + stats.tableName);
+        writerThread.setDaemon(true);
+        writerThread.start();
+        try {
+            List<Object[]> batch = new ArrayList<Object[]>(batchSize);
+            while (rs.next()) {
+                Object[] row = new Object[sourceIndexes.length];
+                for (int i = 0; i < sourceIndexes.length; i++) {
+                    row[i] = readValue(rs, sourceIndexes[i], kinds[i]);
+                }
+                batch.add(row);
+                stats.rows++;
+                if (batch.size() == batchSize) {
+                    enqueue(queue, batch, writer, stats);
+                    batch = new ArrayList<Object[]>(batchSize);
+                }
+            }
+            if (batch.size() > 0) {
+                enqueue(queue, batch, writer, stats);
+            }
+            enqueue(queue, END_OF_ROWS, writer, stats);
+        } catch (SQLException e) {
+            writer.abort();
+            throw e;
+        } catch (RuntimeException e) {
+            writer.abort();
+            throw e;
+        } finally {
+            join(writerThread);
+        }
+        writer.throwError();
+    }
+
+    /**
+     * Puts given batch to the queue, waiting while it is full. Waiting time is
+     * counted as reader stall.
+     */
+    private static void enqueue(BlockingQueue<List<Object[]>> queue, List<Object[]> batch,
+                                BatchWriter writer, CopyStatistics stats) throws SQLException {
+        long s = System.nanoTime();
+        try {
+            while (!queue.offer(batch, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                writer.throwError();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw (SQLException) new SQLException("Interrupted while copying " + stats.tableName).initCause(e);
+        }
+        stats.readerStallNanos += System.nanoTime() - s;
+        if (batch != END_OF_ROWS) {
+            stats.sampleQueueDepth(queue.size());
+        }
+        writer.throwError();
+    }
+
+    private static void join(Thread t) {
+        boolean interrupted = false;
+        while (t.isAlive()) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Drains the queue into the insert statement until the end marker or an abort.
+     */
+    private static class BatchWriter implements Runnable {
+        private final BlockingQueue<List<Object[]>> queue;
+        private final PreparedStatement insert;
+        private final int[] kinds;
+        private final int[] types;
+        private final CopyStatistics stats;
+        private volatile boolean aborted;
+        private volatile Throwable error;
+
+        BatchWriter(BlockingQueue<List<Object[]>> queue, PreparedStatement insert,
+                    int[] kinds, int[] types, CopyStatistics stats) {
+            this.queue = queue;
+            this.insert = insert;
+            this.kinds = kinds;
+            this.types = types;
+            this.stats = stats;
+        }
+
+        public void run() {
+            try {
+                while (!aborted) {
+                    long s = System.nanoTime();
+                    List<Object[]> batch = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                    stats.writerStallNanos += System.nanoTime() - s;
+                    if (batch == null) {
+                        continue;
+                    }
+                    if (batch == END_OF_ROWS) {
+                        break;
+                    }
+                    for (int r = 0; r < batch.size(); r++) {
+                        Object[] row = batch.get(r);
+                        for (int i = 0; i < row.length; i++) {
+                            writeValue(insert, i + 1, kinds[i], types[i], row[i]);
+                        }
+                        insert.addBatch();
+                    }
+                    insert.executeBatch();
+                    stats.batches++;
+                }
+            } catch (Throwable t) {
+                error = t;
+            }
+        }
+
+        void abort() {
+            aborted = true;
+        }
+
+        /**
+         * Throws the error of the writer thread if it failed.
+         */
+        void throwError() throws SQLException {
+            Throwable t = error;
+            if (t == null) {
+                return;
+            }
+            if (t instanceof SQLException) {
+                throw (SQLException) t;
+            }
+            throw (SQLException) new SQLException("Error in writing " + stats.tableName + " : " + t).initCause(t);
+        }
+    }
+
+    /**
+     * Row, batch and pipeline counters of one copy. Stall times are the times the
+     * reader waited for queue space and the writer waited for batches.
+     */
+    public static class CopyStatistics {
+        private final String tableName;
+        private int rows;
+        private int batches;
+        private int maxQueueDepth;
+        private long queueDepthSum;
+        private int queueDepthSamples;
+        private long readerStallNanos;
+        private long writerStallNanos;
+        private long elapsedMillis;
+
+        CopyStatistics(String tableName) {
+            this.tableName = tableName;
+        }
+
+        void sampleQueueDepth(int depth) {
+            maxQueueDepth = Math.max(maxQueueDepth, depth);
+            queueDepthSum += depth;
+            queueDepthSamples++;
+        }
+
+        public int getRows() {
+            return rows;
+        }
+
+        public int getBatches() {
+            return batches;
+        }
+
+        public int getMaxQueueDepth() {
+            return maxQueueDepth;
+        }
+
+        public double getAverageQueueDepth() {
+            return queueDepthSamples == 0 ? 0 : (double) queueDepthSum / queueDepthSamples;
+        }
+
+        public long getReaderStallMillis() {
+            return readerStallNanos / 1000000L;
+        }
+
+        public long getWriterStallMillis() {
+            return writerStallNanos / 1000000L;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+
+        public String toString() {
+            StringBuilder sb = new StringBuilder(200);
+            sb.append("Copied ").append(rows).append(" rows of ").append(tableName)
+                .append(" in ").append(batches).append(" batches, ").append(elapsedMillis).append(" millis");
+            if (queueDepthSamples > 0) {
+                sb.append(", queue depth max ").append(maxQueueDepth)
+                    .append(" avg ").append(Math.round(getAverageQueueDepth() * 10) / 10.0)
+                    .append(", reader stalled ").append(getReaderStallMillis()).append(" millis")
+                    .append(", writer stalled ").append(getWriterStallMillis()).append(" millis");
+            }
+            return sb.toString();
+        }
+    }
+
+    static int getKind(int type) {
+        switch (type) {
+        case Types.BIT:
+        case Types.BOOLEAN:
+        case Types.TINYINT:
+        case Types.SMALLINT:
+        case Types.INTEGER:
+        case Types.BIGINT:
+            return KIND_LONG;
+        case Types.NUMERIC:
+        case Types.DECIMAL:
+            return KIND_DECIMAL;
+        case Types.REAL:
+        case Types.FLOAT:
+        case Types.DOUBLE:
+            return KIND_DOUBLE;
+        case Types.CHAR:
+        case Types.VARCHAR:
+        case Types.LONGVARCHAR:
+        case Types.CLOB:
+            return KIND_STRING;
+        case Types.DATE:
+        case Types.TIMESTAMP:
+            // *** Oracle DATE keeps the time of day, it is copied as timestamp
+            return KIND_TIMESTAMP;
+        case Types.TIME:
+            return KIND_TIME;
+        case Types.BINARY:
+        case Types.VARBINARY:
+        case Types.LONGVARBINARY:
+            return KIND_BYTES;
+        case Types.BLOB:
+            return KIND_BLOB;
+        default:
+            return KIND_OBJECT;
+        }
+    }
+
+    static Object readValue(ResultSet rs, int from, int kind) throws SQLException {
+        Object ret;
+        switch (kind) {
+        case KIND_LONG:
+            ret = Long.valueOf(rs.getLong(from));
+            break;
+        case KIND_DECIMAL:
+            ret = rs.getBigDecimal(from);
+            break;
+        case KIND_DOUBLE:
+            ret = Double.valueOf(rs.getDouble(from));
+            break;
+        case KIND_STRING:
+            ret = rs.getString(from);
+            break;
+        case KIND_TIMESTAMP:
+            ret = rs.getTimestamp(from);
+            break;
+        case KIND_TIME:
+            ret = rs.getTime(from);
+            break;
+        case KIND_BYTES:
+            ret = rs.getBytes(from);
+            break;
+        case KIND_BLOB:
+            Blob blob = rs.getBlob(from);
+            // *** read while the row is current, the locator may not outlive it
+            ret = blob == null ? null : blob.getBytes(1, (int) blob.length());
+            break;
+        default:
+            ret = rs.getObject(from);
+            break;
+        }
+        return rs.wasNull() ? null : ret;
+    }
+
+    static void writeValue(PreparedStatement ps, int to, int kind, int type, Object value)
+            throws SQLException {
+        if (value == null) {
+            // *** some drivers need the type of a null parameter
+            ps.setNull(to, type);
+            return;
+        }
+        switch (kind) {
+        case KIND_LONG:
+            ps.setLong(to, ((Long) value).longValue());
+            break;
+        case KIND_DECIMAL:
+            ps.setBigDecimal(to, (BigDecimal) value);
+            break;
+        case KIND_DOUBLE:
+            ps.setDouble(to, ((Double) value).doubleValue());
+            break;
+        case KIND_STRING:
+            ps.setString(to, (String) value);
+            break;
+        case KIND_TIMESTAMP:
+            ps.setTimestamp(to, (Timestamp) value);
+            break;
+        case KIND_TIME:
+            ps.setTime(to, (Time) value);
+            break;
+        case KIND_BYTES:
+        case KIND_BLOB:
+            ps.setBytes(to, (byte[]) value);
+            break;
+        default:
+            ps.setObject(to, value);
+            break;
+        }
+    }
+}
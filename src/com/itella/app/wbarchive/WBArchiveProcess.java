@@ -27,9 +27,11 @@ import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import javax.naming.NamingException;
@@ -39,7 +41,10 @@ import com.workbrain.app.wbarchive.WBArchiveProcessTask;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 
+import com.itella.app.wbarchive.model.PolicySnapshotCache;
+import com.itella.app.wbarchive.model.SchemaMetadataCache;
 import com.workbrain.app.wbarchive.db.WBArchPolicyAccess;
+import com.workbrain.app.wbarchive.model.WBArchPolParamData;
 import com.workbrain.app.wbarchive.model.WBArchPolicyData;
 import com.workbrain.app.wbarchive.model.WBArchTransData;
 import com.workbrain.server.registry.Registry;
@@ -63,6 +68,9 @@ public class WBArchiveProcess {
      
     private static final String WBREG_ARCHIVE_POLICY_AGING_DAYS = "/system/archiving/ARCHIVE_POLICY_AGING_DAYS";
     private static final String ARCHIVE_BOUNDARY_DATE = "/system/archiving/ARCHIVE_BOUNDARY_DATE";
+
+    /** policy param holding comma separated names of policies that must complete before the policy starts */
+    public static final String POLICY_PARAM_RUN_AFTER = "RUN_AFTER";
    
     private WBArchiveContext context;
     private List<WBArchTransData> transactions;
@@ -72,7 +80,25 @@ public class WBArchiveProcess {
     private boolean archiveEnabledPolicyExists = false;
     
     /** set to true if at least one of the archiving policies fail */
-    private boolean archivingErrorOccured = false;
+    private volatile boolean archivingErrorOccured = false;
+
+    /** set to true once the archive task has been interrupted */
+    private volatile boolean interrupted = false;
+
+    /** the number of policies processed concurrently */
+    private int policyThreads = 1;
+
+    /** true to continue batched policies after the checkpoints of an earlier run */
+    private boolean resume = false;
+
+    /** policy snapshots shared by all consumers of a policy in this run */
+    private PolicySnapshotCache policySnapshotCache;
+
+    /** true to keep table metadata for the life of the JVM instead of this run */
+    private boolean keepSchemaMetadata = false;
+
+    /** table metadata shared by all policies of this run */
+    private SchemaMetadataCache schemaMetadataCache;
     
     /** the boundary date to be used for ARCHIVE_BOUNDARY_DATE */
 	private Date boundaryDate;
@@ -110,8 +136,35 @@ public class WBArchiveProcess {
     	return this.agingDays;
     }
 
+    public void setPolicyThreads(int v){
+        this.policyThreads = v;
+    }
+
+    public int getPolicyThreads() {
+        return this.policyThreads;
+    }
+
+    public void setResume(boolean v){
+        this.resume = v;
+    }
+
+    public boolean isResume() {
+        return this.resume;
+    }
+
+    public void setKeepSchemaMetadata(boolean v){
+        this.keepSchemaMetadata = v;
+    }
+
+    public boolean isKeepSchemaMetadata() {
+        return this.keepSchemaMetadata;
+    }
+
     /**
-     * Processes archive policies for given WBArchiveContext
+     * Processes archive policies for given WBArchiveContext. When more than one
+     * policy thread is configured, independent policies run concurrently, each
+     * on its own connection pair, honouring the RUN_AFTER ordering declared in
+     * policy params.
      *
      * @throws WBArchiveException
      * @throws SQLException
@@ -125,10 +178,36 @@ public class WBArchiveProcess {
             log ("No archive policy definitions found for policy names : "  + archivePolicyNamesToRun);
             return;
         }
+        policySnapshotCache = new PolicySnapshotCache();
+        schemaMetadataCache = keepSchemaMetadata ? SchemaMetadataCache.getShared() : new SchemaMetadataCache();
+        if (policyThreads > 1) {
+            processParallel(arch);
+            return;
+        }
         Iterator<WBArchPolicyData> iter1 = arch.iterator();
         //*** go through all enabled archive definitions
         while (iter1.hasNext()) {
             WBArchPolicyData ard = iter1.next();
+            boolean isArchiveEnabledPolicy = assignAgingDays(ard);
+
+            if (!ard.isEnabled()) {
+            	log ("Archive definition : " + ard.getWbapName() + " is disabled");
+                continue;
+            }
+            processPolicy(context, ard, isArchiveEnabledPolicy, transactions);
+            if (interrupted) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Calculates and assigns aging days for archive enabled policies.
+     *
+     * @param ard
+     * @return true if the policy is an enabled archive policy
+     */
+    private boolean assignAgingDays(WBArchPolicyData ard) {
             boolean isArchiveEnabledPolicy = false;
             if (ard.isArchive()) {
             	isArchiveEnabledPolicy = ard.isEnabled();
@@ -170,19 +249,37 @@ public class WBArchiveProcess {
             		ard.setWbapAgingDays(agingDaysCalc);
             	}          	
             }
-            
-            if (!ard.isEnabled()) {
-            	log ("Archive definition : " + ard.getWbapName() + " is disabled");
-                continue;
-            }
-            
+            return isArchiveEnabledPolicy;
+    }
+
+    /**
+     * Processes one enabled policy on the connections of given context. The
+     * created transaction is added to <code>created</code>.
+     *
+     * @param ctx
+     * @param ard
+     * @param isArchiveEnabledPolicy
+     * @param created
+     * @return true if the policy was processed without errors
+     * @throws WBArchiveException
+     * @throws SQLException
+     */
+    private boolean processPolicy(WBArchiveContext ctx, WBArchPolicyData ard,
+                                  boolean isArchiveEnabledPolicy,
+                                  List<WBArchTransData> created) throws WBArchiveException , SQLException{
+            boolean success = false;
             long st = System.currentTimeMillis();
-            WBArchive wbarchive = new WBArchive(context , ard, archiveTask);
-            WBPurge wbpurge = new WBPurge(context , ard, archiveTask);
+            WBArchive wbarchive = new WBArchive(ctx , ard, archiveTask);
+            WBPurge wbpurge = new WBPurge(ctx , ard, archiveTask);
+            wbpurge.setPolicySnapshotCache(policySnapshotCache);
+            wbpurge.setSchemaMetadataCache(schemaMetadataCache);
             try {
             	wbarchive.loadPolicy();
                 wbpurge.loadPolicy();
                 wbarchive.createArchiveTransaction(true);
+                // *** batches of the archive purge are checkpointed with this transaction
+                wbpurge.setTransactionData(wbarchive.getTransactionData());
+                wbpurge.setResume(resume);
 
                 String cls = ard.getWbapClass();
                 WBArchiveComponent wba = (WBArchiveComponent)Class.forName(cls).newInstance();
@@ -191,20 +288,21 @@ public class WBArchiveProcess {
                     wbarchive.errorArchiveTransaction("Archive policy is of ARCHIVE type but"
                         + " implementing class does not perform archiving for policy"
                         + ard.getWbapName());
-                    continue;
+                    return false;
                 }
                 if (!wba.isTypePurgeImplemented() && ard.isPurge()) {
                     wbarchive.errorArchiveTransaction("Archive policy is of PURGE type but"
                         + " implementing class does not perform purging for policy"
                         + ard.getWbapName());
-                    continue;
+                    return false;
                 }
 
                 log("Starting to process archive definition : " + ard.getWbapName());
                 if (archiveTask != null){
-                    if(archiveTask.isInterrupted()){
+                    if(interrupted || archiveTask.isInterrupted()){
+                    	interrupted = true;
                     	wbarchive.rollbackWork();
-                    	break;
+                    	return false;
                     }
                 }
                 wba.processArchive(wbarchive);
@@ -216,24 +314,184 @@ public class WBArchiveProcess {
                 wbarchive.finalizeArchiveTransaction(wbarchive.getTransactionMessage());
                 wbarchive.notifyUsers();
                 wbarchive.commitWork();
+                success = true;
 
             } catch (ClassNotFoundException e) {
             	if (isArchiveEnabledPolicy) {
-            		archivingErrorOccured  = true;
+            		markArchivingError();
             	}
                 wbarchive.errorArchiveTransaction("Archive Class not found\n" + JavaUtil.getStackTrace(e));
             } catch (Throwable e) {
             	if (isArchiveEnabledPolicy) {
-            		archivingErrorOccured  = true;
+            		markArchivingError();
             	}
                 logger.error("Error when processing policy : " + ard.getWbapName(), e);
                 wbarchive.rollbackWork();
                 wbarchive.errorArchiveTransaction(e);
             } finally {
-                transactions.add(wbarchive.getTransactionData());
-                context.getConnectionCore().commit();
+                synchronized (created) {
+                    created.add(wbarchive.getTransactionData());
+                }
+                ctx.getConnectionCore().commit();
             }
+            return success;
+    }
+
+    /**
+     * Runs enabled policies on a pool of <code>policyThreads</code> workers. Each worker
+     * gets its own connection pair. A policy waits for the policies named in its
+     * RUN_AFTER param and is not run if any of them did not complete successfully.
+     * Transactions are reported in policy load order.
+     *
+     * @param arch
+     * @throws WBArchiveException
+     * @throws SQLException
+     */
+    private void processParallel(List<WBArchPolicyData> arch) throws WBArchiveException , SQLException{
+        ParallelTaskGraph graph = new ParallelTaskGraph("policies");
+        List<WBArchPolicyData> enabled = new ArrayList<WBArchPolicyData>();
+        Map<String, Boolean> archiveEnabledByName = new HashMap<String, Boolean>();
+        final Map<String, List<WBArchTransData>> createdByName = new HashMap<String, List<WBArchTransData>>();
+
+        Iterator<WBArchPolicyData> iter1 = arch.iterator();
+        while (iter1.hasNext()) {
+            final WBArchPolicyData ard = iter1.next();
+            final boolean isArchiveEnabledPolicy = assignAgingDays(ard);
+            if (!ard.isEnabled()) {
+            	log ("Archive definition : " + ard.getWbapName() + " is disabled");
+                continue;
+            }
+            enabled.add(ard);
+            archiveEnabledByName.put(ard.getWbapName(), Boolean.valueOf(isArchiveEnabledPolicy));
+            graph.addTask(ard.getWbapName(), new ParallelTaskGraph.Task() {
+                public void run() throws Exception {
+                    List<WBArchTransData> created = new ArrayList<WBArchTransData>();
+                    synchronized (createdByName) {
+                        createdByName.put(ard.getWbapName(), created);
+                    }
+                    WBArchiveContext workerContext = ArchiveContextFactory.createWorkerContext();
+                    boolean success;
+                    try {
+                        success = processPolicy(workerContext, ard, isArchiveEnabledPolicy, created);
+                    } finally {
+                        ArchiveContextFactory.releaseWorkerContext(workerContext);
+                    }
+                    if (!success) {
+                        throw new WBArchiveException("Archive definition : " + ard.getWbapName()
+                            + " did not complete successfully");
+                    }
+                }
+            });
         }
+        addDeclaredOrdering(graph, enabled);
+
+        log("Processing " + enabled.size() + " archive definitions with " + policyThreads + " threads");
+        graph.execute(policyThreads, new ParallelTaskGraph.StopCondition() {
+            public boolean shouldStop() {
+                // *** policies not started yet are skipped as soon as the task is interrupted
+                if (!interrupted && archiveTask != null && archiveTask.isInterrupted()) {
+                    interrupted = true;
+                }
+                return interrupted;
+            }
+        });
+
+        Iterator<WBArchPolicyData> iter2 = enabled.iterator();
+        while (iter2.hasNext()) {
+            WBArchPolicyData ard = iter2.next();
+            List<WBArchTransData> created = createdByName.get(ard.getWbapName());
+            if (created != null && created.size() > 0) {
+                transactions.addAll(created);
+                continue;
+            }
+            // *** nothing was created when stopped by interruption, same as the serial run
+            if (interrupted) {
+                continue;
+            }
+            String reason;
+            Throwable t = graph.getFailed().get(ard.getWbapName());
+            if (t != null) {
+                reason = "Archive definition could not be started\n" + JavaUtil.getStackTrace(t);
+            }
+            else {
+                reason = "Archive definition was not run since one of the archive definitions it runs after : "
+                    + graph.getDependencies(ard.getWbapName()) + " did not complete successfully";
+            }
+            errorPolicyNotRun(ard, archiveEnabledByName.get(ard.getWbapName()).booleanValue(), reason);
+        }
+    }
+
+    /**
+     * Adds ordering declared with the RUN_AFTER policy param (comma separated policy names)
+     * to given graph. Names of policies not part of this run are ignored.
+     *
+     * @param graph
+     * @param enabled
+     * @throws WBArchiveException
+     */
+    private void addDeclaredOrdering(ParallelTaskGraph graph, List<WBArchPolicyData> enabled)
+            throws WBArchiveException {
+        Set<String> names = new HashSet<String>();
+        Iterator<WBArchPolicyData> iter = enabled.iterator();
+        while (iter.hasNext()) {
+            names.add(iter.next().getWbapName());
+        }
+        iter = enabled.iterator();
+        while (iter.hasNext()) {
+            WBArchPolicyData ard = iter.next();
+            // *** the snapshot loaded here is reused when the policy runs
+            List<WBArchPolParamData> params = policySnapshotCache.getSnapshot(
+                context.getConnectionCore(), ard).getArchivePolicyParams();
+            if (params == null) {
+                continue;
+            }
+            Iterator<WBArchPolParamData> iterPar = params.iterator();
+            while (iterPar.hasNext()) {
+                WBArchPolParamData param = iterPar.next();
+                if (!POLICY_PARAM_RUN_AFTER.equalsIgnoreCase(param.getWbappName())
+                    || StringUtil.isEmpty(param.getWbappValue())) {
+                    continue;
+                }
+                String[] before = StringUtil.detokenizeString(param.getWbappValue(), ",");
+                for (int i = 0; i < before.length; i++) {
+                    String name = before[i].trim();
+                    if (names.contains(name)) {
+                        graph.addDependency(name, ard.getWbapName());
+                    }
+                    else {
+                        log("Archive definition : " + ard.getWbapName() + " runs after " + name
+                            + " which is not part of this run, ignored");
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates an error transaction for a policy that was not run.
+     *
+     * @param ard
+     * @param isArchiveEnabledPolicy
+     * @param reason
+     * @throws WBArchiveException
+     * @throws SQLException
+     */
+    private void errorPolicyNotRun(WBArchPolicyData ard, boolean isArchiveEnabledPolicy, String reason)
+            throws WBArchiveException , SQLException{
+        if (isArchiveEnabledPolicy) {
+            markArchivingError();
+        }
+        WBArchive wbarchive = new WBArchive(context , ard, archiveTask);
+        try {
+            wbarchive.errorArchiveTransaction(reason);
+        } finally {
+            transactions.add(wbarchive.getTransactionData());
+            context.getConnectionCore().commit();
+        }
+    }
+
+    private synchronized void markArchivingError() {
+        archivingErrorOccured = true;
     }
 
     private void processArchiveSchemaPurge(WBPurge wbpurge) throws WBArchiveException , SQLException{
@@ -43,7 +43,12 @@ public class WBArchivePurgeProcessTask extends com.workbrain.app.wbarchive.WBArc
     public final static String ARCHIVE_POLICY_NAMES_PARAM = "ARCHIVE_POLICY_NAMES";
     public final static String AGING_DAYS_PARAM = "AGING_DAYS";
     public final static String AGING_DATE_PARAM = "AGING_DATE";
+    public final static String POLICY_THREADS_PARAM = "POLICY_THREADS";
+    public final static String RESUME_PARAM = "RESUME";
+    public final static String SCHEMA_CACHE_PARAM = "SCHEMA_CACHE";
+    public final static String SCHEMA_CACHE_JVM = "JVM";
     private static final String WBREG_ARCHIVE_POLICY_AGING_DAYS = "/system/archiving/ARCHIVE_POLICY_AGING_DAYS";
+    private static final String WBREG_ARCHIVE_POLICY_THREADS = "/system/archiving/ARCHIVE_POLICY_THREADS";
     public final static String ALL = "ALL";
 
 	public final static String AGING_SELECTION_PARAM = "AGING";
@@ -80,6 +85,23 @@ public class WBArchivePurgeProcessTask extends com.workbrain.app.wbarchive.WBArc
             
             arp.setAgingSelection(agingSelection);
 
+            int policyThreads = 1;
+            String policyThreadsStr = (String) parameters.get(POLICY_THREADS_PARAM);
+            if(StringUtil.isEmpty(policyThreadsStr)) {
+            	policyThreads = Registry.getVarInt(WBREG_ARCHIVE_POLICY_THREADS, 1);
+            }
+            else {
+            	policyThreads = Integer.parseInt(policyThreadsStr);
+            }
+            arp.setPolicyThreads(policyThreads);
+
+            // *** continue batched policies after the checkpoints of an interrupted or failed run
+            String resumeStr = (String) parameters.get(RESUME_PARAM);
+            arp.setResume("Y".equalsIgnoreCase(resumeStr) || "true".equalsIgnoreCase(resumeStr));
+
+            // *** table metadata is read once per run, or once per JVM with SCHEMA_CACHE=JVM
+            arp.setKeepSchemaMetadata(SCHEMA_CACHE_JVM.equalsIgnoreCase((String) parameters.get(SCHEMA_CACHE_PARAM)));
+
             arp.setArchivePolicyNamesToRun(sPolsFinal);
             appendToTaskLogMessage ("Processing policies : " + (StringUtil.isEmpty(sPolsFinal) ? ALL : sPolsFinal));
 
@@ -30,34 +30,47 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
-import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.text.MessageFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
-import com.workbrain.app.wbarchive.SchemaHelper;
 import com.workbrain.app.wbarchive.WBArchiveContext;
 import com.workbrain.app.wbarchive.WBArchiveException;
 import com.workbrain.app.wbarchive.db.WBArchTransAccess;
 import com.workbrain.app.wbarchive.model.ArchiveData;
+import com.itella.app.wbarchive.model.ArchiveCheckpoint;
+import com.itella.app.wbarchive.model.BoundWhereClause;
+import com.itella.app.wbarchive.model.PolicySnapshot;
+import com.itella.app.wbarchive.model.PolicySnapshotCache;
+import com.itella.app.wbarchive.model.PrimaryKeyPredicates;
+import com.itella.app.wbarchive.model.PrimaryKeySource;
 import com.itella.app.wbarchive.model.PurgeData;
+import com.itella.app.wbarchive.model.SchemaMetadataCache;
+import com.itella.app.wbarchive.model.WhereClauseTemplate;
 import com.workbrain.app.wbarchive.model.WBArchPolDetData;
+import com.workbrain.app.wbarchive.model.WBArchPolParamData;
 import com.workbrain.app.wbarchive.model.WBArchPolicyData;
 import com.workbrain.app.wbarchive.model.WBArchTransData;
 import com.workbrain.app.wbarchive.model.WBArchTransDetData;
 import com.workbrain.sql.DBConnection;
+import com.workbrain.sql.DBServer;
 import com.workbrain.sql.SQLUtil;
 import com.workbrain.tool.mail.Message;
 import com.workbrain.util.DataLoader;
 import com.workbrain.util.FileUtil;
 import com.workbrain.util.JavaUtil;
-import com.workbrain.util.LongArrayIterator;
-import com.workbrain.util.LongList;
 import com.workbrain.util.StringUtil;
 import com.workbrain.util.WBFile;
 import com.workbrain.util.XMLHelper;
@@ -78,7 +91,13 @@ public class WBPurge {
     private static final String TEMP_FILE_XML_EXT = ".xml";
 
     private static final String HTML_BREAK = "<br>";
-    private static final int SQL_IN_CLAUSE_LIMIT = 500;
+    private static final int PK_DELETE_BATCH_CHUNKS = 50;
+    private static final String KEY_STAGE_TABLE = "WBARCH_KEY_STAGE";
+    private static final int KEY_STAGE_INSERT_BATCH = 1000;
+    private static final int DEFAULT_KEY_STAGE_THRESHOLD = 10000;
+    private static final int PK_FETCH_SIZE = 5000;
+    private static final int PK_CHUNK_KEYS = 50000;
+    private static final AtomicLong KEY_STAGE_IDS = new AtomicLong(System.currentTimeMillis() * 1000);
     private static final long WB_USER_ID = 3;
     private static final String WB_USER_NAME = "WORKBRAIN";
     private WBArchPolicyData archivePolicyData;
@@ -91,12 +110,28 @@ public class WBPurge {
     private String tempFilePath;
     private String cfgFilePath;
     private String xmlFilePath;
+    private String spoolFilePath;
     private boolean isArchiveModeDB;
     private boolean isArchiveModeSchema;
     private ArchiveData archiveData;
     private PurgeData purgeData;
+    private boolean archiveDataLoaded = false;
+    private PolicySnapshotCache policySnapshotCache;
+    private SchemaMetadataCache schemaMetadataCache;
+    private boolean isWorker;
+    /** archive tables that cannot take a bulk path any more in the current transaction */
+    private final Set<String> directPathTables = new HashSet<String>();
+    /** tables of more than one item of the current transaction */
+    private final Set<String> repeatedTables = new HashSet<String>();
+    /** true if the driver did not report the rows of the last delete by primary keys */
+    private boolean deleteCountUnknown;
+    private ParallelDml parallelDmlCore;
+    private ParallelDml parallelDmlArch;
+    private StreamingTableCopier tableCopier;
     private String schemaUserNameArchive;
     private WBArchiveProcessTask archiveTask;
+    private boolean resume;
+    private ArchiveCheckpoint checkpoint;
 
     private final MessageFormat configXmlFormat = new MessageFormat(
             "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n"
@@ -142,14 +177,64 @@ public class WBPurge {
     }
 
     /**
-     * Returns ArchiveData which manages all policy related data.
+     * Returns ArchiveData which manages all policy related data, loading its policy
+     * on first use.
      *
      * @return
+     * @throws WBArchiveException if the policy could not be loaded
      */
-    public ArchiveData getArchiveData() {
+    public ArchiveData getArchiveData() throws WBArchiveException {
+        ensureArchiveDataLoaded();
         return archiveData;
     }
 
+    /**
+     * Returns PurgeData which manages all policy related data.
+     *
+     * @return
+     */
+    public PurgeData getPurgeData() {
+        return purgeData;
+    }
+
+    /**
+     * Sets the run scoped cache <code>loadPolicy</code> takes the policy snapshot from.
+     *
+     * @param v
+     */
+    public void setPolicySnapshotCache(PolicySnapshotCache v) {
+        policySnapshotCache = v;
+    }
+
+    /**
+     * Sets the cache column lists and primary key columns are taken from.
+     *
+     * @param v
+     */
+    public void setSchemaMetadataCache(SchemaMetadataCache v) {
+        schemaMetadataCache = v;
+        purgeData.setSchemaMetadataCache(v);
+    }
+
+    /**
+     * Sets whether batched policies continue after the latest unfinished checkpoint
+     * of an earlier run instead of starting from the top.
+     *
+     * @param v
+     */
+    public void setResume(boolean v) {
+        resume = v;
+    }
+
+    /**
+     * Shares an archive transaction created elsewhere, checkpoints are written for it.
+     *
+     * @param v
+     */
+    public void setTransactionData(WBArchTransData v) {
+        transData = v;
+    }
+
     /**
      * Returns loaded archive policy.
      *
@@ -183,7 +268,7 @@ public class WBPurge {
      * @return
      */
     public List<WBArchPolDetData> getArchivePolicyDetailsOriginal() {
-        return archiveData.getArchivePolicyDetailsOriginal();
+        return purgeData.getArchivePolicyDetailsOriginal();
     }
 
     /**
@@ -192,7 +277,7 @@ public class WBPurge {
      * @return
      */
     public List<WBArchPolDetData> getArchivePolicyDetails() {
-        return archiveData.getArchivePolicyDetails();
+        return purgeData.getArchivePolicyDetails();
     }
 
     /**
@@ -200,8 +285,10 @@ public class WBPurge {
      * based on commit params.
      *
      * @return ArchivePolicyDayTokenizer
+     * @throws WBArchiveException if the policy could not be loaded
      */
-    public ArchiveData.ArchivePolicyDayTokenizer getArchivePolicyDayTokenizer(){
+    public ArchiveData.ArchivePolicyDayTokenizer getArchivePolicyDayTokenizer() throws WBArchiveException{
+        ensureArchiveDataLoaded();
         return archiveData.getArchivePolicyDayTokenizer();
     }
 
@@ -210,8 +297,11 @@ public class WBPurge {
      * based on commit params.
      *
      * @return ArchivePolicyDayTokenizer
+     * @throws WBArchiveException if the policy could not be loaded
+     * @throws SQLException
      */
-    public ArchiveData.ArchivePolicyEmpIdTokenizer getArchivePolicyEmpIdTokenizer() throws SQLException{
+    public ArchiveData.ArchivePolicyEmpIdTokenizer getArchivePolicyEmpIdTokenizer() throws WBArchiveException , SQLException{
+        ensureArchiveDataLoaded();
         return archiveData.getArchivePolicyEmpIdTokenizer();
     }
 
@@ -220,9 +310,12 @@ public class WBPurge {
      * based on commit params.
      *
      * @return ArchivePolicyRecordTokenizer
+     * @throws WBArchiveException if the policy could not be loaded
+     * @throws SQLException
      */
     public ArchiveData.ArchivePolicyRecordTokenizer getArchivePolicyRecordTokenizer
-    (WBArchPolDetData det) throws SQLException{
+    (WBArchPolDetData det) throws WBArchiveException , SQLException{
+        ensureArchiveDataLoaded();
         return archiveData.getArchivePolicyRecordTokenizer(det);
     }
 
@@ -233,12 +326,28 @@ public class WBPurge {
      * @throws SQLException
      */
     public void processArchivePolicy() throws WBArchiveException, SQLException{
+        Set<String> exchangeTables = getPartitionExchangeTables();
+        enableParallelDml(connCore);
+        try {
+            processArchivePolicy(exchangeTables);
+        } finally {
+            restoreParallelDml(connCore);
+        }
+    }
+
+    private void processArchivePolicy(Set<String> exchangeTables) throws WBArchiveException, SQLException{
         if (getArchivePolicyData().isCommitTypeEveryPolicyDetail()
                 || getArchivePolicyData().isCommitTypeAllOrNothing()) {
             List<WBArchPolDetData> archDat = getArchivePolicyDetails();
+            int detailThreads = getDetailThreads();
+            if (detailThreads > 1 && archDat.size() > 1) {
+                processArchivePolicyDetailsParallel(archDat, detailThreads, false, exchangeTables);
+                return;
+            }
             Iterator<WBArchPolDetData> iter = archDat.iterator();
             while (iter.hasNext()) {
                 WBArchPolDetData archDet = iter.next();
+                exchangePartitions(archDet, exchangeTables);
                 processArchivePolicyDetail(archDet,
                         getArchivePolicyData().isCommitTypeEveryPolicyDetail());
             }
@@ -247,52 +356,466 @@ public class WBPurge {
             }
         }
         else if (getArchivePolicyData().isCommitTypeEveryXDays()) {
-            ArchiveData.ArchivePolicyDayTokenizer tok = getArchivePolicyDayTokenizer();
+            int windowThreads = getDayWindowThreads();
+            if (windowThreads > 1) {
+                processDayWindowsParallel(windowThreads, false);
+                return;
+            }
+            ArchiveCheckpoint from = startCheckpoint(ArchiveCheckpoint.PHASE_PURGE);
+            PurgeData.ArchivePolicyDayTokenizer tok = getArchivePolicyDayTokenizer_ForPurge();
+            if (from != null) {
+                tok.resumeAfter(from.getPositionDate());
+            }
             while (tok.hasNext()) {
                 List<WBArchPolDetData> detailsThisBatch = tok.next();
                 String log = "Processing days before " + tok.getCurrentAgingDate();
                 log(log);
                 addTransactionDetailMessage(log);
+                setCheckpointPosition(tok.getCurrentAgingDate());
                 processArchivePolicyDetails(detailsThisBatch, true);
             }
+            completeCheckpoint();
 
         }
         else if  (getArchivePolicyData().isCommitTypeEveryXEmployee()) {
-            ArchiveData.ArchivePolicyEmpIdTokenizer tok = getArchivePolicyEmpIdTokenizer();
+            ArchiveCheckpoint from = startCheckpoint(ArchiveCheckpoint.PHASE_PURGE);
+            // *** employees and records to archive are selected on the core
+            final PurgeData.ArchivePolicyEmpIdTokenizer tok = purgeData.getArchivePolicyEmpIdTokenizer(connCore,
+                    getResumeEmpId(from));
+            int batchThreads = purgeData.getArchivePolicyParamInt(PurgeData.PARAM_PARALLEL_EMP_BATCHES, 1);
+            if (batchThreads > 1) {
+                processBatchesParallel(new DetailBatchSource() {
+                    public DetailBatch next() throws WBArchiveException {
+                        if (!tok.hasNext()) {
+                            return null;
+                        }
+                        List<WBArchPolDetData> detailsThisBatch = tok.next();
+                        return new DetailBatch(detailsThisBatch,
+                                "Processing " + tok.getCurrentBatchSize() + " employee(s)",
+                                tok.getCurrentLastEmpId());
+                    }
+                }, batchThreads, false, new BatchCheckpoint());
+                completeCheckpoint();
+                return;
+            }
             while (tok.hasNext()) {
                 List<WBArchPolDetData> detailsThisBatch = tok.next();
                 String log = "Processing " + tok.getCurrentBatchSize() + " employee(s)";
                 log(log);
                 addTransactionDetailMessage(log);
+                setCheckpointPosition(0, tok.getCurrentLastEmpId());
                 processArchivePolicyDetails(detailsThisBatch, true);
             }
+            completeCheckpoint();
         }
         else if (getArchivePolicyData().isCommitTypeEveryXRecords()) {
             List<WBArchPolDetData> archDat = getArchivePolicyDetails();
-            Iterator<WBArchPolDetData> iter = archDat.iterator();
-            while (iter.hasNext()) {
-                WBArchPolDetData archDet = iter.next();
-                ArchiveData.ArchivePolicyRecordTokenizer tok = getArchivePolicyRecordTokenizer(archDet);
+            ArchiveCheckpoint from = startCheckpoint(ArchiveCheckpoint.PHASE_PURGE);
+            int resumeDetail = from == null ? 0 : from.getDetailIndex();
+            for (int d = 0; d < archDat.size(); d++) {
+                WBArchPolDetData archDet = archDat.get(d);
+                if (d < resumeDetail) {
+                    log("Skipping detail for table " + archDet.getWbapdTableName()
+                            + ", it was committed by transaction " + from.getWbatId());
+                    continue;
+                }
+                PurgeData.ArchivePolicyRecordTokenizer tok = purgeData.getArchivePolicyRecordTokenizer(connCore, archDet);
+                if (d == resumeDetail && from != null) {
+                    tok.resumeAfterKey(from.getPosition());
+                }
                 if (!tok.hasAny()) {
                     String log = "No records found for this policy detail";
                     log(log); addTransactionDetailMessage(log);
                 }
                 else {
                     while (tok.hasNext()) {
-                        String sqlThisBatch = tok.next();
-                        String log = "Processing BATCH SQL : \n" + sqlThisBatch;
+                        WBArchPolDetData archDetThis = tok.nextDetail();
+                        String log = "Processing BATCH SQL : \n" + archDetThis.retrieveWbapdWhereClauseResolved();
                         log(log);  addTransactionDetailMessage(log);
-                        WBArchPolDetData archDetThis = new WBArchPolDetData();
-                        archDetThis.setWbapdTableName(archDet.getWbapdTableName());
-                        archDetThis.setWbapdWhereClause(sqlThisBatch);
-                        archDetThis.assignWbapdWhereClauseResolved(sqlThisBatch);
+                        setCheckpointPosition(d, tok.isKeyset()
+                                ? String.valueOf(tok.getCurrentLastKey()) : archDet.getWbapdTableName());
                         processArchivePolicyDetail(archDetThis, true);
+                        purgeData.releaseBoundWhereClauses(Collections.singletonList(archDetThis));
+                    }
+                }
+            }
+            completeCheckpoint();
+        }
+    }
+
+    /**
+     * Returns the tables named by the PARTITION_EXCHANGE policy param, empty if partitions
+     * are not moved for this policy. The moves are DDL and commit the core connection,
+     * so they are only done for EVERY_POLICY_DETAIL policies, between two details.
+     *
+     * @return
+     */
+    private Set<String> getPartitionExchangeTables() {
+        Set<String> ret = new HashSet<String>();
+        WBArchPolParamData param = purgeData.getArchivePolicyParam(PurgeData.PARAM_PARTITION_EXCHANGE);
+        if (param == null || StringUtil.isEmpty(param.getWbappValue())
+                || !isArchiveModeSchema || !archivePolicyData.isArchive()) {
+            return ret;
+        }
+        if (!archivePolicyData.isCommitTypeEveryPolicyDetail()) {
+            log("Policy " + archivePolicyData.getWbapName() + " does not commit every policy detail, ignoring "
+                    + PurgeData.PARAM_PARTITION_EXCHANGE + " and archiving all rows by the details");
+            return ret;
+        }
+        String[] names = param.getWbappValue().split(",");
+        for (int i = 0; i < names.length; i++) {
+            ret.add(names[i].trim().toUpperCase());
+        }
+        return ret;
+    }
+
+    /**
+     * Moves the partitions older than the aging date of the table of given detail to
+     * the archive schema, if the table is one of given tables. Rows of partitions that
+     * were not moved, including the one holding the aging date, are archived by the
+     * detail as usual.
+     * <p>
+     * Whole partitions are only moved if the where clause of the detail is nothing but
+     * <code>partition key &lt; #AGINGDATE#</code> (or &lt;=), any other where clause may
+     * keep rows of the partition and is archived row by row.
+     *
+     * @param archDet
+     * @param tables  tables of <code>getPartitionExchangeTables</code>
+     * @throws WBArchiveException
+     * @throws SQLException
+     */
+    private void exchangePartitions(WBArchPolDetData archDet, Set<String> tables)
+            throws WBArchiveException, SQLException {
+        String table = archDet.getWbapdTableName().toUpperCase();
+        if (!tables.contains(table)) {
+            return;
+        }
+        WhereClauseTemplate template = purgeData.getWhereClauseTemplate(archDet.getWbapdWhereClause());
+        PartitionExchanger exchanger = new PartitionExchanger(connCore, schemaUserNameArchive);
+        String column = template.getAgingDateBoundColumn();
+        String key;
+        try {
+            key = exchanger.getPartitionKeyColumn(table);
+        } catch (SQLException e) {
+            throw new WBArchiveException("Error in reading the partition key of " + table, e);
+        }
+        if (column == null || key == null || !column.equalsIgnoreCase(key)) {
+            log("Partitions of " + table + " are archived row by row, the where clause : "
+                    + archDet.getWbapdWhereClause() + " is not " + (key == null ? "the partition key" : key)
+                    + " < " + WBArchPolDetData.WHERE_AGING_DAYS);
+            return;
+        }
+        // *** the moves are DDL, nothing of this run may be pending when Oracle commits them
+        connCore.commit();
+        long s = System.currentTimeMillis();
+        List<PartitionExchanger.Exchange> exchanges;
+        try {
+            exchanges = exchanger.exchangeBefore(table, getArchiveAgingDate(), template.isAgingDateBoundInclusive());
+            connCore.commit();
+        } catch (SQLException e) {
+            throw new WBArchiveException("Error in moving partitions of " + table, e);
+        }
+        for (int i = 0; i < exchanges.size(); i++) {
+            PartitionExchanger.Exchange ex = exchanges.get(i);
+            log(ex.toString());  addTransactionDetailMessage(ex.toString());
+            addTransactionRecordsAffected((int) ex.getRows());
+        }
+        meterTime("Partition exchange for : " + table, s);
+    }
+
+    /**
+     * Processes policy details of an ALL_OR_NOTHING or EVERY_POLICY_DETAIL policy with
+     * up to <code>threads</code> workers, each on its own connection pair. A detail starts
+     * once the details it depends on by <code>PolicyDetailDependencies</code> are done,
+     * details of lower priority number first; details not depending on each other run
+     * concurrently.
+     * <p>
+     * Every worker commits each detail as it is done, ALL_OR_NOTHING policies never
+     * get here, see <code>getDetailThreads</code>.
+     *
+     * @param policyDetails
+     * @param threads
+     * @param archivePurge  true to purge details from the archive as processArchiveSchemaPurge does
+     * @param exchangeTables tables whose partitions are moved before their details
+     * @throws WBArchiveException
+     * @throws SQLException
+     */
+    private void processArchivePolicyDetailsParallel(List<WBArchPolDetData> policyDetails,
+                                                     int threads,
+                                                     final boolean archivePurge,
+                                                     final Set<String> exchangeTables)
+            throws WBArchiveException , SQLException{
+        List<Set<Integer>> predecessors = PolicyDetailDependencies.findPredecessors(connCore, policyDetails);
+        final WBArchiveContext[] contexts = new WBArchiveContext[policyDetails.size()];
+        final WBPurge[] workers = new WBPurge[policyDetails.size()];
+        String[] keys = new String[policyDetails.size()];
+        ParallelTaskGraph graph = new ParallelTaskGraph("details-" + archivePolicyData.getWbapName());
+        for (int i = 0; i < policyDetails.size(); i++) {
+            final int slot = i;
+            final WBArchPolDetData archDet = policyDetails.get(i);
+            keys[i] = String.valueOf(i) + ":" + archDet.getWbapdTableName();
+            graph.addTask(keys[i], new ParallelTaskGraph.Task() {
+                public void run() throws Exception {
+                    contexts[slot] = ArchiveContextFactory.createWorkerContext();
+                    WBPurge worker = newWorker(contexts[slot], String.valueOf(slot));
+                    workers[slot] = worker;
+                    if (archivePurge) {
+                        worker.processPurgeArchivePolicyDetail(archDet, true);
+                    }
+                    else {
+                        worker.exchangePartitions(archDet, exchangeTables);
+                        worker.processArchivePolicyDetail(archDet, true);
+                    }
+                }
+            });
+        }
+        int dependencyCount = 0;
+        for (int i = 0; i < keys.length; i++) {
+            Iterator<Integer> iter = predecessors.get(i).iterator();
+            while (iter.hasNext()) {
+                graph.addDependency(keys[iter.next().intValue()], keys[i]);
+                dependencyCount++;
+            }
+        }
+        log("Processing " + policyDetails.size() + " archive details with " + dependencyCount
+                + " dependencies with " + threads + " threads");
+
+        try {
+            graph.execute(threads, new ParallelTaskGraph.StopCondition() {
+                public boolean shouldStop() {
+                    // *** workers run without the task, this keeps the task lock updated
+                    return archiveTask != null && archiveTask.isInterrupted();
+                }
+            });
+            if (graph.getFailed().size() > 0) {
+                throw new WBArchiveException("Error in processing archive details in parallel", graph.getFirstFailure());
+            }
+            if (graph.getSkipped().size() > 0) {
+                throw new WBArchiveException("Archive details were not processed, archive task was interrupted : "
+                        + graph.getSkipped());
+            }
+        } finally {
+            for (int i = 0; i < workers.length; i++) {
+                if (workers[i] == null) {
+                    continue;
+                }
+                addTransactionRecordsAffected(workers[i].getTransactionRecordsAffected());
+                workers[i].getTransactionDetails().clearAll();
+            }
+            for (int i = 0; i < contexts.length; i++) {
+                ArchiveContextFactory.releaseWorkerContext(contexts[i]);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of threads processing the details of an ALL_OR_NOTHING or
+     * EVERY_POLICY_DETAIL policy. Workers have their own connections and there is no
+     * distributed transaction to commit them together, so ALL_OR_NOTHING policies
+     * always run serially on the connections of this instance.
+     *
+     * @return
+     */
+    private int getDetailThreads() {
+        int ret = purgeData.getArchivePolicyParamInt(PurgeData.PARAM_PARALLEL_DETAILS, 1);
+        if (ret > 1 && getArchivePolicyData().isCommitTypeAllOrNothing()) {
+            log("Policy " + archivePolicyData.getWbapName() + " is ALL_OR_NOTHING, ignoring "
+                    + PurgeData.PARAM_PARALLEL_DETAILS + "=" + ret + " and processing details serially");
+            return 1;
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the number of threads processing the day windows of an EVERY_X_DAYS policy.
+     * Concurrent windows select the rows of a window as those selected for its end but
+     * not for its start, so every where clause must keep selecting a row once the aging
+     * date passed it; otherwise windows run serially.
+     *
+     * @return
+     * @throws WBArchiveException
+     */
+    private int getDayWindowThreads() throws WBArchiveException {
+        int ret = purgeData.getArchivePolicyParamInt(PurgeData.PARAM_PARALLEL_DAY_WINDOWS, 1);
+        if (ret <= 1) {
+            return ret;
+        }
+        Iterator<WBArchPolDetData> iter = purgeData.getArchivePolicyDetailsOriginal().iterator();
+        while (iter.hasNext()) {
+            WBArchPolDetData det = iter.next();
+            if (!purgeData.getWhereClauseTemplate(det.getWbapdWhereClause()).isAgingDateUpperBound()) {
+                log("Where clause of " + det.getWbapdTableName() + " does not only compare with < "
+                        + WBArchPolDetData.WHERE_AGING_DAYS + ", ignoring " + PurgeData.PARAM_PARALLEL_DAY_WINDOWS
+                        + "=" + ret + " and processing day windows serially");
+                return 1;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Processes the day windows of an EVERY_X_DAYS policy with <code>threads</code> workers.
+     * Windows are resolved to select disjoint rows and handed out oldest first. The
+     * checkpoint only advances over windows whose predecessors have all committed.
+     *
+     * @param threads
+     * @param archivePurge  true to purge windows from the archive as processArchiveSchemaPurge does
+     * @throws WBArchiveException
+     * @throws SQLException
+     */
+    private void processDayWindowsParallel(int threads, boolean archivePurge)
+            throws WBArchiveException , SQLException{
+        ArchiveCheckpoint from = startCheckpoint(archivePurge
+                ? ArchiveCheckpoint.PHASE_ARCHIVE_PURGE : ArchiveCheckpoint.PHASE_PURGE);
+        final PurgeData.ArchivePolicyDayTokenizer tok = purgeData.getArchivePolicyDayTokenizer(true);
+        if (from != null) {
+            tok.resumeAfter(from.getPositionDate());
+        }
+        BatchCheckpoint checkpoint = new BatchCheckpoint();
+        try {
+            processBatchesParallel(new DetailBatchSource() {
+                public DetailBatch next() throws WBArchiveException {
+                    if (!tok.hasNext()) {
+                        return null;
                     }
+                    List<WBArchPolDetData> detailsThisBatch = tok.next();
+                    return new DetailBatch(detailsThisBatch,
+                            "Processing days before " + tok.getCurrentAgingDate()
+                            + (tok.getCurrentWindowStartDate() == null ? "" : " from " + tok.getCurrentWindowStartDate()),
+                            tok.getCurrentAgingDate());
                 }
+            }, threads, archivePurge, checkpoint);
+            completeCheckpoint();
+        } finally {
+            DetailBatch last = checkpoint.getLastContiguous();
+            if (last != null) {
+                appendTransactionMessage("All days before " + last.getPosition() + " have been committed");
             }
         }
     }
 
+    /**
+     * Processes batches from given source with <code>threads</code> workers, each on its own
+     * connection pair. Workers pull the next batch from the source when done with the
+     * previous one and commit every batch with its own transaction detail, so a failing
+     * batch only rolls back its own work. After a failure no new batches are started and
+     * the first error is thrown once running batches are done.
+     *
+     * @param source
+     * @param threads
+     * @param archivePurge  true to purge batches from the archive as processArchiveSchemaPurge does
+     * @param checkpoint    marked with every committed batch
+     * @throws WBArchiveException
+     * @throws SQLException
+     */
+    private void processBatchesParallel(final DetailBatchSource source,
+                                        int threads,
+                                        final boolean archivePurge,
+                                        final BatchCheckpoint checkpoint)
+            throws WBArchiveException , SQLException{
+        log("Processing batches with " + threads + " threads");
+        final AtomicBoolean stop = new AtomicBoolean(false);
+        final int[] sequence = new int[] {0};
+        final List<WBPurge> workers = Collections.synchronizedList(new ArrayList<WBPurge>());
+        ParallelTaskGraph graph = new ParallelTaskGraph("batches-" + archivePolicyData.getWbapName());
+        for (int i = 0; i < threads; i++) {
+            final String workerId = String.valueOf(i);
+            graph.addTask(workerId, new ParallelTaskGraph.Task() {
+                public void run() throws Exception {
+                    WBArchiveContext workerContext = ArchiveContextFactory.createWorkerContext();
+                    WBPurge worker = null;
+                    try {
+                        worker = newWorker(workerContext, workerId);
+                        workers.add(worker);
+                        while (!stop.get()) {
+                            DetailBatch batch;
+                            synchronized (source) {
+                                batch = source.next();
+                                if (batch != null) {
+                                    batch.setSequence(sequence[0]++);
+                                }
+                            }
+                            if (batch == null) {
+                                break;
+                            }
+                            worker.log(batch.getMessage());
+                            worker.addTransactionDetailMessage(batch.getMessage());
+                            if (archivePurge) {
+                                worker.processPurgeArchivePolicyDetails(batch.getDetails(), true);
+                            }
+                            else {
+                                worker.processArchivePolicyDetails(batch.getDetails(), true);
+                            }
+                            if (checkpoint.markCommitted(batch)) {
+                                log("Checkpoint advanced to " + checkpoint.getLastContiguous().getMessage());
+                                synchronized (source) {
+                                    saveBatchCheckpoint(checkpoint.getLastContiguous());
+                                }
+                            }
+                        }
+                    } catch (Exception e) {
+                        stop.set(true);
+                        if (worker != null) {
+                            worker.rollbackWork();
+                        }
+                        throw e;
+                    } finally {
+                        ArchiveContextFactory.releaseWorkerContext(workerContext);
+                    }
+                }
+            });
+        }
+        try {
+            graph.execute(threads, new ParallelTaskGraph.StopCondition() {
+                public boolean shouldStop() {
+                    // *** workers run without the task, this keeps the task lock updated
+                    if (archiveTask != null && archiveTask.isInterrupted()) {
+                        stop.set(true);
+                    }
+                    return stop.get();
+                }
+            });
+        } finally {
+            synchronized (workers) {
+                Iterator<WBPurge> iter = workers.iterator();
+                while (iter.hasNext()) {
+                    addTransactionRecordsAffected(iter.next().getTransactionRecordsAffected());
+                }
+            }
+        }
+        if (graph.getFailed().size() > 0) {
+            throw new WBArchiveException("Error in processing batches in parallel", graph.getFirstFailure());
+        }
+    }
+
+    /**
+     * Returns a copy of this instance working on the connections of given context. The copy
+     * shares the loaded policy and the archive transaction of this instance.
+     *
+     * @param workerContext
+     * @param workerId       appended to temp file names so that workers do not share them
+     * @return
+     */
+    private WBPurge newWorker(WBArchiveContext workerContext, String workerId) {
+        WBPurge worker = new WBPurge(workerContext, archivePolicyData, null);
+        worker.archiveData = archiveData;
+        worker.archiveDataLoaded = archiveDataLoaded;
+        worker.purgeData = purgeData;
+        worker.schemaMetadataCache = schemaMetadataCache;
+        worker.isWorker = true;
+        worker.transData = transData;
+        if (isArchiveModeDB && transData != null) {
+            worker.tempFilePath = tempFilePath;
+            worker.xmlFilePath = tempFilePath + TEMP_FILE_PREFIX + transData.getWbatId() + "_" + workerId +
+                    TEMP_FILE_XML_EXT;
+            worker.cfgFilePath = tempFilePath + TEMP_FILE_PREFIX + transData.getWbatId() + "_" + workerId +
+                    TEMP_FILE_CFG_EXT;
+            worker.spoolFilePath = tempFilePath + TEMP_FILE_PREFIX + transData.getWbatId() + "_" + workerId +
+                    BinarySpool.FILE_EXT;
+        }
+        return worker;
+    }
+
     /**
      * Processes list of resolved ArchivePolicyDetails.
      *
@@ -311,6 +834,8 @@ public class WBPurge {
             WBArchPolDetData archDet = iter.next();
             processArchivePolicyDetail(archDet, false);
         }
+        // *** the transaction items hold the bound where clauses now
+        purgeData.releaseBoundWhereClauses(policyDetails);
         if (shouldCommit) {
             commitWork();
         }
@@ -357,12 +882,13 @@ public class WBPurge {
         if (!detData.resolvesForPrimaryKey()) {
             getTransactionDetails().addToTransactionDetails(detData.
                             getWbapdTableName(),
-                    detData.retrieveWbapdWhereClauseResolved());
+                    purgeData.getBoundWhereClause(detData));
         }
         else {
             getTransactionDetails().
                     addToTransactionDetailsResolvingToPrimaryKey(detData.getWbapdTableName(),
-                            detData.retrieveWbapdWhereClauseResolved()
+                            StringUtil.isEmpty(detData.retrieveWbapdWhereClauseResolved())
+                                    ? null : purgeData.getBoundWhereClause(detData)
                     );
         }
     }
@@ -390,23 +916,7 @@ public class WBPurge {
         try {
             if (transactionDetailItems != null && transactionDetailItems.size() != 0) {
                 Date start = new Date();
-                for (int i = 0, k = transactionDetailItems.size(); i < k; i++) {
-                    TransactionDetails.TransactionDetailItem item =
-                            transactionDetailItems.get(i);
-                    int affectedRecs = 0;
-                    if (archivePolicyData.isArchive()) {
-                        int cnt = archiveData(item);
-                        if (cnt > 0) {
-                            affectedRecs = purgeData(item);
-                        }
-                    }
-                    else {
-                        affectedRecs = purgeData(item);
-                    }
-                    String msg = affectedRecs + " records have been processed successfully";
-                    log(msg);  addTransactionDetailMessage(msg);
-                    addTransactionRecordsAffected(affectedRecs);
-                }
+                applyTransactionDetailItems(transactionDetailItems);
                 addTransactionDetailMessage("Work Committed");
 
                 deleteTempFiles(true);
@@ -418,6 +928,7 @@ public class WBPurge {
                     connArch.commit();
                 }
             }
+            saveCheckpoint();
             connCore.commit();
             log("Work Committed\n\n");
         } catch (Exception e){
@@ -434,6 +945,97 @@ public class WBPurge {
         }
     }
 
+    /**
+     * Archives and/or purges given items without committing.
+     *
+     * @param transactionDetailItems
+     * @throws WBArchiveException
+     * @throws SQLException
+     */
+    private void applyTransactionDetailItems(List<TransactionDetails.TransactionDetailItem> transactionDetailItems)
+            throws WBArchiveException , SQLException{
+        collectRepeatedTables(transactionDetailItems);
+        for (int i = 0, k = transactionDetailItems.size(); i < k; i++) {
+            TransactionDetails.TransactionDetailItem item =
+                    transactionDetailItems.get(i);
+            boolean snapshot = archivePolicyData.isArchive() && snapshotKeys(item);
+            boolean staged = stageKeys(connCore, item);
+            int affectedRecs = 0;
+            if (archivePolicyData.isArchive()) {
+                int cnt = archiveData(item);
+                if (cnt > 0) {
+                    affectedRecs = purgeData(item);
+                }
+                if (snapshot && cnt > 0 && deleteCountUnknown) {
+                    log("Purged records of the primary key snapshot of " + item.getTableName()
+                            + " were not reported by the driver, not compared to the archived records");
+                }
+                else if (snapshot && affectedRecs != cnt) {
+                    // *** rows of the snapshot changed in between, commitWork rolls back both connections
+                    throw new WBArchiveException("Archived " + cnt + " but purged " + affectedRecs
+                            + " records of the primary key snapshot of " + item.getTableName());
+                }
+            }
+            else {
+                affectedRecs = purgeData(item);
+            }
+            if (staged) {
+                unstageKeys(connCore, item);
+            }
+            String msg = affectedRecs + " records have been processed successfully";
+            log(msg);  addTransactionDetailMessage(msg);
+            addTransactionRecordsAffected(affectedRecs);
+        }
+    }
+
+    /**
+     * Remembers the tables of more than one of given items and the tables the where
+     * clauses of other items refer to. A table loaded by a bulk path or changed by
+     * parallel DML on Oracle cannot be used again before commit.
+     *
+     * @param transactionDetailItems
+     */
+    private void collectRepeatedTables(List<TransactionDetails.TransactionDetailItem> transactionDetailItems) {
+        Set<String> tables = new HashSet<String>();
+        for (int i = 0, k = transactionDetailItems.size(); i < k; i++) {
+            String table = transactionDetailItems.get(i).getTableName().toUpperCase();
+            boolean repeated = !tables.add(table);
+            for (int j = 0; j < k && !repeated; j++) {
+                repeated = j != i && PolicyDetailDependencies.refersTo(
+                        transactionDetailItems.get(j).getWhere(), table);
+            }
+            if (repeated) {
+                repeatedTables.add(table);
+                directPathTables.add(table);
+            }
+        }
+    }
+
+    /**
+     * Resolves the where clause of given item to a snapshot of primary keys if the
+     * SNAPSHOT_KEYS policy param is set. Archiving and purging then both work on the
+     * keys, so the predicate is evaluated once and exactly the archived rows are purged.
+     * Tables without a single column integer primary key keep their where clause.
+     *
+     * @param item
+     * @return true if the item was resolved to a snapshot
+     * @throws SQLException
+     */
+    private boolean snapshotKeys(TransactionDetails.TransactionDetailItem item) throws SQLException {
+        if (item.resolvesForPrimaryKey
+                || !purgeData.getArchivePolicyParamBoolean(PurgeData.PARAM_SNAPSHOT_KEYS, false)) {
+            return false;
+        }
+        long s = System.currentTimeMillis();
+        if (!getTransactionDetails().resolvePrimaryKeys(item, item.getBoundWhere(), true)) {
+            log("No single column integer primary key for " + item.getTableName()
+                    + ", archiving and purging with the where clause");
+            return false;
+        }
+        meterTime("Snapshot of " + item.getPrimaryKeyIds() + " for : " + item.getTableName() , s);
+        return true;
+    }
+
     /**
      * Creates one WBArchTransDetData based on transactionDetailItems.
      *
@@ -503,24 +1105,33 @@ public class WBPurge {
     private int archiveData(TransactionDetails.TransactionDetailItem item)
             throws WBArchiveException{
         if (!item.resolvesForPrimaryKey) {
-            return archiveData(item.getTableName(), item.getWhere());
+            return archiveData(item.getTableName(), item.getBoundWhere());
+        }
+        else if (item.getKeyStageId() != 0) {
+            return archiveData(item.getTableName(), getKeyStageWhere(item));
         }
         else {
             int ret = 0;
             if (item.getPrimaryKeyIds() != null
                     && item.getPrimaryKeyIds().size() > 0) {
-                log("Processing " + item.getPrimaryKeyIds().size() +  " primary key items for " + item.getTableName());
-                // *** if it will be archived for PKids, chunk it since IN clause cannot take more than SQL_IN_CLAUSE_LIMIT
-                LongArrayIterator iter = new LongArrayIterator(item.
-                        getPrimaryKeyIds().toLongArray(), SQL_IN_CLAUSE_LIMIT);
-                while (iter.hasNext()) {
-                    long[] ids = iter.next();
-                    if (ids == null || ids.length == 0)
-                        continue;
-                    String where = item.getPrimaryKeyColumnName() + " IN ("
-                            + StringUtil.createCSVForNumber(new LongList(ids)) +
-                            ")";
-                    ret += archiveData(item.getTableName(), where);
+                log("Processing " + item.getPrimaryKeyIds() +  " for " + item.getTableName());
+                // *** if it will be archived for PKids, chunk it since a statement can only take so many keys
+                directPathTables.add(item.getTableName().toUpperCase());
+                PrimaryKeySource.ChunkIterator iter = null;
+                try {
+                    iter = item.getPrimaryKeyIds().iterator(PK_CHUNK_KEYS);
+                    long[] ids;
+                    while ((ids = iter.next()) != null) {
+                        List<PrimaryKeyPredicates.Chunk> chunks = PrimaryKeyPredicates.build(connCore,
+                                item.getPrimaryKeyColumnName(), ids);
+                        for (int i = 0; i < chunks.size(); i++) {
+                            ret += archiveData(item.getTableName(), chunks.get(i).getWhere());
+                        }
+                    }
+                } catch (SQLException e) {
+                    throw new WBArchiveException("Error in reading primary keys of " + item.getTableName(), e);
+                } finally {
+                    if (iter != null) iter.close();
                 }
             }
             return ret;
@@ -528,66 +1139,46 @@ public class WBPurge {
     }
 
     /**
-     * Archives data from given table where clause to archive datasource.
+     * Archives data from given table where clause to archive datasource. In DB archive
+     * mode rows are streamed to the archive connection by <code>StreamingTableCopier</code>
+     * unless the DATALOADER_COPY policy param asks for DataLoader, which cannot bind and
+     * gets the where clause with inlined values, or BINARY_SPOOL asks for staging through
+     * a <code>BinarySpool</code> file. DataLoader does not report what it copied, the rows
+     * are counted before the export so that they are purged like the other copies.
      *
      * @param tableName
      * @param whereClause
      * @return
      * @throws WBArchiveException
      */
-    private int archiveData(String tableName, String whereClause) throws WBArchiveException{
+    private int archiveData(String tableName, BoundWhereClause whereClause) throws WBArchiveException{
         int cnt = 0;
         try {
             long s = System.currentTimeMillis();
             if (isArchiveModeDB) {
-                DataLoader dl = new DataLoader();
-                createConfigFile(tableName, whereClause, tempFilePath);
-                dl.exportXml(connCore, cfgFilePath, tempFilePath, false);
-                dl.importXml(connArch, new String[] {xmlFilePath}
-                        , false);
+                if (purgeData.getArchivePolicyParamBoolean(PurgeData.PARAM_DATALOADER_COPY, false)) {
+                    cnt = getCountForTableWhereClause(tableName, whereClause);
+                    DataLoader dl = new DataLoader();
+                    createConfigFile(tableName, whereClause.getLiteralSql(), tempFilePath);
+                    dl.exportXml(connCore, cfgFilePath, tempFilePath, false);
+                    dl.importXml(connArch, new String[] {xmlFilePath}
+                            , false);
+                }
+                else if (purgeData.getArchivePolicyParamBoolean(PurgeData.PARAM_BINARY_SPOOL, false)) {
+                    cnt = spoolData(tableName, whereClause);
+                }
+                else {
+                    // *** a failed copy is thrown from here, commitWork rolls back both connections
+                    cnt = getTableCopier().copy(tableName, whereClause);
+                    log(getTableCopier().getLastStatistics().toString());
+                }
             }
             else if (isArchiveModeSchema){
-                PreparedStatement stm = null;
-                try {
-                    StringBuilder sql = new StringBuilder(200);
-                    sql.append("INSERT INTO ");
-                    sql.append(schemaUserNameArchive).append(".");
-                    sql.append(tableName);
-                    if (connCore.getDBServer().isDB2_OS390()){
-                        sql.append(" ( ");
-                        Iterator<String> iter = getTableColumns(connCore,tableName).iterator();
-                        StringBuilder columns = new StringBuilder();
-                        if(iter.hasNext()){
-                            columns.append(iter.next());
-                        }
-                        while(iter.hasNext()){
-                            columns.append(",");
-                            columns.append(iter.next());
-                        }
-                        sql.append(columns);
-                        sql.append(" ) ");
-                        sql.append(" SELECT ");
-                        sql.append(columns);
-                        sql.append(" FROM ");
-                        sql.append(tableName);
-                        sql.append(" WHERE ").append(whereClause);
-                        stm = connCore.prepareStatement(sql.toString(),true, true);
-                        cnt = stm.executeUpdate();
-                    }else{
-                        sql.append(" SELECT * FROM ");
-                        sql.append(tableName);
-                        sql.append(" WHERE ").append(whereClause);
-                        stm = connCore.prepareStatement(sql.toString(),false, false);
-                        cnt = stm.executeUpdate();
-                    }
-
-                } finally {
-                    SQLUtil.cleanUp(stm);
-                }
+                cnt = insertSelect(tableName, whereClause);
             }
             meterTime("Transferring data for : " + tableName , s);
             if (cnt == 0) {
-                log("No records found for tableName : " + tableName + " where : " + whereClause);
+                log("No records found for tableName : " + tableName + " where : " + whereClause.getLiteralSql());
             }
         } catch (Exception e) {
             throw new WBArchiveException(e);
@@ -595,9 +1186,200 @@ public class WBPurge {
         return cnt;
     }
     /**
-     * This method filters out [TABLE_NAME]_ROWID column that DB2/zOS includes in tables with CLOBS
-     * Since _ROWID column is defined as GENERATED ALWAYS, the value cannot be specified when inserting data 
-     * ROWID is zOS specific 
+     * Copies rows to the archive schema with one INSERT...SELECT naming the copied columns
+     * of the table, so the column order of the archive table does not matter.
+     * <p>
+     * With the DIRECT_PATH policy param the insert takes the bulk path of the database,
+     * an APPEND hint on Oracle and TABLOCK on SQL Server, and with DB2_NOT_LOGGED the
+     * archive table is activated NOT LOGGED INITIALLY on DB2. Bulk paths lock the archive
+     * table until commit and Oracle cannot modify a table loaded by direct path again
+     * before commit, so they are used only for tables inserted into by one statement
+     * per transaction and never by parallel workers.
+     * <p>
+     * The PARALLEL_DML policy param runs the insert in parallel, on Oracle only where
+     * the bulk path can be used since a parallel insert loads by direct path.
+     *
+     * @param tableName
+     * @param whereClause
+     * @return number of copied rows
+     * @throws SQLException
+     * @throws WBArchiveException
+     */
+    private int insertSelect(String tableName, BoundWhereClause whereClause)
+            throws SQLException, WBArchiveException {
+        boolean isDB2zOS = connCore.getDBServer().isDB2_OS390();
+        String archiveTable = schemaUserNameArchive + "." + tableName;
+        StringBuilder columns = new StringBuilder();
+        Iterator<String> iter = getTableColumns(connCore, tableName).iterator();
+        while (iter.hasNext()) {
+            if (columns.length() > 0) {
+                columns.append(",");
+            }
+            columns.append(iter.next());
+        }
+        boolean bulk = !isWorker && directPathTables.add(tableName.toUpperCase());
+        int dbId = connCore.getDBServer().getId();
+        int degree = getParallelDegree(tableName);
+        if (!bulk && dbId == DBServer.ORACLE_ID) {
+            degree = 1;
+        }
+        ParallelDml parallel = getParallelDml(connCore);
+        StringBuilder hint = new StringBuilder();
+        if (bulk && dbId == DBServer.ORACLE_ID
+                && purgeData.getArchivePolicyParamBoolean(PurgeData.PARAM_DIRECT_PATH, false)) {
+            hint.append("APPEND ");
+        }
+        hint.append(parallel.getHint(degree));
+        StringBuilder sql = new StringBuilder(200);
+        sql.append("INSERT ");
+        if (hint.length() > 0) {
+            sql.append("/*+ ").append(hint.toString().trim()).append(" */ ");
+        }
+        sql.append("INTO ").append(archiveTable);
+        if (bulk && dbId == DBServer.MSSQL_ID
+                && purgeData.getArchivePolicyParamBoolean(PurgeData.PARAM_DIRECT_PATH, false)) {
+            sql.append(" WITH (TABLOCK)");
+        }
+        if (bulk && dbId == DBServer.DB2_ID && !isDB2zOS
+                && purgeData.getArchivePolicyParamBoolean(PurgeData.PARAM_DB2_NOT_LOGGED, false)) {
+            activateNotLogged(archiveTable);
+        }
+        sql.append(" (").append(columns).append(") SELECT ").append(columns);
+        sql.append(" FROM ").append(tableName);
+        sql.append(" WHERE ").append(whereClause.getSql());
+        sql.append(parallel.getOption(degree));
+        PreparedStatement stm = null;
+        try {
+            parallel.prepare(degree);
+            stm = connCore.prepareStatement(sql.toString(), isDB2zOS, isDB2zOS);
+            whereClause.bind(stm, 1);
+            int ret = stm.executeUpdate();
+            reportParallelDml(parallel, archiveTable, degree);
+            return ret;
+        } finally {
+            SQLUtil.cleanUp(stm);
+        }
+    }
+
+    /**
+     * Returns the parallel degree set by the PARALLEL_DML policy param for archive and
+     * purge statements on given table, 1 for workers which already run in parallel, for
+     * ALL_OR_NOTHING policies and, on Oracle, for tables of more than one item of the
+     * transaction.
+     *
+     * @param tableName
+     * @return
+     */
+    private int getParallelDegree(String tableName) {
+        if (isWorker || !isArchiveModeSchema || archivePolicyData.isCommitTypeAllOrNothing()) {
+            return 1;
+        }
+        WBArchPolParamData param = purgeData.getArchivePolicyParam(PurgeData.PARAM_PARALLEL_DML);
+        if (param == null) {
+            return 1;
+        }
+        int ret = ParallelDml.getDegree(param.getWbappValue(), tableName);
+        if (ret > 1 && connCore.getDBServer().getId() == DBServer.ORACLE_ID
+                && repeatedTables.contains(tableName.toUpperCase())) {
+            return 1;
+        }
+        return ret;
+    }
+
+    private ParallelDml getParallelDml(DBConnection conn) {
+        if (conn == connArch) {
+            if (parallelDmlArch == null) {
+                parallelDmlArch = new ParallelDml(connArch);
+            }
+            return parallelDmlArch;
+        }
+        if (parallelDmlCore == null) {
+            parallelDmlCore = new ParallelDml(connCore);
+        }
+        return parallelDmlCore;
+    }
+
+    /**
+     * Enables parallel DML for the session of given connection if the PARALLEL_DML policy
+     * param asks for it. Oracle allows this between transactions only, so pending work
+     * is committed first; ALL_OR_NOTHING policies therefore run without PARALLEL_DML.
+     *
+     * @param conn
+     * @throws SQLException
+     */
+    private void enableParallelDml(DBConnection conn) throws SQLException {
+        WBArchPolParamData param = purgeData.getArchivePolicyParam(PurgeData.PARAM_PARALLEL_DML);
+        if (param == null || StringUtil.isEmpty(param.getWbappValue()) || isWorker || !isArchiveModeSchema) {
+            return;
+        }
+        if (archivePolicyData.isCommitTypeAllOrNothing()) {
+            log("Policy " + archivePolicyData.getWbapName() + " is ALL_OR_NOTHING, ignoring "
+                    + PurgeData.PARAM_PARALLEL_DML + " and running statements serially");
+            return;
+        }
+        if (conn.getDBServer().getId() != DBServer.ORACLE_ID) {
+            return;
+        }
+        conn.commit();
+        getParallelDml(conn).enableSession();
+    }
+
+    /**
+     * Returns the session of given connection to serial execution once the policy is done,
+     * the connections of the context are used beyond this run.
+     *
+     * @param conn
+     */
+    private void restoreParallelDml(DBConnection conn) {
+        ParallelDml parallel = conn == connArch ? parallelDmlArch : parallelDmlCore;
+        if (parallel != null) {
+            parallel.restoreSession();
+        }
+    }
+
+    private void reportParallelDml(ParallelDml parallel, String tableName, int degree) {
+        if (degree <= 1) {
+            return;
+        }
+        String msg = parallel.describe(tableName, degree);
+        log(msg);  addTransactionDetailMessage(msg);
+    }
+
+    /**
+     * Stops logging changes to given archive table until commit. This is allowed for
+     * tables created NOT LOGGED INITIALLY only, otherwise the insert is logged as usual.
+     * A table activated this way cannot be used any more if the transaction rolls back,
+     * so it is only done for EVERY_POLICY_DETAIL policies where a failure loses the
+     * work of one detail.
+     *
+     * @param archiveTable
+     */
+    private void activateNotLogged(String archiveTable) {
+        if (!archivePolicyData.isCommitTypeEveryPolicyDetail()) {
+            log("Policy " + archivePolicyData.getWbapName() + " does not commit every policy detail, ignoring "
+                    + PurgeData.PARAM_DB2_NOT_LOGGED + " for " + archiveTable);
+            return;
+        }
+        PreparedStatement stm = null;
+        try {
+            stm = connCore.prepareStatement("ALTER TABLE " + archiveTable + " ACTIVATE NOT LOGGED INITIALLY");
+            stm.executeUpdate();
+            log("Not logging inserts into " + archiveTable + " until commit");
+            logger.warn(archiveTable + " is not logged until commit, it has to be dropped and recreated"
+                    + " if archiving " + archiveTable + " fails");
+        } catch (SQLException e) {
+            log("Could not activate NOT LOGGED INITIALLY for " + archiveTable + ", inserting logged : "
+                    + e.getMessage());
+        } finally {
+            SQLUtil.cleanUp(stm);
+        }
+    }
+
+    /**
+     * Returns the columns of given table that are copied by INSERT...SELECT. This filters
+     * out the [TABLE_NAME]_ROWID column that DB2/zOS includes in tables with CLOBS,
+     * since it is defined as GENERATED ALWAYS and its value cannot be specified when
+     * inserting data. ROWID is zOS specific.
      * @param dbc
      * @param tblName
      * @return
@@ -606,116 +1388,394 @@ public class WBPurge {
     private Vector<String> getTableColumns(DBConnection dbc, String tblName) throws WBArchiveException {
         Vector<String> colList = new Vector<String>();
         boolean isDB2zOS = dbc.getDBServer().isDB2_OS390();
-        if (isDB2zOS) {
-            PreparedStatement pstmt = null;
-            ResultSet rs = null;
-            try {
-                pstmt = dbc.prepareStatement("SELECT * FROM " + tblName
-                        + " WHERE 1 = 2", true, true);
-                rs = pstmt.executeQuery();
-                ResultSetMetaData rsmd = rs.getMetaData();
-
-                int nCols = rsmd.getColumnCount();
-                for (int i = 1; i <= nCols; i++) {
-                    String colName = rsmd.getColumnName(i);
-                    /*
-                     * Don't process the _ROWID column that DB2/zOS includes in
-                     * tables with CLOBS.
-                     */
-                    if (colName.endsWith("_ROWID")) {
-                        continue;
+        try {
+            Iterator<String> iter = getSchemaMetadataCache().getCopiedColumns(dbc, tblName).iterator();
+            while (iter.hasNext()) {
+                String colName = iter.next();
+                colList.add(isDB2zOS ? dbc.physicalToLogical(colName) : colName);
+            }
+        } catch (SQLException e) {
+            log (e.getMessage());
+            throw new WBArchiveException(e);
+        }
+        return colList;
+    }
+
+    /**
+     * Returns the cache set by <code>setSchemaMetadataCache</code>, or one for this instance.
+     *
+     * @return
+     */
+    private synchronized SchemaMetadataCache getSchemaMetadataCache() {
+        if (schemaMetadataCache == null) {
+            schemaMetadataCache = new SchemaMetadataCache();
+        }
+        return schemaMetadataCache;
+    }
+
+    /**
+     * Returns records for given table and where clause
+     *
+     * @param tableName
+     * @param whereClause
+     * @return
+     * @throws SQLException
+     */
+    public int getCountForTableWhereClause(String tableName, String whereClause)
+            throws SQLException {
+        return getCountForTableWhereClause(tableName, purgeData.getBoundWhereClause(whereClause));
+    }
+
+    private int getCountForTableWhereClause(String tableName, BoundWhereClause where)
+            throws SQLException {
+        PreparedStatement stm = null;
+        ResultSet rs = null;
+        int cnt = 0;
+        try {
+            String sql = "SELECT count(*) FROM "
+                    + tableName + " WHERE " + where.getSql();
+            stm = connCore.prepareStatement(sql);
+            where.bind(stm, 1);
+            rs = stm.executeQuery();
+            if (rs.next()) {
+                cnt = rs.getInt(1);
+            }
+        } finally {
+            if (stm != null) stm.close();
+            if (rs != null) rs.close();
+        }
+        return cnt;
+    }
+
+    /**
+     * Purges data from given TransactionDetailItem.
+     *
+     * @param item TransactionDetailItem
+     * @return
+     * @throws SQLException
+     */
+    private int purgeData(TransactionDetails.TransactionDetailItem item) throws SQLException{
+        if (!item.resolvesForPrimaryKey) {
+            return purgeData(item.getTableName(), item.getBoundWhere());
+        }
+        else if (item.getKeyStageId() != 0) {
+            return purgeData(item.getTableName(), getKeyStageWhere(item));
+        }
+        else {
+            return deleteByPrimaryKeys(connCore, item.getTableName(),
+                    item.getPrimaryKeyColumnName(), item.getPrimaryKeyIds());
+        }
+
+    }
+
+    /**
+     * Purges data from given table with where clause.
+     *
+     * @param tableName
+     * @param whereClause
+     * @return
+     * @throws SQLException
+     */
+    private int purgeData(String tableName, BoundWhereClause whereClause) throws SQLException{
+
+        BoundedDelete bounded = getBoundedDelete(connCore, false);
+        if (bounded != null) {
+            int ret = bounded.delete(tableName, whereClause);
+            String msg = bounded.getLastStatistics().toString();
+            log(msg);  addTransactionDetailMessage(msg);
+            return ret;
+        }
+        PreparedStatement stm = null;
+        int updatedRecords = 0;
+        try {
+            long s = System.currentTimeMillis();
+            int degree = getParallelDegree(tableName);
+            ParallelDml parallel = getParallelDml(connCore);
+            String hint = parallel.getHint(degree);
+            String sql = "DELETE " + (hint.length() > 0 ? "/*+ " + hint + " */ " : "") + "FROM " + tableName
+                    + " WHERE " + whereClause.getSql() + parallel.getOption(degree);
+            parallel.prepare(degree);
+            stm = connCore.prepareStatement(sql);
+            whereClause.bind(stm, 1);
+            updatedRecords = stm.executeUpdate();
+            reportParallelDml(parallel, tableName, degree);
+            meterTime("Deleting data for : " + tableName , s);
+        } finally{
+            if (stm != null) stm.close();
+        }
+        return updatedRecords;
+    }
+
+    /**
+     * Returns the bounded delete set up by the DELETE_BATCH_ROWS policy param for purging
+     * where clauses on given connection, null to delete with one statement. Its statements
+     * are committed with DELETE_BATCH_COMMIT only where the purge is the only work of the
+     * transaction: not when archiving from the core, whose copy must commit together with
+     * its purge, and not for ALL_OR_NOTHING policies.
+     *
+     * @param conn
+     * @param archivePurge  true to purge from the archive
+     * @return
+     */
+    private BoundedDelete getBoundedDelete(DBConnection conn, boolean archivePurge) {
+        int rows = purgeData.getArchivePolicyParamInt(PurgeData.PARAM_DELETE_BATCH_ROWS, 0);
+        if (rows <= 0) {
+            return null;
+        }
+        boolean commit = purgeData.getArchivePolicyParamBoolean(PurgeData.PARAM_DELETE_BATCH_COMMIT, false)
+                && (archivePurge || !archivePolicyData.isArchive())
+                && !getArchivePolicyData().isCommitTypeAllOrNothing();
+        return new BoundedDelete(conn, rows, commit);
+    }
+
+    /**
+     * Stages the primary keys of given item to WBARCH_KEY_STAGE on given connection if
+     * there are more than the KEY_STAGE_THRESHOLD policy param allows for IN lists. Staged
+     * items are archived and purged with one statement joining the stage table instead
+     * of one statement per IN list chunk. Stage rows are kept over commits, a bounded
+     * delete committing its statements still needs them, and are removed by
+     * <code>unstageKeys</code> or a rollback before any commit. The stage table has to
+     * exist on both the core and the archive connection.
+     *
+     * @param conn
+     * @param item
+     * @return true if the keys were staged
+     */
+    private boolean stageKeys(DBConnection conn, TransactionDetails.TransactionDetailItem item) {
+        item.setKeyStageId(0);
+        int threshold = purgeData.getArchivePolicyParamInt(PurgeData.PARAM_KEY_STAGE_THRESHOLD,
+                DEFAULT_KEY_STAGE_THRESHOLD);
+        if (!item.resolvesForPrimaryKey || threshold <= 0
+                || item.getPrimaryKeyIds() == null || item.getPrimaryKeyIds().size() <= threshold) {
+            return false;
+        }
+        long stageId = KEY_STAGE_IDS.incrementAndGet();
+        PrimaryKeySource.ChunkIterator iter = null;
+        PreparedStatement ps = null;
+        try {
+            long s = System.currentTimeMillis();
+            ps = conn.prepareStatement("INSERT INTO " + KEY_STAGE_TABLE
+                    + " (wbks_stage_id, wbks_key_id) VALUES (?, ?)");
+            iter = item.getPrimaryKeyIds().iterator(PK_CHUNK_KEYS);
+            long count = 0;
+            long[] ids;
+            while ((ids = iter.next()) != null) {
+                for (int i = 0; i < ids.length; i++) {
+                    ps.setLong(1, stageId);
+                    ps.setLong(2, ids[i]);
+                    ps.addBatch();
+                    if (++count % KEY_STAGE_INSERT_BATCH == 0) {
+                        ps.executeBatch();
                     }
-                    // Add a column definition to the table
-                    colName = dbc.physicalToLogical(colName);
-                    colList.add(colName);
                 }
-            } catch (SQLException e) {
-                log (e.getMessage());
-                throw new WBArchiveException(e);
-            }finally{
-                SQLUtil.cleanUp(pstmt,rs);
             }
+            if (count % KEY_STAGE_INSERT_BATCH != 0) {
+                ps.executeBatch();
+            }
+            meterTime("Staging " + count + " primary keys for : " + item.getTableName() , s);
+        } catch (SQLException e) {
+            // *** the stage table is optional, fall back to IN lists
+            logger.error("Could not stage primary keys to " + KEY_STAGE_TABLE
+                    + ", processing " + item.getTableName() + " with IN lists", e);
+            deleteStagedKeys(conn, stageId);
+            return false;
+        } finally {
+            if (iter != null) iter.close();
+            SQLUtil.cleanUp(ps);
+        }
+        item.setKeyStageId(stageId);
+        return true;
+    }
+
+    /**
+     * Removes the keys staged for given item.
+     *
+     * @param conn
+     * @param item
+     * @throws SQLException
+     */
+    private void unstageKeys(DBConnection conn, TransactionDetails.TransactionDetailItem item)
+            throws SQLException {
+        PreparedStatement ps = null;
+        try {
+            ps = conn.prepareStatement("DELETE FROM " + KEY_STAGE_TABLE + " WHERE wbks_stage_id = ?");
+            ps.setLong(1, item.getKeyStageId());
+            ps.executeUpdate();
+        } finally {
+            SQLUtil.cleanUp(ps);
         }
-        return colList;
+        item.setKeyStageId(0);
+    }
+
+    private void deleteStagedKeys(DBConnection conn, long stageId) {
+        PreparedStatement ps = null;
+        try {
+            ps = conn.prepareStatement("DELETE FROM " + KEY_STAGE_TABLE + " WHERE wbks_stage_id = ?");
+            ps.setLong(1, stageId);
+            ps.executeUpdate();
+        } catch (SQLException e) {
+            if (logger.isEnabledFor(org.apache.log4j.Level.DEBUG))
+                logger.debug("Error when removing staged keys", e);
+        } finally {
+            SQLUtil.cleanUp(ps);
+        }
+    }
+
+    private BoundWhereClause getKeyStageWhere(TransactionDetails.TransactionDetailItem item) {
+        return new BoundWhereClause.Builder()
+                .appendSql(item.getPrimaryKeyColumnName() + " IN (SELECT wbks_key_id FROM "
+                        + KEY_STAGE_TABLE + " WHERE wbks_stage_id = ")
+                .appendParam("?", Long.valueOf(item.getKeyStageId()), String.valueOf(item.getKeyStageId()))
+                .appendSql(")")
+                .build();
     }
 
     /**
-     * Returns records for given table and where clause
+     * Copies rows to the archive connection through the binary spool file.
      *
      * @param tableName
      * @param whereClause
      * @return
      * @throws SQLException
+     * @throws IOException
      */
-    public int getCountForTableWhereClause(String tableName, String whereClause)
-            throws SQLException {
-        Statement stm = null;
-        ResultSet rs = null;
-        int cnt = 0;
-        try {
-            stm = connCore.createStatement();
-            String sql = "SELECT count(*) FROM "
-                    + tableName + " WHERE " + whereClause;
-            rs = stm.executeQuery(sql);
-            if (rs.next()) {
-                cnt = rs.getInt(1);
-            }
-        } finally {
-            if (stm != null) stm.close();
-            if (rs != null) rs.close();
+    private int spoolData(String tableName, BoundWhereClause whereClause) throws SQLException, IOException {
+        BinarySpool spool = new BinarySpool(new WBFile(spoolFilePath));
+        spool.setCompress(purgeData.getArchivePolicyParamBoolean(PurgeData.PARAM_SPOOL_COMPRESS, false));
+        spool.setBlockRows(purgeData.getArchivePolicyParamInt(PurgeData.PARAM_COPY_BATCH_SIZE,
+                StreamingTableCopier.DEFAULT_BATCH_SIZE));
+        int written = spool.write(connCore, tableName, whereClause,
+                purgeData.getArchivePolicyParamInt(PurgeData.PARAM_COPY_FETCH_SIZE,
+                        StreamingTableCopier.DEFAULT_FETCH_SIZE));
+        int loaded = spool.load(connArch, purgeData.getArchivePolicyParamInt(PurgeData.PARAM_COPY_BATCH_SIZE,
+                StreamingTableCopier.DEFAULT_BATCH_SIZE));
+        if (loaded != written) {
+            throw new SQLException("Spooled " + written + " rows of " + tableName + " but loaded " + loaded);
         }
-        return cnt;
+        log("Spooled " + written + " rows of " + tableName + " through " + spool.getFile().length() + " bytes");
+        return loaded;
+    }
+
+    private StreamingTableCopier getTableCopier() {
+        if (tableCopier == null) {
+            tableCopier = new StreamingTableCopier(connCore, connArch);
+            tableCopier.setFetchSize(purgeData.getArchivePolicyParamInt(PurgeData.PARAM_COPY_FETCH_SIZE,
+                    StreamingTableCopier.DEFAULT_FETCH_SIZE));
+            tableCopier.setBatchSize(purgeData.getArchivePolicyParamInt(PurgeData.PARAM_COPY_BATCH_SIZE,
+                    StreamingTableCopier.DEFAULT_BATCH_SIZE));
+            tableCopier.setQueueBatches(purgeData.getArchivePolicyParamInt(PurgeData.PARAM_COPY_QUEUE_BATCHES,
+                    StreamingTableCopier.DEFAULT_QUEUE_BATCHES));
+        }
+        return tableCopier;
     }
 
     /**
-     * Purges data from given TransactionDetailItem.
+     * Deletes rows of given table by primary key. Keys are read PK_CHUNK_KEYS at a time
+     * and split into chunks of ranges and IN lists by <code>PrimaryKeyPredicates</code>,
+     * chunks of the same statement shape share one statement and are sent
+     * PK_DELETE_BATCH_CHUNKS at a time with JDBC batching.
      *
-     * @param item TransactionDetailItem
-     * @return
+     * @param conn
+     * @param tableName
+     * @param pkColName
+     * @param pkIds
+     * @return number of deleted records
      * @throws SQLException
      */
-    private int purgeData(TransactionDetails.TransactionDetailItem item) throws SQLException{
-        if (!item.resolvesForPrimaryKey) {
-            return purgeData(item.getTableName(), item.getWhere());
+    private int deleteByPrimaryKeys(DBConnection conn, String tableName, String pkColName, PrimaryKeySource pkIds)
+            throws SQLException{
+        deleteCountUnknown = false;
+        if (pkIds == null || pkIds.size() == 0) {
+            return 0;
         }
-        else {
-            // *** if it will be purged for PKids, chunk it since IN clause cannot take more than SQL_IN_CLAUSE_LIMIT
-            int ret = 0;
-            LongArrayIterator iter = new LongArrayIterator(item.getPrimaryKeyIds().toLongArray() , SQL_IN_CLAUSE_LIMIT);
+        Map<String, DeleteBatch> batches = new HashMap<String, DeleteBatch>();
+        PrimaryKeySource.ChunkIterator keys = null;
+        int ret = 0;
+        try {
+            long s = System.currentTimeMillis();
+            int chunkCount = 0;
+            keys = pkIds.iterator(PK_CHUNK_KEYS);
+            long[] ids;
+            while ((ids = keys.next()) != null) {
+                List<PrimaryKeyPredicates.Chunk> chunks = PrimaryKeyPredicates.build(conn, pkColName, ids);
+                for (int i = 0; i < chunks.size(); i++) {
+                    PrimaryKeyPredicates.Chunk chunk = chunks.get(i);
+                    String sql = "DELETE FROM " + tableName + " WHERE " + chunk.getWhere().getSql();
+                    DeleteBatch batch = batches.get(sql);
+                    if (batch == null) {
+                        batch = new DeleteBatch(conn.prepareStatement(sql));
+                        batches.put(sql, batch);
+                    }
+                    ret += batch.add(chunk);
+                }
+                chunkCount += chunks.size();
+            }
+            Iterator<DeleteBatch> iter = batches.values().iterator();
+            while (iter.hasNext()) {
+                DeleteBatch batch = iter.next();
+                ret += batch.execute();
+                if (batch.countUnknown) {
+                    deleteCountUnknown = true;
+                }
+            }
+            meterTime("Deleting " + pkIds.size() + " primary keys in " + chunkCount
+                    + " chunks for : " + tableName , s);
+        } finally {
+            if (keys != null) keys.close();
+            Iterator<DeleteBatch> iter = batches.values().iterator();
             while (iter.hasNext()) {
-                long[] ids = iter.next();
-                if (ids == null || ids.length == 0) continue;
-                String where = item.getPrimaryKeyColumnName() + " IN ("
-                        + StringUtil.createCSVForNumber(new LongList(ids)) + ")";
-                ret += purgeData(item.getTableName(), where);
+                SQLUtil.cleanUp(iter.next().ps);
             }
-            return ret;
         }
-
+        return ret;
     }
 
     /**
-     * Purges data from given table with where clause.
-     *
-     * @param tableName
-     * @param whereClause
-     * @return
-     * @throws SQLException
+     * Primary key chunks pending for one DELETE statement.
      */
-    private int purgeData(String tableName, String whereClause) throws SQLException{
+    private static class DeleteBatch {
+        private final PreparedStatement ps;
+        private final int[] keyCounts = new int[PK_DELETE_BATCH_CHUNKS];
+        private int chunks = 0;
+        /** set once the driver did not report the rows of an executed batch */
+        private boolean countUnknown = false;
+
+        DeleteBatch(PreparedStatement ps) {
+            this.ps = ps;
+        }
 
-        Statement stm = null;
-        int updatedRecords = 0;
-        try {
-            long s = System.currentTimeMillis();
-            stm = connCore.createStatement();
-            String sql = "DELETE FROM " + tableName + " WHERE " + whereClause;
-            updatedRecords = stm.executeUpdate(sql);
-            meterTime("Deleting data for : " + tableName , s);
-        } finally{
-            if (stm != null) stm.close();
+        /**
+         * Adds given chunk, executing the batch when it is full.
+         *
+         * @return records deleted by an executed batch
+         */
+        int add(PrimaryKeyPredicates.Chunk chunk) throws SQLException {
+            chunk.getWhere().bind(ps, 1);
+            ps.addBatch();
+            keyCounts[chunks++] = chunk.getKeyCount();
+            return chunks == PK_DELETE_BATCH_CHUNKS ? execute() : 0;
+        }
+
+        int execute() throws SQLException {
+            if (chunks == 0) {
+                return 0;
+            }
+            int[] counts = ps.executeBatch();
+            int ret = 0;
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] >= 0) {
+                    ret += counts[i];
+                }
+                else if (counts[i] == Statement.SUCCESS_NO_INFO && i < chunks) {
+                    // *** some drivers do not report counts for batches, the keys are only an
+                    // *** estimate since rows may have been deleted since they were selected
+                    ret += keyCounts[i];
+                    countUnknown = true;
+                }
+            }
+            chunks = 0;
+            return ret;
         }
-        return updatedRecords;
     }
 
     private void createConfigFile(String tableName, String whereClause , String tempPath)
@@ -744,6 +1804,12 @@ public class WBPurge {
             if (fileXml.exists()) {
                 fileXml.delete();
             }
+            if (spoolFilePath != null) {
+                File fileSpool = new WBFile(spoolFilePath);
+                if (fileSpool.exists()) {
+                    fileSpool.delete();
+                }
+            }
         }
         catch (Exception ex) {
             if (logToTransaction) {
@@ -758,12 +1824,24 @@ public class WBPurge {
     }
 
     /**
-     * loadPolicy loads the policy for this archive/purge policy
+     * loadPolicy loads the policy for this archive/purge policy. The policy snapshot
+     * is taken from the cache set by <code>setPolicySnapshotCache</code> if any.
+     * ArchiveData is only loaded when one of its tokenizers is requested.
      * @throws WBArchiveException thrown if an error occurs loading the policy
      */
     public void loadPolicy() throws WBArchiveException {
+        PolicySnapshot snapshot = policySnapshotCache == null
+                ? PolicySnapshotCache.load(connCore, archivePolicyData)
+                : policySnapshotCache.getSnapshot(connCore, archivePolicyData);
+        purgeData.loadPolicy(snapshot);
+    }
+
+    private synchronized void ensureArchiveDataLoaded() throws WBArchiveException {
+        if (archiveDataLoaded) {
+            return;
+        }
         archiveData.loadPolicy();
-        purgeData.loadPolicy();
+        archiveDataLoaded = true;
     }
 
     /**
@@ -793,6 +1871,8 @@ public class WBPurge {
                     TEMP_FILE_XML_EXT;
             cfgFilePath = tempFilePath + TEMP_FILE_PREFIX + transData.getWbatId() +
                     TEMP_FILE_CFG_EXT;
+            spoolFilePath = tempFilePath + TEMP_FILE_PREFIX + transData.getWbatId() +
+                    BinarySpool.FILE_EXT;
         }
 
         return true;
@@ -888,7 +1968,7 @@ public class WBPurge {
      *
      * @param val
      */
-    public void addTransactionRecordsAffected(int val) {
+    public synchronized void addTransactionRecordsAffected(int val) {
         totalRecordsAffected += val;
     }
 
@@ -896,7 +1976,7 @@ public class WBPurge {
      * Resets to the total number of records affected for this transaction.
      *
      */
-    public void resetTransactionRecordsAffected() {
+    public synchronized void resetTransactionRecordsAffected() {
         totalRecordsAffected = 0;
     }
 
@@ -905,7 +1985,7 @@ public class WBPurge {
      *
      * @return
      */
-    public int getTransactionRecordsAffected() {
+    public synchronized int getTransactionRecordsAffected() {
         return totalRecordsAffected;
     }
 
@@ -966,6 +2046,199 @@ public class WBPurge {
         if (logger.isEnabledFor(org.apache.log4j.Level.DEBUG)) { logger.debug( message );}
     }
 
+    /**
+     * Starts checkpointing the batches of given phase for the archive transaction.
+     * In resume mode returns the latest unfinished checkpoint of an earlier run to
+     * continue from, otherwise null. Batches are not checkpointed without an archive
+     * transaction or if WBARCH_CHECKPOINT cannot be read.
+     *
+     * @param phase
+     * @return
+     */
+    private ArchiveCheckpoint startCheckpoint(String phase) {
+        checkpoint = null;
+        if (transData == null) {
+            return null;
+        }
+        ArchiveCheckpoint from;
+        try {
+            // *** also read without resume, it tells whether the table exists
+            from = ArchiveCheckpoint.loadResumable(connCore, archivePolicyData.getWbapId(), phase);
+        } catch (SQLException e) {
+            logger.error("Could not read archive checkpoints, batches will not be checkpointed", e);
+            return null;
+        }
+        checkpoint = new ArchiveCheckpoint(transData.getWbatId(), archivePolicyData.getWbapId(), phase);
+        if (!resume || from == null) {
+            return null;
+        }
+        appendTransactionMessage("Resuming from " + from);
+        log("Resuming from " + from);
+        return from;
+    }
+
+    /**
+     * Returns the employee id to resume an EVERY_X_EMPLOYEE policy after, null to start from the top.
+     */
+    private String getResumeEmpId(ArchiveCheckpoint from) {
+        if (from == null || StringUtil.isEmpty(from.getPosition())) {
+            return null;
+        }
+        try {
+            Long.parseLong(from.getPosition().trim());
+            return from.getPosition().trim();
+        } catch (NumberFormatException e) {
+            log("Checkpoint position " + from.getPosition() + " is not an employee id, starting from the top");
+            return null;
+        }
+    }
+
+    private void setCheckpointPosition(Date date) {
+        if (checkpoint != null) {
+            checkpoint.setPosition(date);
+        }
+    }
+
+    private void setCheckpointPosition(int detailIndex, String position) {
+        if (checkpoint != null) {
+            checkpoint.setPosition(detailIndex, position);
+        }
+    }
+
+    /**
+     * Writes a changed checkpoint position to the uncommitted work of the core connection.
+     *
+     * @throws SQLException
+     */
+    private void saveCheckpoint() throws SQLException {
+        if (checkpoint != null) {
+            checkpoint.save(connCore);
+        }
+    }
+
+    /**
+     * Writes the position of given batch and commits it. Batch workers commit on
+     * their own connections, so the position is saved once the committed prefix
+     * reaches it and may lag behind their work, never run ahead of it.
+     *
+     * @param batch
+     */
+    private void saveBatchCheckpoint(DetailBatch batch) {
+        if (checkpoint == null || batch == null || batch.getPosition() == null) {
+            return;
+        }
+        if (batch.getPosition() instanceof Date) {
+            checkpoint.setPosition((Date) batch.getPosition());
+        }
+        else {
+            checkpoint.setPosition(0, batch.getPosition().toString());
+        }
+        try {
+            checkpoint.save(connCore);
+            connCore.commit();
+        } catch (SQLException e) {
+            logger.error("Could not save " + checkpoint, e);
+        }
+    }
+
+    /**
+     * Marks the checkpoints of the current phase complete once all its batches are committed.
+     *
+     * @throws SQLException
+     */
+    private void completeCheckpoint() throws SQLException {
+        if (checkpoint == null) {
+            return;
+        }
+        ArchiveCheckpoint.complete(connCore, archivePolicyData.getWbapId(), checkpoint.getPhase());
+        connCore.commit();
+        checkpoint = null;
+    }
+
+    /**
+     * Supplies batches of resolved policy details to batch workers. Calls are
+     * serialized by the caller.
+     */
+    private interface DetailBatchSource {
+        /**
+         * Returns the next batch or null if there are no more batches.
+         */
+        DetailBatch next() throws WBArchiveException , SQLException;
+    }
+
+    /**
+     * Resolved policy details of one batch with the message logged for it.
+     * The position identifies the batch within its tokenizer, e.g. the end date
+     * of a day window.
+     */
+    private static class DetailBatch {
+        private final List<WBArchPolDetData> details;
+        private final String message;
+        private final Object position;
+        private int sequence;
+
+        DetailBatch(List<WBArchPolDetData> details, String message) {
+            this(details, message, null);
+        }
+
+        DetailBatch(List<WBArchPolDetData> details, String message, Object position) {
+            this.details = details;
+            this.message = message;
+            this.position = position;
+        }
+
+        public List<WBArchPolDetData> getDetails() {
+            return details;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        public Object getPosition() {
+            return position;
+        }
+
+        public int getSequence() {
+            return sequence;
+        }
+
+        public void setSequence(int v) {
+            sequence = v;
+        }
+    }
+
+    /**
+     * Tracks batches committed out of order by batch workers and keeps the last
+     * batch of the committed prefix, i.e. the last batch for which every batch
+     * handed out before it has also been committed.
+     */
+    private static class BatchCheckpoint {
+        private final Map<Integer, DetailBatch> committedAhead = new HashMap<Integer, DetailBatch>();
+        private int nextSequence = 0;
+        private DetailBatch lastContiguous;
+
+        /**
+         * Marks given batch committed, returns true if the checkpoint advanced.
+         */
+        public synchronized boolean markCommitted(DetailBatch batch) {
+            committedAhead.put(Integer.valueOf(batch.getSequence()), batch);
+            boolean advanced = false;
+            DetailBatch next = committedAhead.remove(Integer.valueOf(nextSequence));
+            while (next != null) {
+                lastContiguous = next;
+                nextSequence++;
+                advanced = true;
+                next = committedAhead.remove(Integer.valueOf(nextSequence));
+            }
+            return advanced;
+        }
+
+        public synchronized DetailBatch getLastContiguous() {
+            return lastContiguous;
+        }
+    }
+
     private class TransactionDetails {
         private StringBuffer message = new StringBuffer(300);
         private List<TransactionDetailItem> transactionDetailItems;
@@ -986,10 +2259,11 @@ public class WBPurge {
             return transactionDetailItems;
         }
 
-        public void addToTransactionDetails(String tableName, String where) {
+        public void addToTransactionDetails(String tableName, BoundWhereClause where) {
             TransactionDetailItem item = new TransactionDetailItem();
             item.setTableName(tableName);
-            item.setWhere(where);
+            item.setWhere(where.getLiteralSql());
+            item.setBoundWhere(where);
             if (transactionDetailItems == null) {
                 transactionDetailItems = new ArrayList<TransactionDetailItem>();
             }
@@ -999,45 +2273,108 @@ public class WBPurge {
         /**
          * This is used when the where clause needs to be resolved to primary keys due
          * to constraints. When <code>commitWork</code> is executed such items will be executed
-         * using generated primary key ids.
+         * using generated primary key ids. Keys beyond the PK_HEAP_KEYS policy param, counted
+         * over all items of the transaction, are spilled to the temp file path.
          *
          * @param tableName
-         * @param where
+         * @param where       null for all rows
          * @throws SQLException
          */
         public void addToTransactionDetailsResolvingToPrimaryKey(String tableName,
-                                                                 String where) throws SQLException{
+                                                                 BoundWhereClause where) throws SQLException{
 
             TransactionDetailItem item = new TransactionDetailItem();
             item.setTableName(tableName);
-            String pkColName = SchemaHelper.getPrimaryKeyColumnForTable(connCore, tableName);
-            LongList ids = new LongList();
+            resolvePrimaryKeys(item, where, false);
+            if (transactionDetailItems == null) {
+                transactionDetailItems = new ArrayList<TransactionDetailItem>();
+            }
+            transactionDetailItems.add(item);
+        }
+
+        /**
+         * Reads the primary keys of the rows selected by given where clause into given item,
+         * which is then executed using the keys.
+         *
+         * @param item
+         * @param boundWhere        null for all rows
+         * @param requireIntegerKey true to leave the item unchanged unless the table has a
+         *                          single column integer primary key
+         * @return true if the item was resolved
+         * @throws SQLException
+         */
+        boolean resolvePrimaryKeys(TransactionDetailItem item, BoundWhereClause boundWhere,
+                                   boolean requireIntegerKey) throws SQLException {
+            String tableName = item.getTableName();
+            String pkColName = purgeData.getPrimaryKeyColumn(connCore, tableName);
+            if (requireIntegerKey && (StringUtil.isEmpty(pkColName) || pkColName.indexOf(',') >= 0)) {
+                return false;
+            }
+            PrimaryKeySource ids = null;
             PreparedStatement ps = null;
             ResultSet rs = null;
             try {
                 String sql = "SELECT " + pkColName + " FROM " + tableName
-                        + (StringUtil.isEmpty(where) ? "" : " WHERE " + where);
+                        + (boundWhere == null ? "" : " WHERE " + boundWhere.getSql());
                 ps = connCore.prepareStatement(sql);
+                ps.setFetchSize(PK_FETCH_SIZE);
+                if (boundWhere != null) {
+                    boundWhere.bind(ps, 1);
+                }
                 rs = ps.executeQuery();
-                while (rs.next()) {
-                    ids.add(rs.getLong(1));
+                if (requireIntegerKey && !PrimaryKeySource.isIntegerKey(rs.getMetaData())) {
+                    return false;
+                }
+                ids = PrimaryKeySource.read(rs, getRemainingHeapKeys(), getSpillDir());
+                if (ids.isSpilled()) {
+                    log("Spilled " + ids + " for " + tableName);
                 }
             }
             finally {
-                if (ps != null) ps.close();
-                if (rs != null) rs.close();
+                SQLUtil.cleanUp(ps, rs);
             }
             item.setPrimaryKeyIds(ids);
             item.setResolvesForPrimaryKey(true);
             item.setPrimaryKeyColumnName(pkColName);
-            if (transactionDetailItems == null) {
-                transactionDetailItems = new ArrayList<TransactionDetailItem>();
+            return true;
+        }
+
+        /**
+         * Returns the number of primary keys the transaction may still keep on heap.
+         * Keys already kept are compressed and count by their size in 8 byte keys.
+         *
+         * @return
+         */
+        private int getRemainingHeapKeys() {
+            long ret = purgeData.getArchivePolicyParamInt(PurgeData.PARAM_PK_HEAP_KEYS,
+                    PrimaryKeySource.DEFAULT_HEAP_KEYS);
+            if (transactionDetailItems != null) {
+                for (int i = 0; i < transactionDetailItems.size(); i++) {
+                    PrimaryKeySource ids = transactionDetailItems.get(i).getPrimaryKeyIds();
+                    if (ids != null) {
+                        ret -= (ids.getHeapBytes() + 7) / 8;
+                    }
+                }
             }
-            transactionDetailItems.add(item);
+            return (int) Math.max(0, ret);
+        }
+
+        private File getSpillDir() {
+            if (StringUtil.isEmpty(tempFilePath)) {
+                return null;
+            }
+            File ret = new WBFile(tempFilePath);
+            return ret.isDirectory() ? ret : null;
         }
 
         public void clearTransactionDetailItems() {
             if (transactionDetailItems != null) {
+                for (int i = 0; i < transactionDetailItems.size(); i++) {
+                    PrimaryKeySource ids = transactionDetailItems.get(i).getPrimaryKeyIds();
+                    if (ids != null) {
+                        ids.close();
+                    }
+                }
                 transactionDetailItems.clear();
             }
         }
@@ -1045,14 +2382,19 @@ public class WBPurge {
         public void clearAll() {
             clearMessage();
             clearTransactionDetailItems();
+            // *** details are cleared once their transaction is committed or rolled back
+            directPathTables.clear();
+            repeatedTables.clear();
         }
 
         class TransactionDetailItem {
             private String tableName;
             private String where;
-            private LongList pkIds;
+            private BoundWhereClause boundWhere;
+            private PrimaryKeySource pkIds;
             private boolean resolvesForPrimaryKey;
             private String primaryKeyColumnName;
+            private long keyStageId;
 
             public String getTableName() {
                 return tableName;
@@ -1070,11 +2412,24 @@ public class WBPurge {
                 where = v;
             }
 
-            public LongList getPrimaryKeyIds() {
+            /**
+             * Returns the where clause with bind parameters.
+             *
+             * @return
+             */
+            public BoundWhereClause getBoundWhere() {
+                return boundWhere == null ? BoundWhereClause.literal(where) : boundWhere;
+            }
+
+            public void setBoundWhere(BoundWhereClause v) {
+                boundWhere = v;
+            }
+
+            public PrimaryKeySource getPrimaryKeyIds() {
                 return pkIds;
             }
 
-            public void setPrimaryKeyIds(LongList v) {
+            public void setPrimaryKeyIds(PrimaryKeySource v) {
                 pkIds = v;
             }
 
@@ -1090,13 +2445,40 @@ public class WBPurge {
                 primaryKeyColumnName = v;
             }
 
+            /**
+             * Returns the WBARCH_KEY_STAGE id the primary keys are staged under, 0 if not staged.
+             *
+             * @return
+             */
+            public long getKeyStageId() {
+                return keyStageId;
+            }
+
+            public void setKeyStageId(long v) {
+                keyStageId = v;
+            }
+
         }
     }
 
     public void processArchiveSchemaPurge() throws WBArchiveException , SQLException{
+        enableParallelDml(connArch);
+        try {
+            processArchiveSchemaPurgeDetails();
+        } finally {
+            restoreParallelDml(connArch);
+        }
+    }
+
+    private void processArchiveSchemaPurgeDetails() throws WBArchiveException , SQLException{
         if (getArchivePolicyData().isCommitTypeEveryPolicyDetail()
                 || getArchivePolicyData().isCommitTypeAllOrNothing()) {
             List<WBArchPolDetData> archDat = getArchivePolicyDetails();
+            int detailThreads = getDetailThreads();
+            if (detailThreads > 1 && archDat.size() > 1) {
+                processArchivePolicyDetailsParallel(archDat, detailThreads, true, new HashSet<String>());
+                return;
+            }
             Iterator<WBArchPolDetData> iter = archDat.iterator();
             while (iter.hasNext()) {
                 WBArchPolDetData archDet = iter.next();
@@ -1108,49 +2490,88 @@ public class WBPurge {
             }
         }
         else if (getArchivePolicyData().isCommitTypeEveryXDays()) {
+            int windowThreads = getDayWindowThreads();
+            if (windowThreads > 1) {
+                processDayWindowsParallel(windowThreads, true);
+                return;
+            }
+            ArchiveCheckpoint from = startCheckpoint(ArchiveCheckpoint.PHASE_ARCHIVE_PURGE);
             PurgeData.ArchivePolicyDayTokenizer tok = getArchivePolicyDayTokenizer_ForPurge();
+            if (from != null) {
+                tok.resumeAfter(from.getPositionDate());
+            }
             while (tok.hasNext()) {
                 List<WBArchPolDetData> detailsThisBatch = tok.next();
                 String log = "Processing days before " + tok.getCurrentAgingDate();
                 log(log);
                 addTransactionDetailMessage(log);
+                setCheckpointPosition(tok.getCurrentAgingDate());
                 processPurgeArchivePolicyDetails(detailsThisBatch, true);
             }
+            completeCheckpoint();
 
         }
         else if  (getArchivePolicyData().isCommitTypeEveryXEmployee()) {
-            PurgeData.ArchivePolicyEmpIdTokenizer tok = getArchivePolicyEmpIdTokenizer_ForPurge();
+            ArchiveCheckpoint from = startCheckpoint(ArchiveCheckpoint.PHASE_ARCHIVE_PURGE);
+            final PurgeData.ArchivePolicyEmpIdTokenizer tok = getArchivePolicyEmpIdTokenizer_ForPurge(getResumeEmpId(from));
+            int batchThreads = purgeData.getArchivePolicyParamInt(PurgeData.PARAM_PARALLEL_EMP_BATCHES, 1);
+            if (batchThreads > 1) {
+                processBatchesParallel(new DetailBatchSource() {
+                    public DetailBatch next() throws WBArchiveException {
+                        if (!tok.hasNext()) {
+                            return null;
+                        }
+                        List<WBArchPolDetData> detailsThisBatch = tok.next();
+                        return new DetailBatch(detailsThisBatch,
+                                "Processing " + tok.getCurrentBatchSize() + " employee(s)",
+                                tok.getCurrentLastEmpId());
+                    }
+                }, batchThreads, true, new BatchCheckpoint());
+                completeCheckpoint();
+                return;
+            }
             while (tok.hasNext()) {
                 List<WBArchPolDetData> detailsThisBatch = tok.next();
                 String log = "Processing " + tok.getCurrentBatchSize() + " employee(s)";
                 log(log);
                 addTransactionDetailMessage(log);
+                setCheckpointPosition(0, tok.getCurrentLastEmpId());
                 processPurgeArchivePolicyDetails(detailsThisBatch, true);
             }
+            completeCheckpoint();
         }
         else if (getArchivePolicyData().isCommitTypeEveryXRecords()) {
             List<WBArchPolDetData> archDat = getArchivePolicyDetails();
-            Iterator<WBArchPolDetData> iter = archDat.iterator();
-            while (iter.hasNext()) {
-                WBArchPolDetData archDet = iter.next();
+            ArchiveCheckpoint from = startCheckpoint(ArchiveCheckpoint.PHASE_ARCHIVE_PURGE);
+            int resumeDetail = from == null ? 0 : from.getDetailIndex();
+            for (int d = 0; d < archDat.size(); d++) {
+                WBArchPolDetData archDet = archDat.get(d);
+                if (d < resumeDetail) {
+                    log("Skipping detail for table " + archDet.getWbapdTableName()
+                            + ", it was committed by transaction " + from.getWbatId());
+                    continue;
+                }
                 PurgeData.ArchivePolicyRecordTokenizer tok = getArchivePolicyRecordTokenizer_ForPurge(archDet);
+                if (d == resumeDetail && from != null) {
+                    tok.resumeAfterKey(from.getPosition());
+                }
                 if (!tok.hasAny()) {
                     String log = "No records found for this policy detail";
                     log(log); addTransactionDetailMessage(log);
                 }
                 else {
                     while (tok.hasNext()) {
-                        String sqlThisBatch = tok.next();
-                        String log = "Processing BATCH SQL : \n" + sqlThisBatch;
+                        WBArchPolDetData archDetThis = tok.nextDetail();
+                        String log = "Processing BATCH SQL : \n" + archDetThis.retrieveWbapdWhereClauseResolved();
                         log(log);  addTransactionDetailMessage(log);
-                        WBArchPolDetData archDetThis = new WBArchPolDetData();
-                        archDetThis.setWbapdTableName(archDet.getWbapdTableName());
-                        archDetThis.setWbapdWhereClause(sqlThisBatch);
-                        archDetThis.assignWbapdWhereClauseResolved(sqlThisBatch);
+                        setCheckpointPosition(d, tok.isKeyset()
+                                ? String.valueOf(tok.getCurrentLastKey()) : archDet.getWbapdTableName());
                         processPurgeArchivePolicyDetail(archDetThis, true);
+                        purgeData.releaseBoundWhereClauses(Collections.singletonList(archDetThis));
                     }
                 }
             }
+            completeCheckpoint();
         }
     }
 
@@ -1174,6 +2595,18 @@ public class WBPurge {
         return purgeData.getArchivePolicyEmpIdTokenizer();
     }
 
+    /**
+     * Returns ArchivePolicyDayTokenizer for EVERY_X_EMPLOYEES archive policies
+     * based on commit params, batching employees after given id only.
+     *
+     * @param resumeAfterEmpId
+     * @return ArchivePolicyDayTokenizer
+     */
+    public PurgeData.ArchivePolicyEmpIdTokenizer getArchivePolicyEmpIdTokenizer_ForPurge(String resumeAfterEmpId)
+            throws SQLException{
+        return purgeData.getArchivePolicyEmpIdTokenizer(resumeAfterEmpId);
+    }
+
     /**
      * Returns ArchivePolicyDayTokenizer for EVERY_X_DAYS archive policies
      * based on commit params.
@@ -1187,6 +2620,16 @@ public class WBPurge {
 
 
 
+    /**
+     * Purges the collected items from the archive and commits. The deletes run on the
+     * archive connection and are committed before the checkpoint is saved and committed
+     * on the core connection, so a checkpoint never runs ahead of the purged rows. If
+     * the run stops in between, a resumed run purges the last batch again, which only
+     * deletes what is still left and so is safe to repeat.
+     *
+     * @throws WBArchiveException
+     * @throws SQLException
+     */
     public void commitWorkArchivePurge() throws WBArchiveException , SQLException{
         List<TransactionDetails.TransactionDetailItem> transactionDetailItems = getTransactionDetails().getTransactionDetails();
         log("Processing " + (transactionDetailItems == null ? 0 :transactionDetailItems.size())
@@ -1194,24 +2637,7 @@ public class WBPurge {
         try {
             if (transactionDetailItems != null && transactionDetailItems.size() != 0) {
                 Date start = new Date();
-                for (int i = 0, k = transactionDetailItems.size(); i < k; i++) {
-                    TransactionDetails.TransactionDetailItem item =
-                            transactionDetailItems.get(i);
-                    String str = item.getWhere();
-                    /*if (str.indexOf("TO_DATE('04/30/2017 00:00:00','mm/dd/yyyy hh24:mi:ss')") > 0){
-                        //Dodgy code here
-                        str = str.replaceAll("'04/30/2017 00:00:00'","'02/28/2017 00:00:00'");
-                        item.setWhere(str);
-                    }*/
-
-                    int affectedRecs = 0;
-                    if ("Y".equals(archivePolicyData.getWbapFlag5())) {
-                        affectedRecs = purgeArchiveData(item);
-                    }
-                    String msg = affectedRecs + " records have been deleted from Archive DB";
-                    log(msg);  addTransactionDetailMessage(msg);
-                    addTransactionRecordsAffected(affectedRecs);
-                }
+                applyArchivePurgeItems(transactionDetailItems);
                 addTransactionDetailMessage("Work Committed");
 
                 /*deleteTempFiles(true);*/
@@ -1219,17 +2645,14 @@ public class WBPurge {
                         transactionDetailItems,
                         start,
                         getTransactionDetails().getMessage());*/
-                if (isArchiveModeDB && archivePolicyData.isArchive()) {
-                    connArch.commit();
-                }
+                connArch.commit();
             }
+            saveCheckpoint();
             connCore.commit();
             log("Work Committed\n\n");
         } catch (Exception e){
             connCore.rollback();
-            if (isArchiveModeDB && archivePolicyData.isArchive()) {
-                connArch.rollback();
-            }
+            connArch.rollback();
             resetTransactionRecordsAffected();
             logger.error("Error in committing work", e);
             throw new WBArchiveException(e);
@@ -1238,6 +2661,38 @@ public class WBPurge {
         }
     }
 
+    /**
+     * Purges given items from the archive without committing.
+     *
+     * @param transactionDetailItems
+     * @throws SQLException
+     */
+    private void applyArchivePurgeItems(List<TransactionDetails.TransactionDetailItem> transactionDetailItems)
+            throws SQLException{
+        collectRepeatedTables(transactionDetailItems);
+        for (int i = 0, k = transactionDetailItems.size(); i < k; i++) {
+            TransactionDetails.TransactionDetailItem item =
+                    transactionDetailItems.get(i);
+            String str = item.getWhere();
+            /*if (str.indexOf("TO_DATE('04/30/2017 00:00:00','mm/dd/yyyy hh24:mi:ss')") > 0){
+                //Dodgy code here
+                str = str.replaceAll("'04/30/2017 00:00:00'","'02/28/2017 00:00:00'");
+                item.setWhere(str);
+            }*/
+
+            int affectedRecs = 0;
+            if ("Y".equals(archivePolicyData.getWbapFlag5())) {
+                boolean staged = stageKeys(connArch, item);
+                affectedRecs = purgeArchiveData(item);
+                if (staged) {
+                    unstageKeys(connArch, item);
+                }
+            }
+            String msg = affectedRecs + " records have been deleted from Archive DB";
+            log(msg);  addTransactionDetailMessage(msg);
+            addTransactionRecordsAffected(affectedRecs);
+        }
+    }
 
     /**
      * Processes list of resolved ArchivePolicyDetails.
@@ -1257,6 +2712,8 @@ public class WBPurge {
             WBArchPolDetData archDet = iter.next();
             processPurgeArchivePolicyDetail(archDet, false);
         }
+        // *** the transaction items hold the bound where clauses now
+        purgeData.releaseBoundWhereClauses(policyDetails);
         if (shouldCommit) {
             commitWorkArchivePurge();
         }
@@ -1287,19 +2744,12 @@ public class WBPurge {
 
     private int purgeArchiveData(TransactionDetails.TransactionDetailItem item) throws SQLException{
         if (!item.resolvesForPrimaryKey) {
-            return purgeArchiveData(item.getTableName(), item.getWhere());
+            return purgeArchiveData(item.getTableName(), item.getBoundWhere());
+        }else if (item.getKeyStageId() != 0) {
+            return purgeArchiveData(item.getTableName(), getKeyStageWhere(item));
         }else {
-            // *** if it will be purged for PKids, chunk it since IN clause cannot take more than SQL_IN_CLAUSE_LIMIT
-            int ret = 0;
-            LongArrayIterator iter = new LongArrayIterator(item.getPrimaryKeyIds().toLongArray() , SQL_IN_CLAUSE_LIMIT);
-            while (iter.hasNext()) {
-                long[] ids = iter.next();
-                if (ids == null || ids.length == 0) continue;
-                String where = item.getPrimaryKeyColumnName() + " IN ("
-                        + StringUtil.createCSVForNumber(new LongList(ids)) + ")";
-                ret += purgeArchiveData(item.getTableName(), where);
-            }
-            return ret;
+            return deleteByPrimaryKeys(connArch, item.getTableName(),
+                    item.getPrimaryKeyColumnName(), item.getPrimaryKeyIds());
         }
     }
 
@@ -1311,15 +2761,29 @@ public class WBPurge {
      * @return
      * @throws SQLException
      */
-    private int purgeArchiveData(String tableName, String whereClause) throws SQLException{
+    private int purgeArchiveData(String tableName, BoundWhereClause whereClause) throws SQLException{
 
-        Statement stm = null;
+        BoundedDelete bounded = getBoundedDelete(connArch, true);
+        if (bounded != null) {
+            int ret = bounded.delete(tableName, whereClause);
+            String msg = bounded.getLastStatistics().toString();
+            log(msg);  addTransactionDetailMessage(msg);
+            return ret;
+        }
+        PreparedStatement stm = null;
         int updatedRecords = 0;
         try {
             long s = System.currentTimeMillis();
-            stm = connArch.createStatement();
-            String sql = "DELETE FROM " + tableName + " WHERE " + whereClause;
-            updatedRecords = stm.executeUpdate(sql);
+            int degree = getParallelDegree(tableName);
+            ParallelDml parallel = getParallelDml(connArch);
+            String hint = parallel.getHint(degree);
+            String sql = "DELETE " + (hint.length() > 0 ? "/*+ " + hint + " */ " : "") + "FROM " + tableName
+                    + " WHERE " + whereClause.getSql() + parallel.getOption(degree);
+            parallel.prepare(degree);
+            stm = connArch.prepareStatement(sql);
+            whereClause.bind(stm, 1);
+            updatedRecords = stm.executeUpdate();
+            reportParallelDml(parallel, tableName, degree);
             meterTime("Deleting data for : " + tableName , s);
         } finally{
             if (stm != null) stm.close();
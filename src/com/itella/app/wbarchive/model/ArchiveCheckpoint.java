@@ -0,0 +1,205 @@
+package com.itella.app.wbarchive.model;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import com.workbrain.sql.DBConnection;
+import com.workbrain.sql.SQLUtil;
+
+/**
+ * Tokenizer position of a batched archive phase, stored in WBARCH_CHECKPOINT with
+ * one row per archive transaction and phase.
+ * <p>
+ * The position is saved on the core connection before the batch it belongs to is
+ * committed, so it never runs ahead of committed work. A resumed run continues
+ * after the position of the latest unfinished checkpoint of its policy and phase.
+ * Positions are the end date of a day window, the last employee id of an employee
+ * batch or the index of the policy detail of a record batch, with the last primary
+ * key of the batch if records are batched by key ranges.
+ */
+public class ArchiveCheckpoint {
+
+    public static final String PHASE_PURGE = "PURGE";
+    public static final String PHASE_ARCHIVE_PURGE = "ARCHIVE_PURGE";
+
+    public static final String STATUS_RUNNING = "R";
+    public static final String STATUS_COMPLETE = "C";
+
+    private static final String DATE_FORMAT = "yyyyMMdd HHmmss";
+
+    private static final String SQL_UPDATE = "UPDATE wbarch_checkpoint SET wbcp_detail_ind = ?, wbcp_position = ?,"
+        + " wbcp_status = ?, wbcp_updated = ? WHERE wbat_id = ? AND wbcp_phase = ?";
+    private static final String SQL_INSERT = "INSERT INTO wbarch_checkpoint (wbat_id, wbap_id, wbcp_phase,"
+        + " wbcp_detail_ind, wbcp_position, wbcp_status, wbcp_updated) VALUES (?, ?, ?, ?, ?, ?, ?)";
+    private static final String SQL_LOAD_RESUMABLE = "SELECT wbat_id, wbcp_detail_ind, wbcp_position"
+        + " FROM wbarch_checkpoint WHERE wbap_id = ? AND wbcp_phase = ? AND wbcp_status = ?"
+        + " ORDER BY wbat_id DESC";
+    private static final String SQL_COMPLETE = "UPDATE wbarch_checkpoint SET wbcp_status = ?, wbcp_updated = ?"
+        + " WHERE wbap_id = ? AND wbcp_phase = ? AND wbcp_status = ?";
+
+    private final int wbatId;
+    private final int wbapId;
+    private final String phase;
+    private int detailIndex;
+    private String position;
+    private boolean dirty;
+
+    public ArchiveCheckpoint(int wbatId, int wbapId, String phase) {
+        this.wbatId = wbatId;
+        this.wbapId = wbapId;
+        this.phase = phase;
+    }
+
+    /**
+     * Returns the latest unfinished checkpoint of given policy and phase, null if none.
+     *
+     * @param conn
+     * @param wbapId
+     * @param phase
+     * @return
+     * @throws SQLException
+     */
+    public static ArchiveCheckpoint loadResumable(DBConnection conn, int wbapId, String phase) throws SQLException {
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try {
+            ps = conn.prepareStatement(SQL_LOAD_RESUMABLE);
+            ps.setInt(1, wbapId);
+            ps.setString(2, phase);
+            ps.setString(3, STATUS_RUNNING);
+            rs = ps.executeQuery();
+            if (!rs.next()) {
+                return null;
+            }
+            ArchiveCheckpoint ret = new ArchiveCheckpoint(rs.getInt(1), wbapId, phase);
+            ret.detailIndex = rs.getInt(2);
+            ret.position = rs.getString(3);
+            return ret;
+        } finally {
+            SQLUtil.cleanUp(ps, rs);
+        }
+    }
+
+    /**
+     * Marks all unfinished checkpoints of given policy and phase complete, without committing.
+     *
+     * @param conn
+     * @param wbapId
+     * @param phase
+     * @throws SQLException
+     */
+    public static void complete(DBConnection conn, int wbapId, String phase) throws SQLException {
+        PreparedStatement ps = null;
+        try {
+            ps = conn.prepareStatement(SQL_COMPLETE);
+            ps.setString(1, STATUS_COMPLETE);
+            ps.setTimestamp(2, new Timestamp(System.currentTimeMillis()));
+            ps.setInt(3, wbapId);
+            ps.setString(4, phase);
+            ps.setString(5, STATUS_RUNNING);
+            ps.executeUpdate();
+        } finally {
+            SQLUtil.cleanUp(ps);
+        }
+    }
+
+    /**
+     * Saves the position if it changed since the last save, without committing.
+     *
+     * @param conn
+     * @throws SQLException
+     */
+    public synchronized void save(DBConnection conn) throws SQLException {
+        if (!dirty) {
+            return;
+        }
+        PreparedStatement ps = null;
+        try {
+            Timestamp now = new Timestamp(System.currentTimeMillis());
+            ps = conn.prepareStatement(SQL_UPDATE);
+            ps.setInt(1, detailIndex);
+            ps.setString(2, position);
+            ps.setString(3, STATUS_RUNNING);
+            ps.setTimestamp(4, now);
+            ps.setInt(5, wbatId);
+            ps.setString(6, phase);
+            if (ps.executeUpdate() == 0) {
+                SQLUtil.cleanUp(ps);
+                ps = conn.prepareStatement(SQL_INSERT);
+                ps.setInt(1, wbatId);
+                ps.setInt(2, wbapId);
+                ps.setString(3, phase);
+                ps.setInt(4, detailIndex);
+                ps.setString(5, position);
+                ps.setString(6, STATUS_RUNNING);
+                ps.setTimestamp(7, now);
+                ps.executeUpdate();
+            }
+            dirty = false;
+        } finally {
+            SQLUtil.cleanUp(ps);
+        }
+    }
+
+    /**
+     * Sets the position reached once the current batch commits.
+     *
+     * @param detailIndex
+     * @param position
+     */
+    public synchronized void setPosition(int detailIndex, String position) {
+        this.detailIndex = detailIndex;
+        this.position = position;
+        this.dirty = true;
+    }
+
+    public synchronized void setPosition(Date date) {
+        setPosition(0, formatDate(date));
+    }
+
+    public int getWbatId() {
+        return wbatId;
+    }
+
+    public String getPhase() {
+        return phase;
+    }
+
+    public synchronized int getDetailIndex() {
+        return detailIndex;
+    }
+
+    public synchronized String getPosition() {
+        return position;
+    }
+
+    /**
+     * Returns the position as date, null if it is not one.
+     *
+     * @return
+     */
+    public synchronized Date getPositionDate() {
+        if (position == null) {
+            return null;
+        }
+        try {
+            return new SimpleDateFormat(DATE_FORMAT).parse(position);
+        } catch (ParseException e) {
+            return null;
+        }
+    }
+
+    private static String formatDate(Date date) {
+        return date == null ? null : new SimpleDateFormat(DATE_FORMAT).format(date);
+    }
+
+    public String toString() {
+        return phase + " checkpoint of transaction " + wbatId + " at detail " + detailIndex
+            + (position == null ? "" : ", position " + position);
+    }
+}
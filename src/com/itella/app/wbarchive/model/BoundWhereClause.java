@@ -0,0 +1,331 @@
+package com.itella.app.wbarchive.model;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import com.workbrain.app.wbarchive.model.WBArchPolDetData;
+
+/**
+ * Where clause with bind parameters and its literal rendering.
+ * <p>
+ * The sql text only changes with the shape of the policy detail, values such as
+ * aging dates, employee ids and primary keys are bound. IN lists are padded to a
+ * few fixed sizes by repeating the last value so batches of different sizes
+ * share statements. The literal rendering is kept for logging, transaction
+ * details and consumers that cannot bind.
+ * <p>
+ * Employee id selector markers stay open as slots until <code>withEmpIds</code> or
+ * <code>withEmpIdSelector</code> fills them. Instances are immutable.
+ */
+public class BoundWhereClause {
+
+    /** IN lists above this size are padded to a multiple of it instead of a power of two */
+    public static final int IN_LIST_PAD_LIMIT = 500;
+
+    private final String[] sqlParts;
+    private final String[] literalParts;
+    private final int[] slotParamIndexes;
+    private final Object[] params;
+
+    private BoundWhereClause(List<String> sqlParts, List<String> literalParts,
+                             List<Integer> slotParamIndexes, List<Object> params) {
+        this.sqlParts = sqlParts.toArray(new String[sqlParts.size()]);
+        this.literalParts = literalParts.toArray(new String[literalParts.size()]);
+        this.slotParamIndexes = new int[slotParamIndexes.size()];
+        for (int i = 0; i < this.slotParamIndexes.length; i++) {
+            this.slotParamIndexes[i] = slotParamIndexes.get(i).intValue();
+        }
+        this.params = params.toArray();
+    }
+
+    /**
+     * Returns a where clause without bind parameters.
+     *
+     * @param where
+     * @return
+     */
+    public static BoundWhereClause literal(String where) {
+        return new Builder().appendSql(where == null ? "" : where).build();
+    }
+
+    /**
+     * Returns <code>column IN (?, ...)</code> for given ids.
+     *
+     * @param column
+     * @param ids
+     * @return
+     */
+    public static BoundWhereClause inList(String column, long[] ids) {
+        List<Object> values = new ArrayList<Object>(ids.length);
+        for (int i = 0; i < ids.length; i++) {
+            values.add(Long.valueOf(ids[i]));
+        }
+        return new Builder().appendInList(column, values).build();
+    }
+
+    /**
+     * Returns the number of bind parameters used for an IN list of given size.
+     *
+     * @param size
+     * @return
+     */
+    public static int paddedSize(int size) {
+        if (size <= 1) {
+            return size;
+        }
+        int ret = Integer.highestOneBit(size - 1) << 1;
+        if (ret > IN_LIST_PAD_LIMIT) {
+            ret = ((size + IN_LIST_PAD_LIMIT - 1) / IN_LIST_PAD_LIMIT) * IN_LIST_PAD_LIMIT;
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the sql with <code>?</code> placeholders.
+     *
+     * @return
+     */
+    public String getSql() {
+        return join(sqlParts);
+    }
+
+    /**
+     * Returns the sql with values inlined as literals.
+     *
+     * @return
+     */
+    public String getLiteralSql() {
+        return join(literalParts);
+    }
+
+    public List<Object> getParameters() {
+        return Collections.unmodifiableList(Arrays.asList(params));
+    }
+
+    public boolean hasEmpIdSlot() {
+        return slotParamIndexes.length > 0;
+    }
+
+    /**
+     * Binds the parameters to given statement.
+     *
+     * @param ps
+     * @param index  index of the first parameter
+     * @return index of the next parameter
+     * @throws SQLException
+     */
+    public int bind(PreparedStatement ps, int index) throws SQLException {
+        for (int i = 0; i < params.length; i++) {
+            ps.setObject(index++, params[i]);
+        }
+        return index;
+    }
+
+    /**
+     * Fills employee id selector slots with an IN list of given employee ids,
+     * with nothing if the list is empty.
+     *
+     * @param empIds
+     * @return
+     */
+    public BoundWhereClause withEmpIds(List<String> empIds) {
+        List<Object> values = new ArrayList<Object>(empIds == null ? 0 : empIds.size());
+        if (empIds != null) {
+            for (int i = 0; i < empIds.size(); i++) {
+                String empId = empIds.get(i).trim();
+                try {
+                    values.add(Long.valueOf(empId));
+                } catch (NumberFormatException e) {
+                    values.add(empId);
+                }
+            }
+        }
+        return fillEmpIdSlots(values, null);
+    }
+
+    /**
+     * Fills employee id selector slots with given sql.
+     *
+     * @param sql
+     * @return
+     */
+    public BoundWhereClause withEmpIdSelector(String sql) {
+        return fillEmpIdSlots(null, sql);
+    }
+
+    private BoundWhereClause fillEmpIdSlots(List<Object> empIds, String sql) {
+        Builder b = new Builder();
+        int paramInd = 0;
+        for (int i = 0; i < sqlParts.length; i++) {
+            b.appendParts(sqlParts[i], literalParts[i]);
+            int paramEnd = i < slotParamIndexes.length ? slotParamIndexes[i] : params.length;
+            for (; paramInd < paramEnd; paramInd++) {
+                b.params.add(params[paramInd]);
+            }
+            if (i < slotParamIndexes.length) {
+                if (sql != null) {
+                    b.appendSql(sql);
+                }
+                else if (empIds.size() > 0) {
+                    b.appendSql(" ").appendInList("emp_id", empIds);
+                }
+            }
+        }
+        return b.build();
+    }
+
+    private static String join(String[] parts) {
+        if (parts.length == 1) {
+            return parts[0];
+        }
+        StringBuilder sb = new StringBuilder(400);
+        for (int i = 0; i < parts.length; i++) {
+            if (i > 0) {
+                sb.append(WBArchPolDetData.WHERE_EMP_ID_SELECTOR);
+            }
+            sb.append(parts[i]);
+        }
+        return sb.toString();
+    }
+
+    public String toString() {
+        return getLiteralSql();
+    }
+
+    /**
+     * Builds a BoundWhereClause from sql text, parameters and slots.
+     */
+    public static class Builder {
+        private final List<String> sqlParts = new ArrayList<String>();
+        private final List<String> literalParts = new ArrayList<String>();
+        private final List<Integer> slotParamIndexes = new ArrayList<Integer>();
+        private final List<Object> params = new ArrayList<Object>();
+        private final StringBuilder sql = new StringBuilder(400);
+        private final StringBuilder literal = new StringBuilder(400);
+
+        public Builder appendSql(String v) {
+            sql.append(v);
+            literal.append(v);
+            return this;
+        }
+
+        /**
+         * Appends a bind parameter.
+         *
+         * @param placeholder   sql for the parameter, e.g. <code>?</code> or <code>CAST(? AS DATE)</code>
+         * @param value
+         * @param literalValue  sql for the value as literal
+         * @return
+         */
+        public Builder appendParam(String placeholder, Object value, String literalValue) {
+            sql.append(placeholder);
+            literal.append(literalValue);
+            params.add(value);
+            return this;
+        }
+
+        /**
+         * Appends sql and parameters that are not part of the literal rendering, used
+         * to pad a statement to a shared shape with values that do not change its result.
+         *
+         * @param padSql
+         * @param values
+         * @return
+         */
+        public Builder appendPadding(String padSql, Object[] values) {
+            sql.append(padSql);
+            for (int i = 0; i < values.length; i++) {
+                params.add(values[i]);
+            }
+            return this;
+        }
+
+        /**
+         * Appends <code>column IN (...)</code>, padded to <code>paddedSize</code> parameters.
+         *
+         * @param column
+         * @param values  at least one value
+         * @return
+         */
+        public Builder appendInList(String column, List<?> values) {
+            int size = paddedSize(values.size());
+            sql.append(column).append(" IN (");
+            literal.append(column).append(" IN (");
+            for (int i = 0; i < size; i++) {
+                Object val = values.get(Math.min(i, values.size() - 1));
+                if (i > 0) {
+                    sql.append(',');
+                }
+                sql.append('?');
+                params.add(val);
+                if (i < values.size()) {
+                    if (i > 0) {
+                        literal.append(',');
+                    }
+                    literal.append(val);
+                }
+            }
+            sql.append(')');
+            literal.append(')');
+            return this;
+        }
+
+        /**
+         * Appends an employee id selector slot.
+         *
+         * @return
+         */
+        public Builder appendEmpIdSlot() {
+            closePart();
+            slotParamIndexes.add(Integer.valueOf(params.size()));
+            return this;
+        }
+
+        /**
+         * Appends given where clause with its parameters and slots.
+         *
+         * @param where
+         * @return
+         */
+        public Builder append(BoundWhereClause where) {
+            int paramInd = 0;
+            for (int i = 0; i < where.sqlParts.length; i++) {
+                appendParts(where.sqlParts[i], where.literalParts[i]);
+                int paramEnd = i < where.slotParamIndexes.length
+                    ? where.slotParamIndexes[i] : where.params.length;
+                for (; paramInd < paramEnd; paramInd++) {
+                    params.add(where.params[paramInd]);
+                }
+                if (i < where.slotParamIndexes.length) {
+                    appendEmpIdSlot();
+                }
+            }
+            return this;
+        }
+
+        private Builder appendParts(String sqlPart, String literalPart) {
+            sql.append(sqlPart);
+            literal.append(literalPart);
+            return this;
+        }
+
+        private void closePart() {
+            sqlParts.add(sql.toString());
+            literalParts.add(literal.toString());
+            sql.setLength(0);
+            literal.setLength(0);
+        }
+
+        public BoundWhereClause build() {
+            List<String> sqls = new ArrayList<String>(sqlParts);
+            List<String> literals = new ArrayList<String>(literalParts);
+            sqls.add(sql.toString());
+            literals.add(literal.toString());
+            return new BoundWhereClause(sqls, literals, slotParamIndexes, params);
+        }
+    }
+}
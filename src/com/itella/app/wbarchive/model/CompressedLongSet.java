@@ -0,0 +1,307 @@
+package com.itella.app.wbarchive.model;
+
+/**
+ * Immutable sorted set of longs encoded as runs of consecutive values.
+ * <p>
+ * Values are split into blocks of BLOCK_SIZE values. A block keeps its first value
+ * and value count uncompressed and encodes the rest as variable length gaps, where
+ * each gap can be followed by the length of a run of consecutive values. The mostly
+ * increasing, dense primary keys of our tables take a few bits per key this way
+ * instead of the 8 bytes of a <code>LongList</code>. The size and the blocks are
+ * known without decoding, values are decoded block by block in ascending order.
+ */
+public class CompressedLongSet {
+
+    public static final int BLOCK_SIZE = 256;
+
+    private static final int INITIAL_DATA_BYTES = 64;
+
+    private final long size;
+    private final int blockCount;
+    private final long[] blockFirst;
+    private final int[] blockCounts;
+    private final int[] blockOffsets;
+    private final byte[] data;
+
+    private CompressedLongSet(long size, int blockCount, long[] blockFirst, int[] blockCounts,
+                              int[] blockOffsets, byte[] data) {
+        this.size = size;
+        this.blockCount = blockCount;
+        this.blockFirst = blockFirst;
+        this.blockCounts = blockCounts;
+        this.blockOffsets = blockOffsets;
+        this.data = data;
+    }
+
+    /**
+     * Returns the set of the first <code>n</code> values of given array, which must be
+     * sorted ascending without duplicates.
+     *
+     * @param sorted
+     * @param n
+     * @return
+     */
+    public static CompressedLongSet fromSorted(long[] sorted, int n) {
+        Builder b = new Builder();
+        for (int i = 0; i < n; i++) {
+            b.add(sorted[i]);
+        }
+        return b.build();
+    }
+
+    /**
+     * Returns the number of values.
+     *
+     * @return
+     */
+    public long size() {
+        return size;
+    }
+
+    public int getBlockCount() {
+        return blockCount;
+    }
+
+    /**
+     * Returns the smallest value of given block.
+     *
+     * @param block
+     * @return
+     */
+    public long getBlockFirst(int block) {
+        return blockFirst[block];
+    }
+
+    public int getBlockSize(int block) {
+        return blockCounts[block];
+    }
+
+    /**
+     * Returns the approximate heap bytes used by the encoded values.
+     *
+     * @return
+     */
+    public long getMemoryBytes() {
+        return data.length + blockCount * (8L + 4 + 4) + 64;
+    }
+
+    /**
+     * Decodes given block into <code>dest</code> starting at <code>off</code>, which must
+     * have room for <code>getBlockSize(block)</code> values.
+     *
+     * @param block
+     * @param dest
+     * @param off
+     * @return the number of values decoded
+     */
+    public int decodeBlock(int block, long[] dest, int off) {
+        int count = blockCounts[block];
+        int pos = blockOffsets[block];
+        long value = blockFirst[block];
+        dest[off] = value;
+        int n = 1;
+        while (n < count) {
+            long v = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = data[pos++];
+                v |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            value += (v >>> 1) + 1;
+            dest[off + n++] = value;
+            if ((v & 1) != 0) {
+                int run = 0;
+                shift = 0;
+                do {
+                    b = data[pos++];
+                    run |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                for (int i = 0; i <= run; i++) {
+                    dest[off + n++] = ++value;
+                }
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Returns a cursor over the values in ascending order.
+     *
+     * @return
+     */
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    public String toString() {
+        return size + " values in " + blockCount + " blocks of " + getMemoryBytes() + " bytes";
+    }
+
+    /**
+     * Ascending iteration over the values, a block at a time.
+     */
+    public class Cursor {
+        private int block;
+        private final long[] buffer = new long[BLOCK_SIZE];
+        private int bufferPos;
+        private int bufferCount;
+
+        /**
+         * Copies the next values to <code>dest</code>.
+         *
+         * @param dest
+         * @param off
+         * @param len
+         * @return the number of values copied, 0 at the end
+         */
+        public int next(long[] dest, int off, int len) {
+            int n = 0;
+            while (n < len) {
+                if (bufferPos == bufferCount) {
+                    if (block == blockCount) {
+                        break;
+                    }
+                    if (bufferPos == 0 && len - n >= blockCounts[block]) {
+                        // *** whole blocks go directly to the destination
+                        n += decodeBlock(block++, dest, off + n);
+                        continue;
+                    }
+                    bufferCount = decodeBlock(block++, buffer, 0);
+                    bufferPos = 0;
+                }
+                int c = Math.min(len - n, bufferCount - bufferPos);
+                System.arraycopy(buffer, bufferPos, dest, off + n, c);
+                bufferPos += c;
+                n += c;
+                if (bufferPos == bufferCount) {
+                    bufferPos = 0;
+                    bufferCount = 0;
+                }
+            }
+            return n;
+        }
+    }
+
+    /**
+     * Collects ascending values into a set.
+     */
+    public static class Builder {
+        private long size;
+        private int blockCount;
+        private long[] blockFirst = new long[4];
+        private int[] blockCounts = new int[4];
+        private int[] blockOffsets = new int[4];
+        private byte[] data = new byte[INITIAL_DATA_BYTES];
+        private int dataLength;
+        private long last;
+        private long gap;
+        private int run;
+        private boolean pending;
+
+        /**
+         * Adds a value greater than the previous one.
+         *
+         * @param value
+         * @return
+         */
+        public Builder add(long value) {
+            if (size > 0 && value <= last) {
+                throw new IllegalArgumentException("Values must be added in ascending order, "
+                        + value + " after " + last);
+            }
+            if (size == 0 || blockCounts[blockCount - 1] == BLOCK_SIZE) {
+                flush();
+                if (blockCount == blockFirst.length) {
+                    blockFirst = grow(blockFirst);
+                    blockCounts = grow(blockCounts);
+                    blockOffsets = grow(blockOffsets);
+                }
+                blockFirst[blockCount] = value;
+                blockCounts[blockCount] = 1;
+                blockOffsets[blockCount] = dataLength;
+                blockCount++;
+            }
+            else {
+                if (pending && value == last + 1) {
+                    run++;
+                }
+                else {
+                    flush();
+                    gap = value - last;
+                    pending = true;
+                }
+                blockCounts[blockCount - 1]++;
+            }
+            last = value;
+            size++;
+            return this;
+        }
+
+        /**
+         * Writes the pending gap and run.
+         */
+        private void flush() {
+            if (!pending) {
+                return;
+            }
+            long v = (gap - 1) << 1;
+            if (run > 0) {
+                writeVar(v | 1);
+                writeVar(run - 1);
+            }
+            else {
+                writeVar(v);
+            }
+            pending = false;
+            run = 0;
+        }
+
+        private void writeVar(long v) {
+            if (dataLength + 10 > data.length) {
+                byte[] grown = new byte[data.length * 2];
+                System.arraycopy(data, 0, grown, 0, dataLength);
+                data = grown;
+            }
+            while ((v & ~0x7FL) != 0) {
+                data[dataLength++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            data[dataLength++] = (byte) v;
+        }
+
+        public CompressedLongSet build() {
+            flush();
+            byte[] trimmed = new byte[dataLength];
+            System.arraycopy(data, 0, trimmed, 0, dataLength);
+            return new CompressedLongSet(size, blockCount, trim(blockFirst, blockCount),
+                    trim(blockCounts, blockCount), trim(blockOffsets, blockCount), trimmed);
+        }
+
+        private static long[] grow(long[] a) {
+            long[] ret = new long[a.length * 2];
+            System.arraycopy(a, 0, ret, 0, a.length);
+            return ret;
+        }
+
+        private static int[] grow(int[] a) {
+            int[] ret = new int[a.length * 2];
+            System.arraycopy(a, 0, ret, 0, a.length);
+            return ret;
+        }
+
+        private static long[] trim(long[] a, int n) {
+            long[] ret = new long[n];
+            System.arraycopy(a, 0, ret, 0, n);
+            return ret;
+        }
+
+        private static int[] trim(int[] a, int n) {
+            int[] ret = new int[n];
+            System.arraycopy(a, 0, ret, 0, n);
+            return ret;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.itella.app.wbarchive.model;
+
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.workbrain.app.wbarchive.SchemaHelper;
+import com.workbrain.app.wbarchive.model.WBArchPolDetData;
+import com.workbrain.app.wbarchive.model.WBArchPolParamData;
+import com.workbrain.sql.DBConnection;
+
+/**
+ * Policy metadata loaded once and shared by every consumer of a policy: params,
+ * unresolved details, details resolved per aging date with the bound form of their
+ * where clauses and primary key column names.
+ * <p>
+ * Loaded lists are unmodifiable and the data objects in them must be treated as
+ * read only, resolution works on duplicates. Instances are safe to share between
+ * threads.
+ */
+public class PolicySnapshot {
+
+    private final int policyId;
+    private final String fingerprint;
+    private final List<WBArchPolParamData> params;
+    private final List<WBArchPolDetData> detailsOriginal;
+    private final Map<Long, List<WBArchPolDetData>> resolvedByAgingDate = new ConcurrentHashMap<Long, List<WBArchPolDetData>>();
+    private final Map<String, String> primaryKeyColumns = new ConcurrentHashMap<String, String>();
+    private final Map<WBArchPolDetData, BoundWhereClause> boundWhereClauses = Collections.synchronizedMap(
+        new IdentityHashMap<WBArchPolDetData, BoundWhereClause>());
+
+    public PolicySnapshot(int policyId, String fingerprint,
+                          List<WBArchPolParamData> params,
+                          List<WBArchPolDetData> detailsOriginal) {
+        this.policyId = policyId;
+        this.fingerprint = fingerprint;
+        this.params = Collections.unmodifiableList(params);
+        this.detailsOriginal = Collections.unmodifiableList(detailsOriginal);
+    }
+
+    public int getPolicyId() {
+        return policyId;
+    }
+
+    /**
+     * Returns the content fingerprint of the policy tables this snapshot was loaded from,
+     * null if unknown.
+     *
+     * @return
+     */
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    public List<WBArchPolParamData> getArchivePolicyParams() {
+        return params;
+    }
+
+    public List<WBArchPolDetData> getArchivePolicyDetailsOriginal() {
+        return detailsOriginal;
+    }
+
+    /**
+     * Returns details resolved for given aging date, null if not resolved yet.
+     *
+     * @param agingDate
+     * @return
+     */
+    public List<WBArchPolDetData> getResolvedDetails(Date agingDate) {
+        return resolvedByAgingDate.get(Long.valueOf(agingDate.getTime()));
+    }
+
+    /**
+     * Stores details resolved for given aging date with the bound form of their where
+     * clauses. If another consumer stored them first, those are returned instead.
+     *
+     * @param agingDate
+     * @param resolved
+     * @param boundWhereClauses bound where clauses by detail, must hold every given detail
+     * @return the details now held by the snapshot
+     */
+    public synchronized List<WBArchPolDetData> putResolvedDetails(Date agingDate, List<WBArchPolDetData> resolved,
+                                                                  Map<WBArchPolDetData, BoundWhereClause> boundWhereClauses) {
+        Long key = Long.valueOf(agingDate.getTime());
+        List<WBArchPolDetData> existing = resolvedByAgingDate.get(key);
+        if (existing != null) {
+            return existing;
+        }
+        for (int i = 0; i < resolved.size(); i++) {
+            WBArchPolDetData det = resolved.get(i);
+            this.boundWhereClauses.put(det, boundWhereClauses.get(det));
+        }
+        List<WBArchPolDetData> ret = Collections.unmodifiableList(resolved);
+        resolvedByAgingDate.put(key, ret);
+        return ret;
+    }
+
+    /**
+     * Returns a snapshot of the same loaded params and details without resolved details,
+     * they depend on run time values such as params resolved for sql. This snapshot is
+     * left untouched for runs still reading it.
+     *
+     * @return
+     */
+    public PolicySnapshot copyUnresolved() {
+        return new PolicySnapshot(policyId, fingerprint, params, detailsOriginal);
+    }
+
+    /**
+     * Returns the bound where clause of given detail, null unless the detail is one
+     * of the resolved details held by this snapshot.
+     *
+     * @param det
+     * @return
+     */
+    public BoundWhereClause getBoundWhereClause(WBArchPolDetData det) {
+        return boundWhereClauses.get(det);
+    }
+
+    /**
+     * Returns the primary key column for given table, looked up once.
+     *
+     * @param conn
+     * @param tableName
+     * @return
+     * @throws SQLException
+     */
+    public String getPrimaryKeyColumn(DBConnection conn, String tableName) throws SQLException {
+        String key = tableName.toUpperCase();
+        String ret = primaryKeyColumns.get(key);
+        if (ret == null) {
+            ret = SchemaHelper.getPrimaryKeyColumnForTable(conn, tableName);
+            if (ret != null) {
+                primaryKeyColumns.put(key, ret);
+            }
+        }
+        return ret;
+    }
+}
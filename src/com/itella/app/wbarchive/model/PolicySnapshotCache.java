@@ -0,0 +1,165 @@
+package com.itella.app.wbarchive.model;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.workbrain.app.wbarchive.WBArchiveException;
+import com.workbrain.app.wbarchive.db.WBArchPolicyAccess;
+import com.workbrain.app.wbarchive.model.WBArchPolDetData;
+import com.workbrain.app.wbarchive.model.WBArchPolParamData;
+import com.workbrain.app.wbarchive.model.WBArchPolicyData;
+import com.workbrain.sql.DBConnection;
+import com.workbrain.sql.SQLUtil;
+
+/**
+ * Hands out one PolicySnapshot per policy for an archive run and keeps snapshots
+ * across runs.
+ * <p>
+ * At the start of a run the content of the policy detail and param tables is read
+ * with one query per table and fingerprinted per policy. A snapshot kept from an
+ * earlier run is reused only if its fingerprint is unchanged, so any change to
+ * the WBARCH policy tables invalidates it. If the fingerprints cannot be read, snapshots
+ * are only shared within the run.
+ */
+public class PolicySnapshotCache {
+
+    private static org.apache.log4j.Logger logger = org.apache.log4j.Logger.getLogger(PolicySnapshotCache.class);
+
+    private static final String SQL_DETAIL_FINGERPRINT = "SELECT wbap_id, wbapd_table_name, wbapd_priority, wbapd_where_clause"
+        + " FROM wbarch_pol_det ORDER BY wbap_id, wbapd_priority, wbapd_table_name";
+    private static final String SQL_PARAM_FINGERPRINT = "SELECT wbap_id, wbapp_name, wbapp_value"
+        + " FROM wbarch_pol_param ORDER BY wbap_id, wbapp_name";
+
+    /** snapshots kept across runs, keyed by policy id */
+    private static final Map<Integer, PolicySnapshot> SNAPSHOTS = new ConcurrentHashMap<Integer, PolicySnapshot>();
+
+    private final Map<Integer, PolicySnapshot> runSnapshots = new HashMap<Integer, PolicySnapshot>();
+    private Map<Integer, String> fingerprints;
+    private boolean fingerprintsLoaded;
+
+    /**
+     * Creates the cache for one run. The cache keeps no connection, policy fingerprints
+     * are read by the first lookup on the connection of its caller.
+     */
+    public PolicySnapshotCache() {
+    }
+
+    /**
+     * Returns the snapshot of given policy for this run, loading it at most once.
+     *
+     * @param conn  connection of the caller, used if fingerprints or the policy have to be loaded
+     * @param policy
+     * @return
+     * @throws WBArchiveException
+     */
+    public synchronized PolicySnapshot getSnapshot(DBConnection conn, WBArchPolicyData policy)
+            throws WBArchiveException {
+        Integer key = Integer.valueOf(policy.getWbapId());
+        PolicySnapshot ret = runSnapshots.get(key);
+        if (ret != null) {
+            return ret;
+        }
+        if (!fingerprintsLoaded) {
+            fingerprintsLoaded = true;
+            try {
+                fingerprints = loadFingerprints(conn);
+            } catch (SQLException e) {
+                logger.error("Could not read archive policy fingerprints, policy snapshots will not be kept across runs", e);
+                fingerprints = null;
+            }
+        }
+        String fingerprint = fingerprints == null ? null : fingerprints.get(key);
+        PolicySnapshot kept = SNAPSHOTS.get(key);
+        if (kept != null && fingerprint != null && fingerprint.equals(kept.getFingerprint())) {
+            log("Reusing policy snapshot for : " + policy.getWbapName());
+            ret = kept.copyUnresolved();
+        }
+        else {
+            ret = load(conn, policy, fingerprint);
+            if (fingerprint != null) {
+                SNAPSHOTS.put(key, ret);
+            }
+            else {
+                SNAPSHOTS.remove(key);
+            }
+        }
+        runSnapshots.put(key, ret);
+        return ret;
+    }
+
+    /**
+     * Loads a snapshot of given policy without caching it.
+     *
+     * @param conn
+     * @param policy
+     * @return
+     * @throws WBArchiveException
+     */
+    public static PolicySnapshot load(DBConnection conn, WBArchPolicyData policy) throws WBArchiveException {
+        return load(conn, policy, null);
+    }
+
+    /**
+     * Drops all snapshots kept across runs.
+     */
+    public static void invalidateAll() {
+        SNAPSHOTS.clear();
+    }
+
+    private static PolicySnapshot load(DBConnection conn, WBArchPolicyData policy, String fingerprint)
+            throws WBArchiveException {
+        List<WBArchPolParamData> params = WBArchPolicyAccess.loadArchivePolicyParam(conn,
+            policy.getWbapId());
+        List<WBArchPolDetData> details = WBArchPolicyAccess.loadArchivePolicyDetail(conn,
+            policy.getWbapId());
+        return new PolicySnapshot(policy.getWbapId(), fingerprint, params, details);
+    }
+
+    private Map<Integer, String> loadFingerprints(DBConnection conn) throws SQLException {
+        Map<Integer, StringBuilder> sbs = new HashMap<Integer, StringBuilder>();
+        appendRows(conn, SQL_DETAIL_FINGERPRINT, "D", sbs);
+        appendRows(conn, SQL_PARAM_FINGERPRINT, "P", sbs);
+        Map<Integer, String> ret = new HashMap<Integer, String>();
+        for (Map.Entry<Integer, StringBuilder> e : sbs.entrySet()) {
+            ret.put(e.getKey(), e.getValue().toString());
+        }
+        return ret;
+    }
+
+    private void appendRows(DBConnection conn, String sql, String rowType,
+                            Map<Integer, StringBuilder> sbs) throws SQLException {
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try {
+            ps = conn.prepareStatement(sql);
+            rs = ps.executeQuery();
+            int cols = rs.getMetaData().getColumnCount();
+            while (rs.next()) {
+                Integer key = Integer.valueOf(rs.getInt(1));
+                StringBuilder sb = sbs.get(key);
+                if (sb == null) {
+                    sb = new StringBuilder(400);
+                    sbs.put(key, sb);
+                }
+                sb.append(rowType);
+                for (int i = 2; i <= cols; i++) {
+                    // *** length prefix keeps values from running into each other
+                    String val = rs.getString(i);
+                    sb.append('|').append(val == null ? -1 : val.length()).append(':').append(val);
+                }
+                sb.append('\n');
+            }
+        } finally {
+            SQLUtil.cleanUp(ps, rs);
+        }
+    }
+
+    protected void log( String message ) {
+        if (logger.isEnabledFor(org.apache.log4j.Level.DEBUG)) { logger.debug( message );}
+    }
+}
@@ -0,0 +1,184 @@
+package com.itella.app.wbarchive.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.workbrain.sql.DBConnection;
+import com.workbrain.sql.DBServer;
+
+/**
+ * Builds where clauses selecting a set of primary keys.
+ * <p>
+ * Keys are sorted and runs of consecutive keys become <code>BETWEEN</code> ranges,
+ * the remaining keys go to an IN list. Each clause stays within the parameter limit
+ * of the database and covers a contiguous part of the sorted keys, so it can be
+ * answered with index range scans. Range and IN list counts are padded like
+ * <code>BoundWhereClause</code> IN lists to keep the number of statement shapes small.
+ */
+public class PrimaryKeyPredicates {
+
+    /** shorter runs are cheaper as IN list entries than as a range */
+    public static final int MIN_RANGE_LENGTH = 4;
+
+    private static final int ORACLE_MAX_PARAMETERS = 1000;
+    private static final int MSSQL_MAX_PARAMETERS = 2000;
+    private static final int DB2_MAX_PARAMETERS = 2000;
+    private static final int DEFAULT_MAX_PARAMETERS = 500;
+
+    private PrimaryKeyPredicates() {
+    }
+
+    /**
+     * Returns the number of parameters one clause may bind on given connection.
+     * For Oracle this is the IN list limit of 1000.
+     *
+     * @param conn
+     * @return
+     */
+    public static int getMaxParameters(DBConnection conn) {
+        int id = conn.getDBServer().getId();
+        if (id == DBServer.ORACLE_ID) {
+            return ORACLE_MAX_PARAMETERS;
+        }
+        else if (id == DBServer.MSSQL_ID) {
+            // *** SQL Server refuses more than 2100 parameters per request
+            return MSSQL_MAX_PARAMETERS;
+        }
+        else if (id == DBServer.DB2_ID) {
+            return conn.getDBServer().isDB2_OS390() ? DEFAULT_MAX_PARAMETERS : DB2_MAX_PARAMETERS;
+        }
+        return DEFAULT_MAX_PARAMETERS;
+    }
+
+    /**
+     * Returns the chunks selecting given keys, in ascending key order.
+     *
+     * @param conn      used to size clauses for the database
+     * @param pkColumn
+     * @param ids       unsorted keys, duplicates allowed
+     * @return
+     */
+    public static List<Chunk> build(DBConnection conn, String pkColumn, long[] ids) {
+        return build(pkColumn, ids, getMaxParameters(conn));
+    }
+
+    /**
+     * Returns the chunks selecting given keys binding at most <code>maxParameters</code>
+     * parameters each, in ascending key order.
+     *
+     * @param pkColumn
+     * @param ids
+     * @param maxParameters
+     * @return
+     */
+    public static List<Chunk> build(String pkColumn, long[] ids, int maxParameters) {
+        List<Chunk> ret = new ArrayList<Chunk>();
+        if (ids == null || ids.length == 0) {
+            return ret;
+        }
+        long[] sorted = ids.clone();
+        Arrays.sort(sorted);
+        int n = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (n == 0 || sorted[i] != sorted[n - 1]) {
+                sorted[n++] = sorted[i];
+            }
+        }
+
+        // *** padding can double the count, unpadded parameters are kept to half the limit
+        int budget = Math.max(2, maxParameters / 2);
+        List<long[]> ranges = new ArrayList<long[]>();
+        List<Long> singles = new ArrayList<Long>();
+        int params = 0;
+        int keys = 0;
+        int i = 0;
+        while (i < n) {
+            int j = i;
+            while (j + 1 < n && sorted[j + 1] == sorted[j] + 1) {
+                j++;
+            }
+            if (j - i + 1 >= MIN_RANGE_LENGTH) {
+                if (params + 2 > budget) {
+                    ret.add(new Chunk(toClause(pkColumn, ranges, singles), keys));
+                    params = 0;
+                    keys = 0;
+                }
+                ranges.add(new long[] {sorted[i], sorted[j]});
+                params += 2;
+                keys += j - i + 1;
+            }
+            else {
+                for (int k = i; k <= j; k++) {
+                    if (params + 1 > budget) {
+                        ret.add(new Chunk(toClause(pkColumn, ranges, singles), keys));
+                        params = 0;
+                        keys = 0;
+                    }
+                    singles.add(Long.valueOf(sorted[k]));
+                    params++;
+                    keys++;
+                }
+            }
+            i = j + 1;
+        }
+        if (params > 0) {
+            ret.add(new Chunk(toClause(pkColumn, ranges, singles), keys));
+        }
+        return ret;
+    }
+
+    /**
+     * Builds one clause and clears given ranges and singles.
+     */
+    private static BoundWhereClause toClause(String pkColumn, List<long[]> ranges, List<Long> singles) {
+        BoundWhereClause.Builder b = new BoundWhereClause.Builder();
+        b.appendSql("(");
+        int rangeCount = BoundWhereClause.paddedSize(ranges.size());
+        for (int r = 0; r < rangeCount; r++) {
+            long[] range = ranges.get(Math.min(r, ranges.size() - 1));
+            Long from = Long.valueOf(range[0]);
+            Long to = Long.valueOf(range[1]);
+            if (r >= ranges.size()) {
+                b.appendPadding(" OR " + pkColumn + " BETWEEN ? AND ?", new Object[] {from, to});
+                continue;
+            }
+            if (r > 0) {
+                b.appendSql(" OR ");
+            }
+            b.appendSql(pkColumn + " BETWEEN ").appendParam("?", from, from.toString())
+                .appendSql(" AND ").appendParam("?", to, to.toString());
+        }
+        if (singles.size() > 0) {
+            if (ranges.size() > 0) {
+                b.appendSql(" OR ");
+            }
+            b.appendInList(pkColumn, singles);
+        }
+        b.appendSql(")");
+        ranges.clear();
+        singles.clear();
+        return b.build();
+    }
+
+    /**
+     * Where clause selecting a part of the keys and the number of keys it covers.
+     */
+    public static class Chunk {
+        private final BoundWhereClause where;
+        private final int keyCount;
+
+        Chunk(BoundWhereClause where, int keyCount) {
+            this.where = where;
+            this.keyCount = keyCount;
+        }
+
+        public BoundWhereClause getWhere() {
+            return where;
+        }
+
+        public int getKeyCount() {
+            return keyCount;
+        }
+    }
+}
@@ -0,0 +1,480 @@
+package com.itella.app.wbarchive.model;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Primary keys of a table read from a result set with bounded heap use.
+ * <p>
+ * Sources of at most <code>heapKeys</code> keys keep them in a <code>CompressedLongSet</code>.
+ * Larger sources collect keys into a buffer of at least 64k keys, whatever is left of
+ * the heap budget, and write it sorted to a spill file as a run whenever it is full.
+ * Their last buffer is spilled as well so that they keep no keys on heap. Keys are
+ * handed out in ascending order in chunks of a given size; runs are merged while
+ * reading, and if there are too many to read at once they are first merged into
+ * fewer, longer runs. Sources that spilled must be closed to remove their file.
+ */
+public class PrimaryKeySource {
+
+    public static final int DEFAULT_HEAP_KEYS = 1000000;
+
+    private static final int INITIAL_BUFFER_KEYS = 8192;
+    private static final int MIN_HEAP_KEYS = 1024;
+    private static final int MIN_RUN_KEYS = 64 * 1024;
+    private static final int MAX_MERGE_RUNS = 64;
+    private static final int IO_BUFFER_BYTES = 64 * 1024;
+    private static final String SPILL_FILE_PREFIX = "wbarchiveKeys";
+    private static final String SPILL_FILE_EXT = ".keys";
+
+    private long[] keys;
+    private int keyCount;
+    private CompressedLongSet heapSet;
+    private long size;
+    private File spillFile;
+    private final List<long[]> runs = new ArrayList<long[]>();
+
+    private PrimaryKeySource() {
+    }
+
+    /**
+     * Returns a source holding given keys on heap.
+     *
+     * @param ids
+     * @return
+     */
+    public static PrimaryKeySource of(long[] ids) {
+        PrimaryKeySource ret = new PrimaryKeySource();
+        long[] sorted = ids == null ? new long[0] : ids.clone();
+        ret.keepOnHeap(sorted, sortUnique(sorted, sorted.length));
+        return ret;
+    }
+
+    /**
+     * Reads the keys of the first column of given result set.
+     *
+     * @param rs
+     * @param heapKeys  keys held on heap before spilling, at least 1024
+     * @param spillDir  directory of the spill file, the default temp directory if null
+     * @return
+     * @throws SQLException
+     */
+    public static PrimaryKeySource read(ResultSet rs, int heapKeys, File spillDir) throws SQLException {
+        PrimaryKeySource ret = new PrimaryKeySource();
+        int limit = Math.max(MIN_HEAP_KEYS, heapKeys);
+        // *** runs do not shrink with the budget, small runs mean many files to merge
+        int runKeys = Math.max(MIN_RUN_KEYS, limit);
+        ret.keys = new long[INITIAL_BUFFER_KEYS];
+        DataOutputStream out = null;
+        try {
+            while (rs.next()) {
+                if (ret.keyCount == ret.keys.length) {
+                    if (ret.keys.length < runKeys) {
+                        long[] grown = new long[(int) Math.min((long) runKeys, ret.keys.length * 2L)];
+                        System.arraycopy(ret.keys, 0, grown, 0, ret.keyCount);
+                        ret.keys = grown;
+                    }
+                    else {
+                        if (out == null) {
+                            out = ret.createSpillFile(spillDir);
+                        }
+                        ret.spill(out);
+                    }
+                }
+                ret.keys[ret.keyCount++] = rs.getLong(1);
+                ret.size++;
+            }
+            if (out == null && ret.keyCount > limit) {
+                out = ret.createSpillFile(spillDir);
+            }
+            if (out != null) {
+                ret.spill(out);
+                out.close();
+                out = null;
+                ret.keys = null;
+                ret.mergeRuns(spillDir);
+            }
+            else {
+                ret.keepOnHeap(ret.keys, sortUnique(ret.keys, ret.keyCount));
+            }
+            ret.keys = null;
+            ret.keyCount = 0;
+        } catch (IOException e) {
+            String msg = "Could not spill primary keys to " + ret.spillFile;
+            ret.close();
+            throw (SQLException) new SQLException(msg).initCause(e);
+        } catch (SQLException e) {
+            ret.close();
+            throw e;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // *** already failing
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Returns true if the first column of given result set holds whole numbers that fit
+     * a long, such as INTEGER, BIGINT or NUMBER without scale.
+     *
+     * @param md
+     * @return
+     * @throws SQLException
+     */
+    public static boolean isIntegerKey(ResultSetMetaData md) throws SQLException {
+        switch (md.getColumnType(1)) {
+        case Types.TINYINT:
+        case Types.SMALLINT:
+        case Types.INTEGER:
+        case Types.BIGINT:
+            return true;
+        case Types.NUMERIC:
+        case Types.DECIMAL:
+            return md.getScale(1) == 0 && md.getPrecision(1) > 0 && md.getPrecision(1) <= 18;
+        default:
+            return false;
+        }
+    }
+
+    private DataOutputStream createSpillFile(File spillDir) throws IOException {
+        spillFile = createTempFile(spillDir);
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spillFile), IO_BUFFER_BYTES));
+    }
+
+    private static File createTempFile(File spillDir) throws IOException {
+        File dir = spillDir != null && spillDir.isDirectory() ? spillDir : null;
+        File ret = File.createTempFile(SPILL_FILE_PREFIX, SPILL_FILE_EXT, dir);
+        ret.deleteOnExit();
+        return ret;
+    }
+
+    /**
+     * Merges the runs into a new spill file until at most MAX_MERGE_RUNS are left, so
+     * that reading never opens more than that many streams.
+     */
+    private void mergeRuns(File spillDir) throws IOException {
+        while (runs.size() > MAX_MERGE_RUNS) {
+            File merged = createTempFile(spillDir);
+            List<long[]> mergedRuns = new ArrayList<long[]>();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(merged), IO_BUFFER_BYTES));
+            try {
+                long offset = 0;
+                for (int from = 0; from < runs.size(); from += MAX_MERGE_RUNS) {
+                    RunMerger merger = new RunMerger(spillFile, runs, from,
+                            Math.min(runs.size(), from + MAX_MERGE_RUNS));
+                    long n = 0;
+                    try {
+                        while (merger.hasNext()) {
+                            out.writeLong(merger.next());
+                            n++;
+                        }
+                    } finally {
+                        merger.close();
+                    }
+                    mergedRuns.add(new long[] {offset, n});
+                    offset += n * 8;
+                }
+                out.close();
+                out = null;
+            } finally {
+                if (out != null) {
+                    try {
+                        out.close();
+                    } catch (IOException e) {
+                        // *** already failing
+                    }
+                    merged.delete();
+                }
+            }
+            spillFile.delete();
+            spillFile = merged;
+            runs.clear();
+            runs.addAll(mergedRuns);
+        }
+    }
+
+    /**
+     * Writes the buffer as a sorted run and empties it.
+     */
+    private void spill(DataOutputStream out) throws IOException {
+        int n = sortUnique(keys, keyCount);
+        long offset = 0;
+        if (runs.size() > 0) {
+            long[] last = runs.get(runs.size() - 1);
+            offset = last[0] + last[1] * 8;
+        }
+        for (int i = 0; i < n; i++) {
+            out.writeLong(keys[i]);
+        }
+        runs.add(new long[] {offset, n});
+        keyCount = 0;
+    }
+
+    private void keepOnHeap(long[] sorted, int n) {
+        heapSet = CompressedLongSet.fromSorted(sorted, n);
+        size = n;
+    }
+
+    /**
+     * Sorts the first <code>n</code> keys and removes duplicates.
+     *
+     * @return the number of unique keys
+     */
+    private static int sortUnique(long[] a, int n) {
+        Arrays.sort(a, 0, n);
+        int ret = 0;
+        for (int i = 0; i < n; i++) {
+            if (ret == 0 || a[i] != a[ret - 1]) {
+                a[ret++] = a[i];
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the number of keys read. Keys of spilled sources are made unique within
+     * runs only, a result set of primary keys has no duplicates to begin with.
+     *
+     * @return
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Returns the approximate heap bytes used by the keys kept on heap.
+     *
+     * @return
+     */
+    public long getHeapBytes() {
+        return heapSet == null ? 0 : heapSet.getMemoryBytes();
+    }
+
+    public boolean isSpilled() {
+        return spillFile != null;
+    }
+
+    /**
+     * Returns an iterator over the keys in ascending order, <code>chunkKeys</code> at a time.
+     * The iterator must be closed.
+     *
+     * @param chunkKeys
+     * @return
+     * @throws SQLException
+     */
+    public ChunkIterator iterator(int chunkKeys) throws SQLException {
+        return new ChunkIterator(Math.max(1, chunkKeys));
+    }
+
+    /**
+     * Releases the keys and deletes the spill file.
+     */
+    public void close() {
+        keys = null;
+        keyCount = 0;
+        heapSet = null;
+        if (spillFile != null) {
+            spillFile.delete();
+            spillFile = null;
+        }
+        runs.clear();
+    }
+
+    public String toString() {
+        return size + " primary keys" + (spillFile == null ? "" : " spilled to " + spillFile);
+    }
+
+    /**
+     * Ascending chunks of the keys of a source.
+     */
+    public class ChunkIterator {
+        private final int chunkKeys;
+        private final CompressedLongSet.Cursor heapCursor;
+        private final RunMerger merger;
+        private boolean hasLast;
+        private long last;
+
+        ChunkIterator(int chunkKeys) throws SQLException {
+            this.chunkKeys = chunkKeys;
+            heapCursor = heapSet == null ? null : heapSet.cursor();
+            try {
+                merger = spillFile == null ? null : new RunMerger(spillFile, runs, 0, runs.size());
+            } catch (IOException e) {
+                throw (SQLException) new SQLException("Could not read primary keys from "
+                        + spillFile).initCause(e);
+            }
+        }
+
+        /**
+         * Returns the next chunk of at most <code>chunkKeys</code> unique keys, null at the end.
+         *
+         * @return
+         * @throws SQLException
+         */
+        public long[] next() throws SQLException {
+            long[] ret = new long[chunkKeys];
+            int n;
+            if (merger == null) {
+                n = heapCursor == null ? 0 : heapCursor.next(ret, 0, chunkKeys);
+            }
+            else {
+                n = merge(ret);
+            }
+            if (n == 0) {
+                return null;
+            }
+            if (n < chunkKeys) {
+                long[] tail = new long[n];
+                System.arraycopy(ret, 0, tail, 0, n);
+                return tail;
+            }
+            return ret;
+        }
+
+        /**
+         * Fills given array with the next keys of the spilled runs.
+         *
+         * @return the number of keys
+         */
+        private int merge(long[] dest) throws SQLException {
+            int n = 0;
+            try {
+                while (n < dest.length && merger.hasNext()) {
+                    long key = merger.next();
+                    if (!hasLast || key != last) {
+                        dest[n++] = key;
+                        last = key;
+                        hasLast = true;
+                    }
+                }
+            } catch (EOFException e) {
+                throw (SQLException) new SQLException("Spill file " + spillFile + " is truncated").initCause(e);
+            } catch (IOException e) {
+                throw (SQLException) new SQLException("Could not read primary keys from "
+                        + spillFile).initCause(e);
+            }
+            return n;
+        }
+
+        public void close() {
+            if (merger != null) {
+                merger.close();
+            }
+        }
+    }
+
+    /**
+     * Merges runs of a spill file in ascending order. The runs are kept in a binary
+     * heap ordered by their next key.
+     */
+    private static class RunMerger {
+        private final DataInputStream[] inputs;
+        private final long[] remaining;
+        private final long[] heads;
+        private final int[] heap;
+        private int heapSize;
+
+        RunMerger(File file, List<long[]> runs, int from, int to) throws IOException {
+            int n = to - from;
+            inputs = new DataInputStream[n];
+            remaining = new long[n];
+            heads = new long[n];
+            heap = new int[n];
+            try {
+                for (int i = 0; i < n; i++) {
+                    long[] run = runs.get(from + i);
+                    FileInputStream in = new FileInputStream(file);
+                    in.getChannel().position(run[0]);
+                    inputs[i] = new DataInputStream(new BufferedInputStream(in,
+                            Math.max(8192, IO_BUFFER_BYTES / Math.max(1, n))));
+                    remaining[i] = run[1];
+                    if (advance(i)) {
+                        heap[heapSize++] = i;
+                    }
+                }
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+            for (int i = heapSize / 2 - 1; i >= 0; i--) {
+                siftDown(i);
+            }
+        }
+
+        boolean hasNext() {
+            return heapSize > 0;
+        }
+
+        long next() throws IOException {
+            int run = heap[0];
+            long ret = heads[run];
+            if (!advance(run)) {
+                heap[0] = heap[--heapSize];
+            }
+            siftDown(0);
+            return ret;
+        }
+
+        private boolean advance(int run) throws IOException {
+            if (remaining[run] == 0) {
+                return false;
+            }
+            heads[run] = inputs[run].readLong();
+            remaining[run]--;
+            return true;
+        }
+
+        private void siftDown(int i) {
+            while (true) {
+                int min = i;
+                int left = 2 * i + 1;
+                int right = left + 1;
+                if (left < heapSize && heads[heap[left]] < heads[heap[min]]) {
+                    min = left;
+                }
+                if (right < heapSize && heads[heap[right]] < heads[heap[min]]) {
+                    min = right;
+                }
+                if (min == i) {
+                    return;
+                }
+                int t = heap[i];
+                heap[i] = heap[min];
+                heap[min] = t;
+                i = min;
+            }
+        }
+
+        void close() {
+            for (int i = 0; i < inputs.length; i++) {
+                if (inputs[i] != null) {
+                    try {
+                        inputs[i].close();
+                    } catch (IOException e) {
+                        // *** nothing to do
+                    }
+                    inputs[i] = null;
+                }
+            }
+        }
+    }
+}
@@ -37,14 +37,19 @@ import com.workbrain.util.DateHelper;
 import com.workbrain.util.LongList;
 import com.workbrain.util.StringUtil;
 
+import java.math.BigDecimal;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
+import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Model class for WBArchive which manages all policy related data.
@@ -53,6 +58,77 @@ public class PurgeData {
 
     private static org.apache.log4j.Logger logger = org.apache.log4j.Logger.getLogger(PurgeData.class);
 
+    /** policy param for the number of threads processing independent policy details, ALL_OR_NOTHING policies run serially */
+    public static final String PARAM_PARALLEL_DETAILS = "PARALLEL_DETAILS";
+
+    /** policy param for the number of workers processing employee batches of EVERY_X_EMPLOYEE policies */
+    public static final String PARAM_PARALLEL_EMP_BATCHES = "PARALLEL_EMP_BATCHES";
+
+    /**
+     * policy param for the number of day windows of EVERY_X_DAYS policies processed concurrently,
+     * only used if every detail compares its dates with &lt; or &lt;= #AGINGDATE# and has no NOT
+     */
+    public static final String PARAM_PARALLEL_DAY_WINDOWS = "PARALLEL_DAY_WINDOWS";
+
+    /** policy param for the primary key count above which keys are staged to WBARCH_KEY_STAGE, 0 disables */
+    public static final String PARAM_KEY_STAGE_THRESHOLD = "KEY_STAGE_THRESHOLD";
+
+    /** policy param, Y to archive with DataLoader XML files instead of the streaming copy in DB archive mode */
+    public static final String PARAM_DATALOADER_COPY = "DATALOADER_COPY";
+
+    /** policy param for the fetch size of the streaming copy */
+    public static final String PARAM_COPY_FETCH_SIZE = "COPY_FETCH_SIZE";
+
+    /** policy param for the insert batch size of the streaming copy */
+    public static final String PARAM_COPY_BATCH_SIZE = "COPY_BATCH_SIZE";
+
+    /** policy param for the insert batches queued between reader and writer of the streaming copy, 0 disables the writer thread */
+    public static final String PARAM_COPY_QUEUE_BATCHES = "COPY_QUEUE_BATCHES";
+
+    /** policy param, Y to stage DB archive mode copies through a binary spool file in the temp file path */
+    public static final String PARAM_BINARY_SPOOL = "BINARY_SPOOL";
+
+    /** policy param, Y to deflate the row blocks of binary spool files */
+    public static final String PARAM_SPOOL_COMPRESS = "SPOOL_COMPRESS";
+
+    /** policy param, N to batch EVERY_X_RECORDS policies with row limits instead of primary key ranges */
+    public static final String PARAM_KEYSET_RECORDS = "KEYSET_RECORDS";
+
+    /** policy param, Y to count the records of EVERY_X_RECORDS details up front when batching by key ranges */
+    public static final String PARAM_COUNT_RECORDS = "COUNT_RECORDS";
+
+    /** policy param for the primary keys a transaction keeps on heap before spilling them to the temp file path */
+    public static final String PARAM_PK_HEAP_KEYS = "PK_HEAP_KEYS";
+
+    /** policy param, Y to resolve details to a primary key snapshot driving both archive and purge */
+    public static final String PARAM_SNAPSHOT_KEYS = "SNAPSHOT_KEYS";
+
+    /** policy param, Y to copy in schema archive mode with the APPEND hint on Oracle and TABLOCK on SQL Server */
+    public static final String PARAM_DIRECT_PATH = "DIRECT_PATH";
+
+    /**
+     * policy param, Y to activate NOT LOGGED INITIALLY for DB2 archive tables created with that attribute,
+     * EVERY_POLICY_DETAIL policies only. A table whose insert fails has to be recreated
+     */
+    public static final String PARAM_DB2_NOT_LOGGED = "DB2_NOT_LOGGED";
+
+    /**
+     * policy param, comma separated tables whose partitions older than the aging date are moved to the
+     * archive schema whole, before the detail of the table is archived. Only used for details whose
+     * where clause is <code>partition key &lt; #AGINGDATE#</code> (or &lt;=) and EVERY_POLICY_DETAIL
+     * policies, the moves commit
+     */
+    public static final String PARAM_PARTITION_EXCHANGE = "PARTITION_EXCHANGE";
+
+    /** policy param, parallel degree of schema mode archive and purge statements, e.g. 8,WORK_DETAIL=16, ignored for ALL_OR_NOTHING */
+    public static final String PARAM_PARALLEL_DML = "PARALLEL_DML";
+
+    /** policy param, rows per statement to purge where clauses in a loop of bounded deletes, 0 for one delete */
+    public static final String PARAM_DELETE_BATCH_ROWS = "DELETE_BATCH_ROWS";
+
+    /** policy param, Y to commit every bounded delete of purge only and archive purge policies not ALL_OR_NOTHING */
+    public static final String PARAM_DELETE_BATCH_COMMIT = "DELETE_BATCH_COMMIT";
+
     private WBArchPolicyData archivePolicyData;
     private DBConnection connCore;
     private DBConnection connArch;
@@ -61,6 +137,21 @@ public class PurgeData {
     private List<WBArchPolParamData> archivePolicyParams;
     private Date archiveRunDate;
     private Date archiveAgingDate;
+    private PolicySnapshot policySnapshot;
+    private SchemaMetadataCache schemaMetadataCache;
+    private final Map<String, WhereClauseTemplate> whereClauseTemplates = new ConcurrentHashMap<String, WhereClauseTemplate>();
+    private final Map<WBArchPolDetData, BoundWhereClause> boundWhereClauses = Collections.synchronizedMap(
+        new IdentityHashMap<WBArchPolDetData, BoundWhereClause>());
+    private final WhereClauseTemplate.ReferenceResolver referenceResolver = new WhereClauseTemplate.ReferenceResolver() {
+        public String getDetailWhereClause(String tableName, int priority) {
+            WBArchPolDetData det = getArchivePolicyDetailOriginal(tableName, priority);
+            return det == null ? null : det.getWbapdWhereClause();
+        }
+
+        public String getParamValueForSql(String paramName) throws Exception {
+            return getArchivePolicyParamResolvedForSql(paramName);
+        }
+    };
 
     public PurgeData(WBArchiveContext context,
                      WBArchPolicyData data) {
@@ -80,12 +171,65 @@ public class PurgeData {
      * @throws WBArchiveException if the policy and its details could not be loaded
      */
     public void loadPolicy() throws WBArchiveException {
-    	this.archivePolicyParams = WBArchPolicyAccess.loadArchivePolicyParam(connCore,
-                archivePolicyData.getWbapId());
-        this.archivePolDetailsOriginal = WBArchPolicyAccess.loadArchivePolicyDetail(connCore,
-                archivePolicyData.getWbapId());
-        this.archivePolDetails = resolveOriginalPolicyDetails(archivePolDetailsOriginal ,
-            archiveAgingDate);
+        loadPolicy(PolicySnapshotCache.load(connCore, archivePolicyData));
+    }
+
+    /**
+     * Takes the policy params and details from given snapshot. Details are resolved
+     * for the aging date of this instance once per snapshot.
+     *
+     * @param snapshot
+     * @throws WBArchiveException if the details could not be resolved
+     */
+    public void loadPolicy(PolicySnapshot snapshot) throws WBArchiveException {
+        this.policySnapshot = snapshot;
+        this.whereClauseTemplates.clear();
+        this.boundWhereClauses.clear();
+        this.archivePolicyParams = snapshot.getArchivePolicyParams();
+        this.archivePolDetailsOriginal = snapshot.getArchivePolicyDetailsOriginal();
+        List<WBArchPolDetData> resolved = snapshot.getResolvedDetails(archiveAgingDate);
+        if (resolved == null) {
+            resolved = snapshot.putResolvedDetails(archiveAgingDate,
+                resolveOriginalPolicyDetails(archivePolDetailsOriginal , archiveAgingDate), boundWhereClauses);
+        }
+        this.archivePolDetails = resolved;
+    }
+
+    /**
+     * Returns the snapshot the policy was loaded from.
+     *
+     * @return
+     */
+    public PolicySnapshot getPolicySnapshot() {
+        return policySnapshot;
+    }
+
+    /**
+     * Sets the cache primary key columns are taken from.
+     *
+     * @param v
+     */
+    public void setSchemaMetadataCache(SchemaMetadataCache v) {
+        schemaMetadataCache = v;
+    }
+
+    /**
+     * Returns the primary key column for given table, taken from the schema metadata
+     * cache if one is set and looked up once per policy snapshot otherwise.
+     *
+     * @param conn
+     * @param tableName
+     * @return
+     * @throws SQLException
+     */
+    public String getPrimaryKeyColumn(DBConnection conn, String tableName) throws SQLException {
+        if (schemaMetadataCache != null) {
+            return schemaMetadataCache.getPrimaryKeyColumn(conn, tableName);
+        }
+        if (policySnapshot != null) {
+            return policySnapshot.getPrimaryKeyColumn(conn, tableName);
+        }
+        return SchemaHelper.getPrimaryKeyColumnForTable(conn, tableName);
     }
     
     /**
@@ -131,10 +275,22 @@ public class PurgeData {
      * @return ArchivePolicyDayTokenizer
      */
     public ArchivePolicyDayTokenizer getArchivePolicyDayTokenizer(){
+        return getArchivePolicyDayTokenizer(false);
+    }
+
+    /**
+     * Returns ArchivePolicyDayTokenizer for EVERY_X_DAYS archive policies
+     * based on commit params.
+     *
+     * @param disjointWindows  if true, each batch only selects the rows of its own day window
+     *                         so that batches can be processed concurrently
+     * @return ArchivePolicyDayTokenizer
+     */
+    public ArchivePolicyDayTokenizer getArchivePolicyDayTokenizer(boolean disjointWindows){
         Date startDate = archivePolicyData.retrieveCommitParamValueAsDate(
             WBArchPolicyData.COMMIT_PARAM_START_DATE , "MM/dd/yyyy");
         int days = archivePolicyData.retrieveCommitParamValueInt(WBArchPolicyData.COMMIT_PARAM_BATCH_DAYS);
-        return new ArchivePolicyDayTokenizer(startDate , days , archiveAgingDate);
+        return new ArchivePolicyDayTokenizer(startDate , days , archiveAgingDate, disjointWindows);
     }
 
     /**
@@ -144,10 +300,34 @@ public class PurgeData {
      * @return ArchivePolicyDayTokenizer
      */
     public ArchivePolicyEmpIdTokenizer getArchivePolicyEmpIdTokenizer() throws SQLException {
+        return getArchivePolicyEmpIdTokenizer(null);
+    }
+
+    /**
+     * Returns ArchivePolicyEmpIdTokenizer for EVERY_X_EMPLOYEE archive policies
+     * based on commit params.
+     *
+     * @param resumeAfterEmpId  if not null, only employees with a greater id are batched
+     * @return ArchivePolicyEmpIdTokenizer
+     */
+    public ArchivePolicyEmpIdTokenizer getArchivePolicyEmpIdTokenizer(String resumeAfterEmpId) throws SQLException {
+        return getArchivePolicyEmpIdTokenizer(connArch, resumeAfterEmpId);
+    }
+
+    /**
+     * Returns ArchivePolicyEmpIdTokenizer for EVERY_X_EMPLOYEE archive policies
+     * based on commit params, selecting employees on given connection.
+     *
+     * @param conn  the core connection to archive, the archive connection to purge the archive
+     * @param resumeAfterEmpId  if not null, only employees with a greater id are batched
+     * @return ArchivePolicyEmpIdTokenizer
+     */
+    public ArchivePolicyEmpIdTokenizer getArchivePolicyEmpIdTokenizer(DBConnection conn, String resumeAfterEmpId)
+            throws SQLException {
         int btchSize = archivePolicyData.retrieveCommitParamValueInt(
             WBArchPolicyData.COMMIT_PARAM_EMP_BATCH_SIZE);
         int priority = archivePolicyData.retrieveCommitParamValueInt(WBArchPolicyData.COMMIT_PARAM_CONTROLLING_POLICY_PRIORITY);
-        return new ArchivePolicyEmpIdTokenizer(btchSize , priority , connArch);
+        return new ArchivePolicyEmpIdTokenizer(btchSize , priority , conn, resumeAfterEmpId);
     }
 
 
@@ -158,9 +338,24 @@ public class PurgeData {
      * @return ArchivePolicyRecordTokenizer
      */
     public ArchivePolicyRecordTokenizer getArchivePolicyRecordTokenizer(WBArchPolDetData det) throws SQLException {
+        return getArchivePolicyRecordTokenizer(connArch, det);
+    }
+
+    /**
+     * Returns ArchivePolicyRecordTokenizer for EVERY_X_RECORDS archive policies
+     * based on commit params, reading the records on given connection.
+     *
+     * @param conn  the core connection to archive, the archive connection to purge the archive
+     * @param det
+     * @return ArchivePolicyRecordTokenizer
+     */
+    public ArchivePolicyRecordTokenizer getArchivePolicyRecordTokenizer(DBConnection conn, WBArchPolDetData det)
+            throws SQLException {
         int btchRecCnt = archivePolicyData.retrieveCommitParamValueInt(
             WBArchPolicyData.COMMIT_PARAM_BATCH_RECORD_COUNT);
-        return new ArchivePolicyRecordTokenizer(det , btchRecCnt , connArch);
+        return new ArchivePolicyRecordTokenizer(det , btchRecCnt , conn,
+            getArchivePolicyParamBoolean(PARAM_KEYSET_RECORDS, true),
+            getArchivePolicyParamBoolean(PARAM_COUNT_RECORDS, false));
     }
 
     /**
@@ -183,6 +378,43 @@ public class PurgeData {
         return ret;
     }
 
+    /**
+     * Returns the policy parameter value for given parameter name as int.
+     *
+     * @param paramName
+     * @param defaultValue returned if the parameter is not defined or not a number
+     * @return
+     */
+    public int getArchivePolicyParamInt(String paramName, int defaultValue) {
+        WBArchPolParamData param = getArchivePolicyParam(paramName);
+        if (param == null || StringUtil.isEmpty(param.getWbappValue())) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(param.getWbappValue().trim());
+        } catch (NumberFormatException e) {
+            logger.error("Policy parameter : " + paramName + " is not a number : " + param.getWbappValue());
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Returns the policy parameter value for given parameter name as boolean,
+     * true for Y or TRUE.
+     *
+     * @param paramName
+     * @param defaultValue returned if the parameter is not defined
+     * @return
+     */
+    public boolean getArchivePolicyParamBoolean(String paramName, boolean defaultValue) {
+        WBArchPolParamData param = getArchivePolicyParam(paramName);
+        if (param == null || StringUtil.isEmpty(param.getWbappValue())) {
+            return defaultValue;
+        }
+        String val = param.getWbappValue().trim();
+        return "Y".equalsIgnoreCase(val) || "TRUE".equalsIgnoreCase(val);
+    }
+
     /**
      * Returns the policy parameter value for given parameter name to be used in sql.
      *
@@ -286,7 +518,8 @@ public class PurgeData {
     }
 
     /**
-     * Resolves original policy details for given aging date.
+     * Resolves original policy details for given aging date. Given details are
+     * not modified, resolved duplicates are returned.
      *
      * @param arcDetails
      * @param agingDate
@@ -295,18 +528,19 @@ public class PurgeData {
      */
     public List<WBArchPolDetData> resolveOriginalPolicyDetails(List<WBArchPolDetData> arcDetails , Date agingDate)
             throws WBArchiveException{
-        List<WBArchPolDetData> resolved = new ArrayList<WBArchPolDetData>();
+        List<WBArchPolDetData> resolved = new ArrayList<WBArchPolDetData>(arcDetails.size());
+        Timestamp agingDateValue = new Timestamp(agingDate.getTime());
+        String agingDatePlaceholder = getAgingDatePlaceholder();
+        String agingDateEncoded = connCore.encodeTimestamp(agingDate);
+        String currentDatetime = connCore.encodeCurrentTimestamp();
 
         for (int i=0; i < arcDetails.size() ; i++) {
-            WBArchPolDetData item = arcDetails.get(i);
-            String resolvedWhere = resolvePolicyDetailForWHERE(item.getWbapdWhereClause() , resolved);
-            resolvedWhere = resolvePolicyDetailForPARAM(resolvedWhere);
-            resolvedWhere = resolvePolicyDetailWhereForAGINGDATE(resolvedWhere ,
-                agingDate);
-            resolvedWhere = resolvePolicyDetailWhereForCURRENTDATETIME(resolvedWhere);
-
-            log(item.getWbapdWhereClause() + " <___RESOLVED_TO___> " + resolvedWhere);
-            item.assignWbapdWhereClauseResolved(resolvedWhere);
+            WBArchPolDetData item = arcDetails.get(i).duplicate();
+            BoundWhereClause bound = getWhereClauseTemplate(item.getWbapdWhereClause())
+                .bind(agingDateValue, agingDatePlaceholder, agingDateEncoded, currentDatetime);
+            assignBoundWhereClause(item, bound);
+
+            log(item.getWbapdWhereClause() + " <___RESOLVED_TO___> " + bound.getLiteralSql());
             resolved.add(item);
         }
         return resolved;
@@ -316,117 +550,136 @@ public class PurgeData {
      * Resolves already resolved policy details for given empIds.
      *
      * @param arcDetails
-     * @param agingDate
+     * @param empIds
      * @return
      * @throws WBArchiveException
      */
     public List<WBArchPolDetData> resolvePolicyDetails(List<WBArchPolDetData> arcDetails , List<String> empIds)
             throws WBArchiveException{
-        List<WBArchPolDetData> resolved = new ArrayList<WBArchPolDetData>();
+        List<WBArchPolDetData> resolved = new ArrayList<WBArchPolDetData>(arcDetails.size());
 
         for (int i=0; i < arcDetails.size() ; i++) {
             WBArchPolDetData item = arcDetails.get(i);
-            String where = item.retrieveWbapdWhereClauseResolved();
-            if (where.indexOf(WBArchPolDetData.WHERE_EMP_ID_SELECTOR) < 0) {
+            BoundWhereClause bound = getBoundWhereClause(item);
+            if (!bound.hasEmpIdSlot()) {
                 resolved.add(item);
                 continue;
             }
 
-            String resolvedWhere = resolvePolicyDetailWhereForEMPIDSELECTOR(where , empIds);
-
-            log(item.getWbapdWhereClause() + " <___RESOLVED_TO___> " + resolvedWhere);
+            bound = bound.withEmpIds(empIds);
             WBArchPolDetData newItem = item.duplicate();
-            newItem.assignWbapdWhereClauseResolved(resolvedWhere);
+            assignBoundWhereClause(newItem, bound);
+
+            log(item.getWbapdWhereClause() + " <___RESOLVED_TO___> " + bound.getLiteralSql());
             resolved.add(newItem);
         }
         return resolved;
     }
 
     /**
-     * Resolves given where clause.
+     * Returns the compiled template for given where clause, compiling it on first use.
+     * Templates expand policy parameters and are therefore kept for this instance only.
      *
      * @param whereClause
-     * @param alreadyResolved  list of WBArchPolDetData objects which might have been already resolved
-     *                         and should be looked at for referring WHERES. If null ignore
      * @return
      * @throws WBArchiveException
      */
-    public String resolvePolicyDetailForWHERE(String whereClause ,
-                                              List<WBArchPolDetData> alreadyResolved) throws WBArchiveException{
-        String finWhereClause = whereClause;
-        try {
-            /*  parsing #WHERE.tableName.[priority]# */
-            int indWhere = finWhereClause.indexOf(WBArchPolDetData.WHERE_WHERE_PREFIX);
-            while (indWhere > -1) {
-                int indEnd = finWhereClause.indexOf(WBArchPolDetData.WHERE_MARKER, indWhere + 1);
-                String tabName = finWhereClause.substring(
-                    indWhere + WBArchPolDetData.WHERE_WHERE_PREFIX.length(),
-                    indEnd);
-                int indPriority = tabName.indexOf(".");
-                int priority = -1;
-                if (indPriority > -1) {
-                    tabName = tabName.substring(0, indPriority);
-                    priority = Integer.parseInt(tabName.substring(indPriority + 1));
-                }
-                /* first check already resolved */
-                WBArchPolDetData whereClauseThisTable = getArchivePolicyDetail(
-                    alreadyResolved , tabName , priority);
-                /* if not in already resolved, look at the original */
-                if (whereClauseThisTable == null) {
-                    whereClauseThisTable = getArchivePolicyDetailOriginal(tabName, priority);
-                }
-                if (whereClauseThisTable != null) {
-                    finWhereClause = StringUtil.searchReplace(finWhereClause,
-                        WBArchPolDetData.WHERE_WHERE_PREFIX + tabName + WBArchPolDetData.WHERE_MARKER,
-                        whereClauseThisTable.getWbapdWhereClause());
-                } else {
-                    throw new WBArchiveException("Table : " + tabName
-                        + " is referred in an archive detail"
-                        + " with #WHERE. syntax but does not exist in any archive detail definition");
-                }
-                indWhere = finWhereClause.indexOf(WBArchPolDetData.WHERE_WHERE_PREFIX);
+    public WhereClauseTemplate getWhereClauseTemplate(String whereClause) throws WBArchiveException {
+        String key = whereClause == null ? "" : whereClause;
+        WhereClauseTemplate ret = whereClauseTemplates.get(key);
+        if (ret == null) {
+            try {
+                ret = WhereClauseTemplate.compile(whereClause, referenceResolver);
+            } catch (WBArchiveException e) {
+                logger.error("error occurred trying to resolve policy detail for where clause", e);
+                throw e;
             }
-        } catch (Exception e) {
-        	logger.error("error occurred trying to resolve policy detail for where clause", e);
-            throw new WBArchiveException ("Error in parsing Where clause for : " + whereClause, e);
+            whereClauseTemplates.put(key, ret);
         }
-        return finWhereClause;
+        return ret;
     }
 
     /**
-     * Resolves given where clause.
+     * Returns the bound where clause of given resolved detail. Details resolved through
+     * this instance or its snapshot carry one, any other detail is logged and run with
+     * the literals of its resolved where clause.
+     *
+     * @param det
+     * @return
+     */
+    public BoundWhereClause getBoundWhereClause(WBArchPolDetData det) {
+        BoundWhereClause ret = boundWhereClauses.get(det);
+        if (ret == null && policySnapshot != null) {
+            ret = policySnapshot.getBoundWhereClause(det);
+        }
+        if (ret != null) {
+            return ret;
+        }
+        logger.warn("No bound where clause for detail of table " + det.getWbapdTableName()
+                    + ", its resolved where clause is run with literals");
+        return getBoundWhereClause(det.retrieveWbapdWhereClauseResolved());
+    }
+
+    /**
+     * Returns given resolved where clause without bind parameters, its literals are run
+     * as they are. Details carry their bound form, see <code>getBoundWhereClause(WBArchPolDetData)</code>.
+     *
+     * @param resolvedWhere
+     * @return
+     */
+    public BoundWhereClause getBoundWhereClause(String resolvedWhere) {
+        try {
+            return WhereClauseTemplate.compile(resolvedWhere, referenceResolver).bind(null, null, null, null);
+        } catch (WBArchiveException e) {
+            logger.error("Could not parse resolved where clause, it will not be bound : " + resolvedWhere, e);
+            return BoundWhereClause.literal(resolvedWhere);
+        }
+    }
+
+    /**
+     * Forgets the bound where clauses of given details once they have been processed.
+     * Details held by the snapshot keep theirs.
+     *
+     * @param details
+     */
+    public void releaseBoundWhereClauses(List<WBArchPolDetData> details) {
+        for (int i = 0; i < details.size(); i++) {
+            boundWhereClauses.remove(details.get(i));
+        }
+    }
+
+    private void assignBoundWhereClause(WBArchPolDetData det, BoundWhereClause where) {
+        boundWhereClauses.put(det, where);
+        det.assignWbapdWhereClauseResolved(where.getLiteralSql());
+    }
+
+    private String getAgingDatePlaceholder() {
+        // *** a timestamp bound against an Oracle DATE column converts the column and loses its index
+        return connCore.getDBServer().getId() == DBServer.ORACLE_ID ? "CAST(? AS DATE)" : "?";
+    }
+
+    /**
+     * Resolves <code>#WHERE.#</code> references in given where clause.
+     *
+     * @param whereClause
+     * @param alreadyResolved  not used any more, references are looked up from the policy details
+     * @return
+     * @throws WBArchiveException
+     */
+    public String resolvePolicyDetailForWHERE(String whereClause ,
+                                              List<WBArchPolDetData> alreadyResolved) throws WBArchiveException{
+        return getWhereClauseTemplate(whereClause).fill(null, null, null);
+    }
+
+    /**
+     * Resolves <code>#PARAM.#</code> references in given where clause.
      *
      * @param whereClause
      * @return
      * @throws WBArchiveException
      */
     public String resolvePolicyDetailForPARAM(String whereClause) throws WBArchiveException{
-        String finWhereClause = whereClause;
-        try {
-            /*  parsing #PARAM.tableName.[priority]# */
-            int indWhere = finWhereClause.indexOf(WBArchPolDetData.WHERE_PARAM_PREFIX);
-            while (indWhere > -1) {
-                int indEnd = finWhereClause.indexOf(WBArchPolDetData.WHERE_MARKER, indWhere + 1);
-                String paramName = finWhereClause.substring(
-                    indWhere + WBArchPolDetData.WHERE_PARAM_PREFIX.length(),
-                    indEnd);
-                String paramVal = getArchivePolicyParamResolvedForSql(paramName);
-                if (paramVal != null) {
-                    finWhereClause = StringUtil.searchReplace(finWhereClause,
-                        WBArchPolDetData.WHERE_PARAM_PREFIX + paramName + WBArchPolDetData.WHERE_MARKER,
-                        paramVal);
-                }
-                else {
-                    throw new WBArchiveException("Parameter : " + paramName
-                        + " is not defined for the archive policy");
-                }
-                indWhere = finWhereClause.indexOf(WBArchPolDetData.WHERE_WHERE_PREFIX);
-            }
-        } catch (Exception e) {
-            logger.error("Error in parsing Where clause" , e);
-            throw new WBArchiveException ("Error in parsing Where clause for : " + whereClause);
-        }
-        return finWhereClause;
+        return getWhereClauseTemplate(whereClause).fill(null, null, null);
     }
 
     /**
@@ -462,40 +715,48 @@ public class PurgeData {
      * Resolves given statement for given employee ids.
      *
      * @param whereClause
-     * @param agingDate
+     * @param empIds
      * @return
      * @throws WBArchiveException
      */
     public String resolvePolicyDetailWhereForEMPIDSELECTOR(String whereClause , List<String> empIds)
             throws WBArchiveException{
-
-        String empIdCSV = StringUtil.createCSVForCharacter(empIds);
-        empIdCSV = StringUtil.searchReplace(empIdCSV , "'" ,"");
-
-        String repString = StringUtil.isEmpty(empIdCSV) ? "" : " emp_id in (" + empIdCSV + ")";
-        return StringUtil.searchReplace(whereClause ,
-            WBArchPolDetData.WHERE_EMP_ID_SELECTOR , repString);
-
+        return getBoundWhereClause(whereClause).withEmpIds(empIds).getLiteralSql();
     }
 
-
     /**
      * Tokenizer that will tokenize archive detail list for each
-     * given batch days
-     *
+     * given batch days.
+     * <p>
+     * By default each batch resolves the policy for the end date of its window,
+     * relying on earlier windows having been committed. With disjoint windows
+     * every batch is resolved as <code>(where for window end) AND CASE WHEN (where for
+     * window start) THEN 1 ELSE 0 END = 0</code>, so windows select disjoint rows and can be
+     * processed concurrently. A row for which the start predicate is unknown stays in
+     * the window. Windows only cover all rows if a row selected for an aging date is
+     * selected for every later one, see <code>WhereClauseTemplate.isAgingDateUpperBound</code>.
      */
     public class ArchivePolicyDayTokenizer {
         private List<WBArchPolDetData> details;
         private Date startDate;
         private Date endDate;
         private Date loopDate;
+        private Date windowStartDate;
         private int batchDays;
+        private boolean disjointWindows;
+        private int windowCount = 0;
 
         public ArchivePolicyDayTokenizer(Date startDate, int batchDays , Date endDate) {
+            this(startDate, batchDays, endDate, false);
+        }
+
+        public ArchivePolicyDayTokenizer(Date startDate, int batchDays , Date endDate,
+                                         boolean disjointWindows) {
             this.details = getArchivePolicyDetailsOriginal();
             this.startDate = startDate;
             this.endDate = endDate;
             this.batchDays = batchDays;
+            this.disjointWindows = disjointWindows;
             this.loopDate = new Date(DateHelper.truncateToDays(startDate).getTime());
         }
 
@@ -504,11 +765,29 @@ public class PurgeData {
         }
 
         public List<WBArchPolDetData> next() throws WBArchiveException {
+            // *** the first window has no lower bound, it takes everything before its end
+            this.windowStartDate = windowCount == 0 ? null : this.loopDate;
             this.loopDate = DateHelper.addDays(loopDate, this.batchDays);
             if (this.loopDate.compareTo(endDate) > 0) {
                 this.loopDate = endDate;
             }
+            windowCount++;
             List<WBArchPolDetData> thisBatchDetails = resolveOriginalPolicyDetails(this.details, this.loopDate);
+            if (disjointWindows && windowStartDate != null) {
+                List<WBArchPolDetData> before = resolveOriginalPolicyDetails(this.details, windowStartDate);
+                for (int i = 0; i < thisBatchDetails.size(); i++) {
+                    WBArchPolDetData item = thisBatchDetails.get(i);
+                    BoundWhereClause window = new BoundWhereClause.Builder()
+                        .appendSql("(")
+                        .append(getBoundWhereClause(item))
+                        .appendSql(") AND CASE WHEN (")
+                        .append(getBoundWhereClause(before.get(i)))
+                        .appendSql(") THEN 1 ELSE 0 END = 0")
+                        .build();
+                    assignBoundWhereClause(item, window);
+                }
+                releaseBoundWhereClauses(before);
+            }
             return thisBatchDetails;
         }
 
@@ -516,6 +795,28 @@ public class PurgeData {
             return this.loopDate;
         }
 
+        /**
+         * Skips the windows ending at or before given date, they have been committed
+         * by an earlier run. The next window takes everything before its end.
+         *
+         * @param date
+         */
+        public void resumeAfter(Date date) {
+            if (date == null || !date.after(this.loopDate)) {
+                return;
+            }
+            this.loopDate = date.after(endDate) ? endDate : date;
+        }
+
+        /**
+         * Returns the start date of the current window, null for the first window.
+         *
+         * @return
+         */
+        public Date getCurrentWindowStartDate() {
+            return this.windowStartDate;
+        }
+
     }
 
     /**
@@ -535,23 +836,37 @@ public class PurgeData {
         public ArchivePolicyEmpIdTokenizer(int empBatchSize ,
                                            int priorityNumber ,
                                            DBConnection conn) throws SQLException{
-            log ("ArchivePolicyEmpIdTokenizer empBatchSize = " + empBatchSize + " priorityNumber = " + priorityNumber);
+            this(empBatchSize, priorityNumber, conn, null);
+        }
+
+        public ArchivePolicyEmpIdTokenizer(int empBatchSize ,
+                                           int priorityNumber ,
+                                           DBConnection conn,
+                                           String resumeAfterEmpId) throws SQLException{
+            log ("ArchivePolicyEmpIdTokenizer empBatchSize = " + empBatchSize + " priorityNumber = " + priorityNumber
+                 + (resumeAfterEmpId == null ? "" : " resumeAfterEmpId = " + resumeAfterEmpId));
 
             WBArchPolDetData det = getArchivePolicyDetail( priorityNumber);
-            Statement st = null;
+            PreparedStatement st = null;
             ResultSet rs = null;
             try {
-                String sql = det.retrieveWbapdWhereClauseResolved();
-                if (sql.indexOf(WBArchPolDetData.WHERE_EMP_ID_SELECTOR) < 0) {
+                BoundWhereClause where = getBoundWhereClause(det);
+                if (!where.hasEmpIdSlot()) {
                     throw new RuntimeException ("Controlling sql does not have "
                                                 + WBArchPolDetData.WHERE_EMP_ID_SELECTOR + " keyword");
                 }
-                sql = StringUtil.searchReplace(sql , WBArchPolDetData.WHERE_EMP_ID_SELECTOR , " 1=1 ");
+                where = where.withEmpIdSelector(" 1=1 ");
                 String finalSql = "SELECT distinct (emp_id) FROM " + det.getWbapdTableName()
-                    + " WHERE " + sql + " ORDER BY emp_id";
+                    + " WHERE " + where.getSql()
+                    + (resumeAfterEmpId == null ? "" : " AND emp_id > ?")
+                    + " ORDER BY emp_id";
                 log ("Controlling sql = " + finalSql);
-                st = conn.createStatement(); //NOPMD
-                rs = st.executeQuery(finalSql);
+                st = conn.prepareStatement(finalSql);
+                int ind = where.bind(st, 1);
+                if (resumeAfterEmpId != null) {
+                    st.setLong(ind, Long.parseLong(resumeAfterEmpId.trim()));
+                }
+                rs = st.executeQuery();
                 while (rs.next()) {
                     String empId = rs.getString(1);
                     empIds.add(empId);
@@ -597,111 +912,288 @@ public class PurgeData {
         public int getCurrentBatchSize() {
             return this.currentBatchSize;
         }
+
+        /**
+         * Returns the greatest employee id of the current batch, employee ids are batched in order.
+         *
+         * @return
+         */
+        public String getCurrentLastEmpId() {
+            return thisBatchEmpIds == null || thisBatchEmpIds.size() == 0
+                ? null : thisBatchEmpIds.get(thisBatchEmpIds.size() - 1);
+        }
     }
 
     /**
      * Tokenizer that will produce sqls for given batch size.
-     *
+     * <p>
+     * If the table has a single column primary key, batches are key ranges: each
+     * batch looks up the key ending the next <code>batchRecordCount</code> rows after
+     * the last key of the previous batch and selects <code>pk &gt; last AND pk &lt;= end</code>.
+     * A batch query only reads the keys of its own batch through the primary key
+     * index, and records are only counted up front if asked for. Otherwise every
+     * batch repeats the where clause with a row limit and relies on the previous
+     * batches having been purged.
      */
     public class ArchivePolicyRecordTokenizer {
         private int currentCount = 0;
         private int allRecordCount = 0;
         private int batchRecordCount = 0;
         private WBArchPolDetData det;
+        private BoundWhereClause where;
         private DBConnection conn;
         private String pkCol;
+        private boolean keyset;
+        private Object lastKey;
+        private Object nextEndKey;
+        private boolean nextEndKeyLoaded;
 
         public ArchivePolicyRecordTokenizer(WBArchPolDetData det,
                                             int batchRecordCount ,
                                             DBConnection conn) throws SQLException{
+            this(det, batchRecordCount, conn, false, true);
+        }
+
+        /**
+         * @param det
+         * @param batchRecordCount
+         * @param conn
+         * @param keyset        true to batch by primary key ranges if the table has a single column key
+         * @param countRecords  true to count records up front, always done without key ranges
+         * @throws SQLException
+         */
+        public ArchivePolicyRecordTokenizer(WBArchPolDetData det,
+                                            int batchRecordCount ,
+                                            DBConnection conn,
+                                            boolean keyset,
+                                            boolean countRecords) throws SQLException{
             log ("ArchivePolicyRecordTokenizer recordCount = " + batchRecordCount);
             this.batchRecordCount = batchRecordCount;
             this.det = det;
             this.conn = conn;
 
-            String sql = det.retrieveWbapdWhereClauseResolved();
-           	allRecordCount = getNumberOfRecords(sql);
-            log("allRecordCount = " + allRecordCount);
+            this.where = getBoundWhereClause(det);
+            if (keyset) {
+                pkCol = getPrimaryKeyColumn(conn , det.getWbapdTableName());
+                this.keyset = !StringUtil.isEmpty(pkCol) && pkCol.indexOf(',') < 0;
+                if (!this.keyset) {
+                    log("No single column primary key for " + det.getWbapdTableName() + ", batching with row limits");
+                }
+            }
+            if (!this.keyset || countRecords) {
+                allRecordCount = getNumberOfRecords(where);
+                log("allRecordCount = " + allRecordCount);
+            }
             // *** find pkcol for DB2 and MSSQL
-            if (conn.getDBServer().getId() == DBServer.DB2_ID
-               || conn.getDBServer().getId() == DBServer.MSSQL_ID) {
-                pkCol = SchemaHelper.getPrimaryKeyColumnForTable(conn ,
+            if (!this.keyset && (conn.getDBServer().getId() == DBServer.DB2_ID
+               || conn.getDBServer().getId() == DBServer.MSSQL_ID)) {
+                pkCol = getPrimaryKeyColumn(conn ,
                     det.getWbapdTableName());
             }
         }
 
-        public boolean hasNext() {
+        public boolean hasNext() throws SQLException {
+            if (keyset) {
+                return getNextEndKey() != null;
+            }
             return currentCount  < allRecordCount;
         }
 
         /**
-         * Return where clauses for row limit.
+         * Return where clauses for row limit, with their literals.
          *
          * @return
          * @throws WBArchiveException
          */
         public String next() throws WBArchiveException, SQLException {
-            StringBuilder sb = new StringBuilder(400);
+            return nextWhere().getLiteralSql();
+        }
+
+        /**
+         * Returns a detail for the table of this tokenizer selecting the next batch,
+         * carrying the bound form of its where clause.
+         *
+         * @return
+         * @throws WBArchiveException
+         * @throws SQLException
+         */
+        public WBArchPolDetData nextDetail() throws WBArchiveException, SQLException {
+            BoundWhereClause batchWhere = nextWhere();
+            WBArchPolDetData ret = new WBArchPolDetData();
+            ret.setWbapdTableName(det.getWbapdTableName());
+            ret.setWbapdWhereClause(batchWhere.getLiteralSql());
+            assignBoundWhereClause(ret, batchWhere);
+            return ret;
+        }
+
+        private BoundWhereClause nextWhere() throws WBArchiveException, SQLException {
+            if (keyset) {
+                return nextKeyRange();
+            }
+            BoundWhereClause.Builder sb = new BoundWhereClause.Builder();
             if (conn.getDBServer().getId() == DBServer.ORACLE_ID ) {
-                sb.append(det.retrieveWbapdWhereClauseResolved());
-                sb.append(" AND ").append(conn.encodeRowLimit(batchRecordCount));
+                sb.append(where);
+                sb.appendSql(" AND ").appendSql(conn.encodeRowLimit(batchRecordCount));
             }
             else if (conn.getDBServer().isDB2_OS390()) {
-            	sb.append(det.retrieveWbapdWhereClauseResolved());
-            	sb.append(" AND ");
-            	sb.append(pkCol).append(" >= ( SELECT min (");
-            	sb.append(pkCol).append(")");
-            	sb.append(" FROM ").append(det.getWbapdTableName());
-                sb.append(" WHERE ").append(det.retrieveWbapdWhereClauseResolved());
-                sb.append(") AND ");
-
-                sb.append(pkCol).append(" < ( SELECT min (");
-                sb.append(pkCol).append(") + ").append(batchRecordCount);
-                sb.append(" FROM ").append(det.getWbapdTableName());
-                sb.append(" WHERE ").append(det.retrieveWbapdWhereClauseResolved());
-                sb.append(")");
+            	sb.append(where);
+            	sb.appendSql(" AND ");
+            	sb.appendSql(pkCol).appendSql(" >= ( SELECT min (");
+            	sb.appendSql(pkCol).appendSql(")");
+            	sb.appendSql(" FROM ").appendSql(det.getWbapdTableName());
+                sb.appendSql(" WHERE ").append(where);
+                sb.appendSql(") AND ");
+
+                sb.appendSql(pkCol).appendSql(" < ( SELECT min (");
+                sb.appendSql(pkCol).appendSql(") + ").appendSql(String.valueOf(batchRecordCount));
+                sb.appendSql(" FROM ").appendSql(det.getWbapdTableName());
+                sb.appendSql(" WHERE ").append(where);
+                sb.appendSql(")");
             }
             else if (conn.getDBServer().getId() == DBServer.DB2_ID ) {
-                sb.append(pkCol).append(" IN (SELECT ");
-                sb.append(pkCol);
-                sb.append(" FROM ").append(det.getWbapdTableName());
-                sb.append(" WHERE ").append(det.retrieveWbapdWhereClauseResolved());
+                sb.appendSql(pkCol).appendSql(" IN (SELECT ");
+                sb.appendSql(pkCol);
+                sb.appendSql(" FROM ").appendSql(det.getWbapdTableName());
+                sb.appendSql(" WHERE ").append(where);
                 if(!(conn.getDBServer().isDB2_OS390())) {
-                  sb.append(conn.encodeRowLimit(batchRecordCount));
+                  sb.appendSql(conn.encodeRowLimit(batchRecordCount));
                 }
-                sb.append(")");
+                sb.appendSql(")");
             }
             else if (conn.getDBServer().getId() == DBServer.MSSQL_ID ) {
-            	sb.append(pkCol).append(" IN (SELECT ");
-                sb.append(conn.encodeRowLimit(batchRecordCount)).append(pkCol);
-                sb.append(" FROM ").append(det.getWbapdTableName());
-                sb.append(" WHERE ").append(det.retrieveWbapdWhereClauseResolved());
-                sb.append(")");
+            	sb.appendSql(pkCol).appendSql(" IN (SELECT ");
+                sb.appendSql(conn.encodeRowLimit(batchRecordCount)).appendSql(pkCol);
+                sb.appendSql(" FROM ").appendSql(det.getWbapdTableName());
+                sb.appendSql(" WHERE ").append(where);
+                sb.appendSql(")");
             }
+            BoundWhereClause batchWhere = sb.build();
 
             // determine the number of processed records
             if (!conn.getDBServer().isDB2_OS390()) {
             	currentCount += batchRecordCount;
             } else {
             	// zOS only: The number of records returned by the where clause could be less than the batch record count
-            	currentCount += getNumberOfRecords(sb.toString());
+            	currentCount += getNumberOfRecords(batchWhere);
             }
-            return sb.toString();
+            return batchWhere;
         }
 
-        public boolean hasAny() {
+        public boolean hasAny() throws SQLException {
+            if (keyset) {
+                return hasNext();
+            }
             return allRecordCount > 0;
         }
 
-        private int getNumberOfRecords(String where) throws SQLException {
+        /**
+         * Returns true if batches are primary key ranges.
+         *
+         * @return
+         */
+        public boolean isKeyset() {
+            return keyset;
+        }
+
+        /**
+         * Returns the last primary key of the current batch, null before the first
+         * batch or without key ranges.
+         *
+         * @return
+         */
+        public Object getCurrentLastKey() {
+            return lastKey;
+        }
+
+        /**
+         * Continues with the keys after given key, used to resume a detail that was
+         * partly committed by an earlier run. Ignored without key ranges or if the key
+         * is not a number.
+         *
+         * @param key
+         */
+        public void resumeAfterKey(String key) {
+            if (!keyset || StringUtil.isEmpty(key)) {
+                return;
+            }
+            try {
+                lastKey = new BigDecimal(key.trim());
+                nextEndKeyLoaded = false;
+            } catch (NumberFormatException e) {
+                log("Checkpoint position " + key + " is not a primary key, starting the detail from the top");
+            }
+        }
+
+        private BoundWhereClause nextKeyRange() throws SQLException {
+            Object endKey = getNextEndKey();
+            BoundWhereClause.Builder sb = new BoundWhereClause.Builder();
+            sb.appendSql("(").append(where).appendSql(")");
+            if (lastKey != null) {
+                sb.appendSql(" AND " + pkCol + " > ").appendParam("?", lastKey, String.valueOf(lastKey));
+            }
+            sb.appendSql(" AND " + pkCol + " <= ").appendParam("?", endKey, String.valueOf(endKey));
+            BoundWhereClause batchWhere = sb.build();
+            lastKey = endKey;
+            nextEndKeyLoaded = false;
+            currentCount += batchRecordCount;
+            return batchWhere;
+        }
+
+        /**
+         * Returns the key ending the batch after the last key, null if no rows are left.
+         */
+        private Object getNextEndKey() throws SQLException {
+            if (nextEndKeyLoaded) {
+                return nextEndKey;
+            }
+            StringBuilder inner = new StringBuilder(400);
+            inner.append(" FROM ").append(det.getWbapdTableName());
+            inner.append(" WHERE (").append(where.getSql()).append(")");
+            if (lastKey != null) {
+                inner.append(" AND ").append(pkCol).append(" > ?");
+            }
+            inner.append(" ORDER BY ").append(pkCol);
+            String sql;
+            if (conn.getDBServer().getId() == DBServer.ORACLE_ID) {
+                sql = "SELECT MAX(" + pkCol + ") FROM (SELECT " + pkCol + inner
+                    + ") WHERE " + conn.encodeRowLimit(batchRecordCount);
+            }
+            else if (conn.getDBServer().getId() == DBServer.MSSQL_ID) {
+                sql = "SELECT MAX(" + pkCol + ") FROM (SELECT " + conn.encodeRowLimit(batchRecordCount)
+                    + pkCol + inner + ") k";
+            }
+            else {
+                // *** DB2, FETCH FIRST in a subselect also works on z/OS from V9
+                sql = "SELECT MAX(" + pkCol + ") FROM (SELECT " + pkCol + inner
+                    + conn.encodeRowLimit(batchRecordCount) + ") k";
+            }
+            PreparedStatement ps = null;
+            ResultSet rs = null;
+            try {
+                ps = conn.prepareStatement(sql);
+                int ind = where.bind(ps, 1);
+                if (lastKey != null) {
+                    ps.setObject(ind, lastKey);
+                }
+                rs = ps.executeQuery();
+                nextEndKey = rs.next() ? rs.getObject(1) : null;
+                nextEndKeyLoaded = true;
+            } finally {
+                SQLUtil.cleanUp(ps, rs);
+            }
+            return nextEndKey;
+        }
+
+        private int getNumberOfRecords(BoundWhereClause where) throws SQLException {
             PreparedStatement ps = null;
             ResultSet rs = null;
 
         	try {
 				String finalSql = "SELECT count(*) FROM " + det.getWbapdTableName()
-				+ " WHERE " + where;
+				+ " WHERE " + where.getSql();
 				log ("Count sql = " + finalSql);
 				ps = conn.prepareStatement(finalSql);
+				where.bind(ps, 1);
 				rs = ps.executeQuery();
 				if  (rs.next()) {
 					return rs.getInt(1);
@@ -0,0 +1,327 @@
+package com.itella.app.wbarchive.model;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.workbrain.app.wbarchive.SchemaHelper;
+import com.workbrain.sql.DBConnection;
+import com.workbrain.sql.DBServer;
+import com.workbrain.sql.SQLUtil;
+
+/**
+ * Column lists, primary key columns and LOB/ROWID flags of tables, keyed by schema
+ * and table name.
+ * <p>
+ * The first lookup on a schema reads the columns and primary key positions of all
+ * its tables with one dictionary query. Tables not found there, for example because
+ * the dictionary cannot be read, are looked up one by one and kept as well. A cache
+ * is created per archive run; <code>getShared</code> returns one kept for the life of
+ * the JVM, which must be invalidated after schema changes.
+ */
+public class SchemaMetadataCache {
+
+    private static org.apache.log4j.Logger logger = org.apache.log4j.Logger.getLogger(SchemaMetadataCache.class);
+
+    private static final String SQL_ORACLE = "SELECT c.table_name, c.column_name, c.data_type, NVL(p.position, 0)"
+        + " FROM user_tab_columns c LEFT OUTER JOIN (SELECT cc.table_name, cc.column_name, cc.position"
+        + " FROM user_constraints k, user_cons_columns cc WHERE k.constraint_type = 'P'"
+        + " AND cc.constraint_name = k.constraint_name AND cc.table_name = k.table_name) p"
+        + " ON p.table_name = c.table_name AND p.column_name = c.column_name"
+        + " ORDER BY c.table_name, c.column_id";
+    private static final String SQL_MSSQL = "SELECT c.TABLE_NAME, c.COLUMN_NAME, c.DATA_TYPE, COALESCE(p.ORDINAL_POSITION, 0)"
+        + " FROM INFORMATION_SCHEMA.COLUMNS c LEFT OUTER JOIN (SELECT u.TABLE_SCHEMA, u.TABLE_NAME, u.COLUMN_NAME,"
+        + " u.ORDINAL_POSITION FROM INFORMATION_SCHEMA.TABLE_CONSTRAINTS k, INFORMATION_SCHEMA.KEY_COLUMN_USAGE u"
+        + " WHERE k.CONSTRAINT_TYPE = 'PRIMARY KEY' AND u.CONSTRAINT_SCHEMA = k.CONSTRAINT_SCHEMA"
+        + " AND u.CONSTRAINT_NAME = k.CONSTRAINT_NAME) p ON p.TABLE_SCHEMA = c.TABLE_SCHEMA"
+        + " AND p.TABLE_NAME = c.TABLE_NAME AND p.COLUMN_NAME = c.COLUMN_NAME"
+        + " WHERE c.TABLE_SCHEMA = SCHEMA_NAME() ORDER BY c.TABLE_NAME, c.ORDINAL_POSITION";
+    private static final String SQL_DB2 = "SELECT TABNAME, COLNAME, TYPENAME, COALESCE(KEYSEQ, 0)"
+        + " FROM SYSCAT.COLUMNS WHERE TABSCHEMA = CURRENT SCHEMA ORDER BY TABNAME, COLNO";
+    private static final String SQL_DB2_OS390 = "SELECT TBNAME, NAME, COLTYPE, KEYSEQ"
+        + " FROM SYSIBM.SYSCOLUMNS WHERE TBCREATOR = CURRENT SQLID ORDER BY TBNAME, COLNO";
+
+    private static final String[] LOB_TYPES = {"CLOB", "NCLOB", "BLOB", "DBCLOB", "LONG", "LONG RAW",
+        "TEXT", "NTEXT", "IMAGE", "XML"};
+
+    private static final SchemaMetadataCache SHARED = new SchemaMetadataCache();
+
+    private final Map<String, Schema> schemas = new ConcurrentHashMap<String, Schema>();
+
+    /**
+     * Returns the cache kept for the life of the JVM.
+     *
+     * @return
+     */
+    public static SchemaMetadataCache getShared() {
+        return SHARED;
+    }
+
+    /**
+     * Drops everything kept by the JVM scoped cache.
+     */
+    public static void invalidateShared() {
+        SHARED.clear();
+    }
+
+    public void clear() {
+        schemas.clear();
+    }
+
+    /**
+     * Returns the metadata of given table on the schema of given connection.
+     *
+     * @param conn
+     * @param tableName
+     * @return
+     * @throws SQLException
+     */
+    public TableMetadata getTable(DBConnection conn, String tableName) throws SQLException {
+        Schema schema = getSchema(conn);
+        String key = tableName.toUpperCase();
+        TableMetadata ret = schema.tables.get(key);
+        if (ret == null) {
+            ret = loadTable(conn, tableName);
+            schema.tables.put(key, ret);
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the primary key columns of given table separated by commas, null if it
+     * has no primary key.
+     *
+     * @param conn
+     * @param tableName
+     * @return
+     * @throws SQLException
+     */
+    public String getPrimaryKeyColumn(DBConnection conn, String tableName) throws SQLException {
+        return getTable(conn, tableName).getPrimaryKeyColumn();
+    }
+
+    /**
+     * Returns the columns of given table that can be inserted, without the generated
+     * _ROWID column DB2/zOS adds to tables with CLOBs.
+     *
+     * @param conn
+     * @param tableName
+     * @return
+     * @throws SQLException
+     */
+    public List<String> getCopiedColumns(DBConnection conn, String tableName) throws SQLException {
+        return getTable(conn, tableName).getCopiedColumns();
+    }
+
+    private Schema getSchema(DBConnection conn) throws SQLException {
+        String key = conn.getDBServer().getId() + ":" + conn.getMetaData().getURL()
+            + ":" + conn.getMetaData().getUserName();
+        Schema ret = schemas.get(key);
+        if (ret == null) {
+            synchronized (schemas) {
+                ret = schemas.get(key);
+                if (ret == null) {
+                    ret = new Schema();
+                    preload(conn, ret);
+                    schemas.put(key, ret);
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Reads all tables of the schema of given connection with one dictionary query.
+     */
+    private void preload(DBConnection conn, Schema schema) {
+        String sql = getDictionarySql(conn);
+        if (sql == null) {
+            return;
+        }
+        boolean zos = conn.getDBServer().isDB2_OS390();
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try {
+            long s = System.currentTimeMillis();
+            ps = conn.prepareStatement(sql);
+            ps.setFetchSize(1000);
+            rs = ps.executeQuery();
+            TableBuilder table = null;
+            while (rs.next()) {
+                String tableName = rs.getString(1).trim().toUpperCase();
+                if (table == null || !table.name.equals(tableName)) {
+                    if (table != null) {
+                        schema.tables.put(table.name, table.build());
+                    }
+                    table = new TableBuilder(tableName, zos);
+                }
+                table.addColumn(rs.getString(2).trim(), rs.getString(3).trim(), rs.getInt(4));
+            }
+            if (table != null) {
+                schema.tables.put(table.name, table.build());
+            }
+            if (logger.isEnabledFor(org.apache.log4j.Level.DEBUG)) {
+                logger.debug("Loaded metadata of " + schema.tables.size() + " tables in "
+                    + (System.currentTimeMillis() - s) + " ms");
+            }
+        } catch (SQLException e) {
+            // *** tables are looked up one by one instead
+            logger.error("Could not read the data dictionary, table metadata is loaded per table", e);
+        } finally {
+            SQLUtil.cleanUp(ps, rs);
+        }
+    }
+
+    private static String getDictionarySql(DBConnection conn) {
+        int id = conn.getDBServer().getId();
+        if (id == DBServer.ORACLE_ID) {
+            return SQL_ORACLE;
+        }
+        else if (id == DBServer.MSSQL_ID) {
+            return SQL_MSSQL;
+        }
+        else if (id == DBServer.DB2_ID) {
+            return conn.getDBServer().isDB2_OS390() ? SQL_DB2_OS390 : SQL_DB2;
+        }
+        return null;
+    }
+
+    /**
+     * Looks up one table the way it was done before the cache.
+     */
+    private static TableMetadata loadTable(DBConnection conn, String tableName) throws SQLException {
+        TableBuilder b = new TableBuilder(tableName.toUpperCase(), conn.getDBServer().isDB2_OS390());
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try {
+            ps = conn.prepareStatement("SELECT * FROM " + tableName + " WHERE 1 = 2", true, true);
+            rs = ps.executeQuery();
+            ResultSetMetaData md = rs.getMetaData();
+            for (int i = 1; i <= md.getColumnCount(); i++) {
+                b.addColumn(md.getColumnName(i), md.getColumnTypeName(i), 0);
+            }
+        } finally {
+            SQLUtil.cleanUp(ps, rs);
+        }
+        b.primaryKeyColumn = SchemaHelper.getPrimaryKeyColumnForTable(conn, tableName);
+        return b.build();
+    }
+
+    private static class Schema {
+        private final Map<String, TableMetadata> tables = new ConcurrentHashMap<String, TableMetadata>();
+    }
+
+    private static class TableBuilder {
+        private final String name;
+        private final boolean zos;
+        private final List<String> columns = new ArrayList<String>();
+        private final List<String> copiedColumns = new ArrayList<String>();
+        private final List<String> keyColumns = new ArrayList<String>();
+        private final List<Integer> keyPositions = new ArrayList<Integer>();
+        private boolean hasLob;
+        private boolean hasRowid;
+        private String primaryKeyColumn;
+
+        TableBuilder(String name, boolean zos) {
+            this.name = name;
+            this.zos = zos;
+        }
+
+        void addColumn(String column, String typeName, int keyPosition) {
+            columns.add(column);
+            String type = typeName == null ? "" : typeName.toUpperCase();
+            if (zos && column.toUpperCase().endsWith("_ROWID")) {
+                // *** GENERATED ALWAYS, the value cannot be inserted
+                hasRowid = true;
+            }
+            else {
+                copiedColumns.add(column);
+            }
+            for (int i = 0; i < LOB_TYPES.length; i++) {
+                if (type.equals(LOB_TYPES[i])) {
+                    hasLob = true;
+                }
+            }
+            if (keyPosition > 0) {
+                int i = 0;
+                while (i < keyPositions.size() && keyPositions.get(i).intValue() < keyPosition) {
+                    i++;
+                }
+                keyColumns.add(i, column);
+                keyPositions.add(i, Integer.valueOf(keyPosition));
+            }
+        }
+
+        TableMetadata build() {
+            String pk = primaryKeyColumn;
+            if (pk == null && keyColumns.size() > 0) {
+                StringBuilder sb = new StringBuilder();
+                for (int i = 0; i < keyColumns.size(); i++) {
+                    if (i > 0) {
+                        sb.append(",");
+                    }
+                    sb.append(keyColumns.get(i));
+                }
+                pk = sb.toString();
+            }
+            return new TableMetadata(name, columns, copiedColumns, pk, hasLob, hasRowid);
+        }
+    }
+
+    /**
+     * Metadata of one table.
+     */
+    public static class TableMetadata {
+        private final String tableName;
+        private final List<String> columns;
+        private final List<String> copiedColumns;
+        private final String primaryKeyColumn;
+        private final boolean hasLob;
+        private final boolean hasRowid;
+
+        TableMetadata(String tableName, List<String> columns, List<String> copiedColumns,
+                      String primaryKeyColumn, boolean hasLob, boolean hasRowid) {
+            this.tableName = tableName;
+            this.columns = Collections.unmodifiableList(columns);
+            this.copiedColumns = Collections.unmodifiableList(copiedColumns);
+            this.primaryKeyColumn = primaryKeyColumn;
+            this.hasLob = hasLob;
+            this.hasRowid = hasRowid;
+        }
+
+        public String getTableName() {
+            return tableName;
+        }
+
+        public List<String> getColumns() {
+            return columns;
+        }
+
+        public List<String> getCopiedColumns() {
+            return copiedColumns;
+        }
+
+        public String getPrimaryKeyColumn() {
+            return primaryKeyColumn;
+        }
+
+        public boolean hasLob() {
+            return hasLob;
+        }
+
+        /**
+         * Returns true if the table has the generated _ROWID column of DB2/zOS.
+         *
+         * @return
+         */
+        public boolean hasRowid() {
+            return hasRowid;
+        }
+    }
+}
@@ -0,0 +1,356 @@
+package com.itella.app.wbarchive.model;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.workbrain.app.wbarchive.WBArchiveException;
+import com.workbrain.app.wbarchive.model.WBArchPolDetData;
+
+/**
+ * Policy detail where clause parsed once into literal text and slots.
+ * <p>
+ * <code>#WHERE.table[.priority]#</code> and <code>#PARAM.name#</code> references
+ * do not change during a run and are expanded when the template is compiled,
+ * references inside referred where clauses included. Aging date, current datetime
+ * and employee id selector markers become slots filled by <code>fill</code>, so
+ * producing the where clause of a batch is one pass over the parts.
+ * <p>
+ * Instances are immutable and can be shared between threads.
+ */
+public class WhereClauseTemplate {
+
+    public static final int SLOT_AGING_DATE = 1;
+    public static final int SLOT_CURRENT_DATETIME = 2;
+    public static final int SLOT_EMP_ID_SELECTOR = 3;
+
+    private static final int TEXT = 0;
+    private static final int WHERE_REF = 4;
+    private static final int PARAM_REF = 5;
+
+    private static final String[] MARKERS = new String[] {
+        WBArchPolDetData.WHERE_AGING_DAYS,
+        WBArchPolDetData.WHERE_CURRENT_DATETIME,
+        WBArchPolDetData.WHERE_EMP_ID_SELECTOR,
+        WBArchPolDetData.WHERE_WHERE_PREFIX,
+        WBArchPolDetData.WHERE_PARAM_PREFIX
+    };
+    private static final int[] MARKER_KINDS = new int[] {
+        SLOT_AGING_DATE, SLOT_CURRENT_DATETIME, SLOT_EMP_ID_SELECTOR, WHERE_REF, PARAM_REF
+    };
+
+    /** negation other than IS NOT NULL, a where clause using it may select fewer rows for a later aging date */
+    private static final Pattern NOT_KEYWORD = Pattern.compile("(?i)(?<!\\bIS\\s{1,10})\\bNOT\\b");
+
+    /** text before the aging date of a template that is only <code>column &lt; #AGINGDATE#</code> */
+    private static final Pattern AGING_DATE_BOUND = Pattern.compile(
+        "\\s*(?:[A-Za-z_][A-Za-z0-9_$#]*\\.)?([A-Za-z_][A-Za-z0-9_$#]*)\\s*(<=|<)\\s*");
+
+    /**
+     * Looks up the values of references expanded at compile time.
+     */
+    public interface ReferenceResolver {
+        /**
+         * Returns the unresolved where clause of given detail, null if there is no such detail.
+         *
+         * @param tableName
+         * @param priority   -1 if not given
+         */
+        String getDetailWhereClause(String tableName, int priority);
+
+        /**
+         * Returns the value of given policy parameter for sql, null if not defined.
+         *
+         * @param paramName
+         */
+        String getParamValueForSql(String paramName) throws Exception;
+    }
+
+    private final String source;
+    private final int[] kinds;
+    private final String[] texts;
+    private final int length;
+    private String agingDateBoundColumn;
+    private boolean agingDateBoundInclusive;
+
+    private WhereClauseTemplate(String source, List<Integer> kinds, List<String> texts) {
+        this.source = source;
+        this.kinds = new int[kinds.size()];
+        this.texts = new String[texts.size()];
+        int len = 0;
+        for (int i = 0; i < this.kinds.length; i++) {
+            this.kinds[i] = kinds.get(i).intValue();
+            this.texts[i] = texts.get(i);
+            if (this.texts[i] != null) {
+                len += this.texts[i].length();
+            }
+        }
+        this.length = len;
+        boolean onlyBound = this.kinds.length == 2
+            || (this.kinds.length == 3 && this.kinds[2] == TEXT && this.texts[2].trim().length() == 0);
+        if (onlyBound && this.kinds[0] == TEXT && this.kinds[1] == SLOT_AGING_DATE) {
+            Matcher m = AGING_DATE_BOUND.matcher(this.texts[0]);
+            if (m.matches()) {
+                this.agingDateBoundColumn = m.group(1);
+                this.agingDateBoundInclusive = "<=".equals(m.group(2));
+            }
+        }
+    }
+
+    /**
+     * Compiles given where clause.
+     *
+     * @param whereClause
+     * @param resolver     used to expand <code>#WHERE.#</code> and <code>#PARAM.#</code> references
+     * @return
+     * @throws WBArchiveException if a reference cannot be resolved, is not terminated
+     *                            or refers to itself
+     */
+    public static WhereClauseTemplate compile(String whereClause, ReferenceResolver resolver)
+            throws WBArchiveException {
+        List<Integer> kinds = new ArrayList<Integer>();
+        List<String> texts = new ArrayList<String>();
+        StringBuilder text = new StringBuilder(whereClause == null ? 0 : whereClause.length());
+        try {
+            append(whereClause, resolver, new LinkedList<String>(), text, kinds, texts);
+        } catch (WBArchiveException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new WBArchiveException("Error in parsing Where clause for : " + whereClause, e);
+        }
+        flushText(text, kinds, texts);
+        return new WhereClauseTemplate(whereClause, kinds, texts);
+    }
+
+    private static void append(String where, ReferenceResolver resolver, LinkedList<String> expanding,
+                               StringBuilder text, List<Integer> kinds, List<String> texts)
+            throws Exception {
+        if (where == null) {
+            return;
+        }
+        int pos = 0;
+        while (pos < where.length()) {
+            int found = -1;
+            int markerInd = -1;
+            for (int i = 0; i < MARKERS.length; i++) {
+                if (MARKERS[i] == null || MARKERS[i].length() == 0) {
+                    continue;
+                }
+                int ind = where.indexOf(MARKERS[i], pos);
+                // *** on equal position the longer marker wins, it is the more specific one
+                if (ind > -1 && (found == -1 || ind < found
+                                 || (ind == found && MARKERS[i].length() > MARKERS[markerInd].length()))) {
+                    found = ind;
+                    markerInd = i;
+                }
+            }
+            if (found == -1) {
+                text.append(where, pos, where.length());
+                break;
+            }
+            text.append(where, pos, found);
+            String marker = MARKERS[markerInd];
+            int kind = MARKER_KINDS[markerInd];
+            if (kind == WHERE_REF || kind == PARAM_REF) {
+                int nameStart = found + marker.length();
+                int nameEnd = where.indexOf(WBArchPolDetData.WHERE_MARKER, nameStart);
+                if (nameEnd < 0) {
+                    throw new WBArchiveException("Reference starting at " + found
+                        + " is not terminated with " + WBArchPolDetData.WHERE_MARKER + " in : " + where);
+                }
+                String name = where.substring(nameStart, nameEnd);
+                if (kind == WHERE_REF) {
+                    appendWhereReference(name, resolver, expanding, text, kinds, texts);
+                }
+                else {
+                    String val = resolver.getParamValueForSql(name);
+                    if (val == null) {
+                        throw new WBArchiveException("Parameter : " + name
+                            + " is not defined for the archive policy");
+                    }
+                    // *** parameter values are literals, markers in them are not expanded
+                    text.append(val);
+                }
+                pos = nameEnd + WBArchPolDetData.WHERE_MARKER.length();
+            }
+            else {
+                flushText(text, kinds, texts);
+                kinds.add(Integer.valueOf(kind));
+                texts.add(null);
+                pos = found + marker.length();
+            }
+        }
+    }
+
+    private static void appendWhereReference(String ref, ReferenceResolver resolver, LinkedList<String> expanding,
+                                             StringBuilder text, List<Integer> kinds, List<String> texts)
+            throws Exception {
+        String tabName = ref;
+        int priority = -1;
+        int indPriority = ref.indexOf('.');
+        if (indPriority > -1) {
+            tabName = ref.substring(0, indPriority);
+            try {
+                priority = Integer.parseInt(ref.substring(indPriority + 1).trim());
+            } catch (NumberFormatException e) {
+                throw new WBArchiveException("Priority of #WHERE. reference : " + ref + " is not a number");
+            }
+        }
+        String key = ref.toUpperCase();
+        if (expanding.contains(key)) {
+            throw new WBArchiveException("#WHERE. reference : " + ref + " refers to itself through : " + expanding);
+        }
+        String refWhere = resolver.getDetailWhereClause(tabName, priority);
+        if (refWhere == null) {
+            throw new WBArchiveException("Table : " + tabName
+                + " is referred in an archive detail"
+                + " with #WHERE. syntax but does not exist in any archive detail definition");
+        }
+        expanding.addLast(key);
+        append(refWhere, resolver, expanding, text, kinds, texts);
+        expanding.removeLast();
+    }
+
+    private static void flushText(StringBuilder text, List<Integer> kinds, List<String> texts) {
+        if (text.length() > 0) {
+            kinds.add(Integer.valueOf(TEXT));
+            texts.add(text.toString());
+            text.setLength(0);
+        }
+    }
+
+    /**
+     * Returns the where clause this template was compiled from.
+     *
+     * @return
+     */
+    public String getSource() {
+        return source;
+    }
+
+    /**
+     * Returns the column of a template that is nothing but <code>column &lt; #AGINGDATE#</code>
+     * or <code>column &lt;= #AGINGDATE#</code>, without its qualifier, null for any other template.
+     *
+     * @return
+     */
+    public String getAgingDateBoundColumn() {
+        return agingDateBoundColumn;
+    }
+
+    /**
+     * Returns true if the column of <code>getAgingDateBoundColumn</code> is compared with &lt;=.
+     *
+     * @return
+     */
+    public boolean isAgingDateBoundInclusive() {
+        return agingDateBoundInclusive;
+    }
+
+    /**
+     * Returns true if every aging date of the template is an upper bound, i.e. follows
+     * <code>&lt;</code> or <code>&lt;=</code>, and the template has no NOT. Such a where
+     * clause never drops a row when the aging date moves later, which day windows
+     * processed concurrently rely on.
+     *
+     * @return
+     */
+    public boolean isAgingDateUpperBound() {
+        for (int i = 0; i < kinds.length; i++) {
+            if (kinds[i] == TEXT && NOT_KEYWORD.matcher(texts[i]).find()) {
+                return false;
+            }
+            if (kinds[i] == SLOT_AGING_DATE) {
+                String before = i == 0 || kinds[i - 1] != TEXT ? "" : texts[i - 1].trim();
+                if (!(before.endsWith("<") || before.endsWith("<=")) || before.endsWith("<>")) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if the template has at least one slot of given kind.
+     *
+     * @param slot  one of the SLOT_ constants
+     * @return
+     */
+    public boolean hasSlot(int slot) {
+        for (int i = 0; i < kinds.length; i++) {
+            if (kinds[i] == slot) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Produces the where clause with the aging date as bind parameter. Employee id
+     * selector slots are left open in the returned clause.
+     *
+     * @param agingDate            value bound for the aging date
+     * @param agingDatePlaceholder sql for the aging date parameter
+     * @param agingDateLiteral     encoded aging date for the literal rendering
+     * @param currentDatetime      encoded current datetime, a database function and not bound
+     * @return
+     */
+    public BoundWhereClause bind(Object agingDate, String agingDatePlaceholder,
+                                 String agingDateLiteral, String currentDatetime) {
+        BoundWhereClause.Builder b = new BoundWhereClause.Builder();
+        for (int i = 0; i < kinds.length; i++) {
+            switch (kinds[i]) {
+            case TEXT:
+                b.appendSql(texts[i]);
+                break;
+            case SLOT_AGING_DATE:
+                b.appendParam(agingDatePlaceholder, agingDate, agingDateLiteral);
+                break;
+            case SLOT_CURRENT_DATETIME:
+                b.appendSql(currentDatetime);
+                break;
+            case SLOT_EMP_ID_SELECTOR:
+                b.appendEmpIdSlot();
+                break;
+            default:
+                break;
+            }
+        }
+        return b.build();
+    }
+
+    /**
+     * Produces the where clause filling slots with given values. A slot with a null
+     * value keeps its marker, so it can be filled later from the produced clause.
+     *
+     * @param agingDate        encoded aging date
+     * @param currentDatetime  encoded current datetime
+     * @param empIdSelector    employee id predicate
+     * @return
+     */
+    public String fill(String agingDate, String currentDatetime, String empIdSelector) {
+        StringBuilder sb = new StringBuilder(length + 64
+            + (empIdSelector == null ? 0 : empIdSelector.length()));
+        for (int i = 0; i < kinds.length; i++) {
+            switch (kinds[i]) {
+            case TEXT:
+                sb.append(texts[i]);
+                break;
+            case SLOT_AGING_DATE:
+                sb.append(agingDate == null ? WBArchPolDetData.WHERE_AGING_DAYS : agingDate);
+                break;
+            case SLOT_CURRENT_DATETIME:
+                sb.append(currentDatetime == null ? WBArchPolDetData.WHERE_CURRENT_DATETIME : currentDatetime);
+                break;
+            case SLOT_EMP_ID_SELECTOR:
+                sb.append(empIdSelector == null ? WBArchPolDetData.WHERE_EMP_ID_SELECTOR : empIdSelector);
+                break;
+            default:
+                break;
+            }
+        }
+        return sb.toString();
+    }
+}